@@ -1,12 +1,21 @@
 package org.progfun;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.MathContext;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Use this class for storing prices and other decimal numbers without losing
- * precision
+ * precision.
+ *
+ * The value is stored as a fixed-point number: a long counting units of 1e-8.
+ * Arithmetic on such numbers does not allocate anything except the resulting
+ * Decimal. Only when a value does not fit into the fixed-point representation
+ * (overflow, or more than 8 decimal digits) a BigDecimal is used instead.
  */
 public class Decimal implements Comparable<Decimal> {
 
@@ -16,27 +25,209 @@ public class Decimal implements Comparable<Decimal> {
     private static final MathContext DEFAULT_PRECISION
             = new MathContext(DEFAULT_SCALE, DEFAULT_ROUNDING);
 
+    // How many fixed-point units make up 1.0
+    private static final long FACTOR = 100000000L;
+    // Largest fixed-point value that can be multiplied by FACTOR without
+    // overflow
+    private static final long MAX_FACTOR_MULTIPLIER = Long.MAX_VALUE / FACTOR;
+    // Number of digits before the decimal point in MAX_FACTOR_MULTIPLIER
+    private static final int MAX_INTEGER_DIGITS = 11;
+    // Marks that the value is stored as BigDecimal. Long.MIN_VALUE is never
+    // used as a fixed-point value, this keeps the range symmetric
+    private static final long NOT_FIXED = Long.MIN_VALUE;
+
     public static final Decimal ZERO = new Decimal(0);
     public static final Decimal ONE = new Decimal("1");
     public static final Decimal TEN = new Decimal("10");
 
+    // Value in units of 1e-8, or NOT_FIXED when number is used instead
+    private final long units;
+    // Used only when the value does not fit in the fixed-point representation
     private final BigDecimal number;
 
     /**
-     * Initialize the number from a string
+     * Initialize the number from a string. Values with up to 8 decimals are
+     * kept exactly, regardless of the number of significant digits. Only
+     * values that don't fit in the fixed-point representation are rounded
+     * to 8 significant digits.
      *
      * @param number
      */
     public Decimal(String number) {
-        this.number = new BigDecimal(number, DEFAULT_PRECISION);
+        long u = parseUnits(number, 0, number.length());
+        BigDecimal bd = null;
+        if (u == NOT_FIXED) {
+            // Too many digits or invalid format, let BigDecimal handle it
+            bd = new BigDecimal(number);
+            u = toUnits(bd);
+            if (u == NOT_FIXED) {
+                // Too many digits, round it the same way as before
+                bd = bd.round(DEFAULT_PRECISION);
+                u = toUnits(bd);
+            }
+        }
+        this.units = u;
+        this.number = u == NOT_FIXED ? bd : null;
     }
 
     public Decimal(double d) {
-        this.number = new BigDecimal(d, DEFAULT_PRECISION);
+        BigDecimal bd = new BigDecimal(d, DEFAULT_PRECISION);
+        long u = toUnits(bd);
+        this.units = u;
+        this.number = u == NOT_FIXED ? bd : null;
     }
 
     public Decimal(BigDecimal bd) {
-        this.number = bd.setScale(DEFAULT_SCALE, DEFAULT_ROUNDING);
+        BigDecimal scaled = bd.setScale(DEFAULT_SCALE, DEFAULT_ROUNDING);
+        long u = toUnits(scaled);
+        this.units = u;
+        this.number = u == NOT_FIXED ? scaled : null;
+    }
+
+    private Decimal(long units, BigDecimal number) {
+        this.units = units;
+        this.number = number;
+    }
+
+    /**
+     * Create a decimal from fixed-point units, where one unit is 1e-8
+     *
+     * @param units
+     * @return
+     */
+    public static Decimal fromUnits(long units) {
+        if (units == NOT_FIXED) {
+            return new Decimal(BigDecimal.valueOf(units, DEFAULT_SCALE));
+        }
+        return new Decimal(units, null);
+    }
+
+    /**
+     * Parse a decimal number from a part of a string, without creating any
+     * intermediate objects. Handy when a number is located inside a bigger
+     * message.
+     *
+     * @param s the string containing the number
+     * @param start index of the first character of the number
+     * @param end index after the last character of the number
+     * @return
+     * @throws NumberFormatException when the number is not valid
+     */
+    public static Decimal parse(CharSequence s, int start, int end) {
+        long u = parseUnits(s, start, end);
+        if (u != NOT_FIXED) {
+            return new Decimal(u, null);
+        }
+        return new Decimal(s.subSequence(start, end).toString());
+    }
+
+    /**
+     * Parse a decimal number from a part of a string into fixed-point units
+     * (1e-8), without creating any objects. A cached Decimal can then be
+     * looked up for the units, see Book.getPrice(long).
+     *
+     * @param s the string containing the number
+     * @param start index of the first character of the number
+     * @param end index after the last character of the number
+     * @return the units, or Long.MIN_VALUE when the number is not valid or
+     * does not fit in the fixed-point representation. Use parse() then.
+     */
+    public static long parseFixed(CharSequence s, int start, int end) {
+        return parseUnits(s, start, end);
+    }
+
+    /**
+     * Parse a decimal number from a string, see parse(s, start, end)
+     *
+     * @param s
+     * @return
+     * @throws NumberFormatException when the number is not valid
+     */
+    public static Decimal parse(CharSequence s) {
+        return parse(s, 0, s.length());
+    }
+
+    /**
+     * Parse a decimal number from a part of a character array. Only a small
+     * wrapper object is created, callers parsing many numbers from the same
+     * array can wrap it once with CharBuffer.wrap() and use
+     * parse(CharSequence, int, int).
+     *
+     * @param chars buffer containing the number
+     * @param start index of the first character of the number
+     * @param end index after the last character of the number
+     * @return
+     * @throws NumberFormatException when the number is not valid
+     */
+    public static Decimal parse(char[] chars, int start, int end) {
+        return parse(CharBuffer.wrap(chars), start, end);
+    }
+
+    /**
+     * Parse a decimal number from ASCII bytes, without creating any
+     * intermediate objects
+     *
+     * @param bytes buffer containing the number
+     * @param start index of the first byte of the number
+     * @param end index after the last byte of the number
+     * @return
+     * @throws NumberFormatException when the number is not valid
+     */
+    public static Decimal parse(byte[] bytes, int start, int end) {
+        long u = parseUnits(bytes, start, end);
+        if (u != NOT_FIXED) {
+            return new Decimal(u, null);
+        }
+        return new Decimal(new String(bytes, start, end - start,
+                StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parse a decimal number from ASCII bytes stored in a buffer. Absolute
+     * indexes are used, the position of the buffer is not changed. The
+     * bytes of a direct buffer are copied first.
+     *
+     * @param buffer buffer containing the number
+     * @param start index of the first byte of the number
+     * @param end index after the last byte of the number
+     * @return
+     * @throws NumberFormatException when the number is not valid
+     */
+    public static Decimal parse(ByteBuffer buffer, int start, int end) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            return parse(buffer.array(), offset + start, offset + end);
+        }
+        byte[] bytes = new byte[Math.max(0, end - start)];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Return true if the value is stored as a fixed-point number (and
+     * getUnits() can be used)
+     *
+     * @return
+     */
+    public boolean isFixedPoint() {
+        return units != NOT_FIXED;
+    }
+
+    /**
+     * Get the value as a fixed-point number: in units of 1e-8
+     *
+     * @return
+     * @throws ArithmeticException when the value does not fit in the
+     * fixed-point representation
+     */
+    public long getUnits() {
+        if (units == NOT_FIXED) {
+            throw new ArithmeticException("Decimal " + number
+                    + " does not fit in fixed-point representation");
+        }
+        return units;
     }
 
     /**
@@ -46,7 +237,15 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public Decimal add(Decimal d) {
-        return new Decimal(this.number.add(d.number));
+        if (units != NOT_FIXED && d.units != NOT_FIXED) {
+            long r = units + d.units;
+            // Overflow happens only if both operands have a sign different
+            // from the result
+            if (((units ^ r) & (d.units ^ r)) >= 0 && r != NOT_FIXED) {
+                return new Decimal(r, null);
+            }
+        }
+        return new Decimal(toBigDecimal().add(d.toBigDecimal()));
     }
 
     /**
@@ -67,7 +266,15 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public Decimal subtract(Decimal d) {
-        return new Decimal(this.number.subtract(d.number));
+        if (units != NOT_FIXED && d.units != NOT_FIXED) {
+            long r = units - d.units;
+            // Overflow happens only if operands have different signs and
+            // the result has a sign different from the first operand
+            if (((units ^ d.units) & (units ^ r)) >= 0 && r != NOT_FIXED) {
+                return new Decimal(r, null);
+            }
+        }
+        return new Decimal(toBigDecimal().subtract(d.toBigDecimal()));
     }
 
     /**
@@ -88,7 +295,13 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public Decimal multiply(Decimal d) {
-        return new Decimal(number.multiply(d.number));
+        if (units != NOT_FIXED && d.units != NOT_FIXED) {
+            long r = multiplyUnits(units, d.units);
+            if (r != NOT_FIXED) {
+                return new Decimal(r, null);
+            }
+        }
+        return new Decimal(toBigDecimal().multiply(d.toBigDecimal()));
     }
 
     /**
@@ -109,7 +322,8 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public Decimal divide(Decimal d) {
-        return new Decimal(number.divide(d.number, DEFAULT_PRECISION));
+        return new Decimal(toBigDecimal().divide(d.toBigDecimal(),
+                DEFAULT_PRECISION));
     }
 
     /**
@@ -129,6 +343,9 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public Decimal negate() {
+        if (units != NOT_FIXED) {
+            return new Decimal(-units, null);
+        }
         return new Decimal(number.negate());
     }
 
@@ -138,7 +355,10 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public boolean isPositive() {
-        return number.compareTo(BigDecimal.ZERO) > 0;
+        if (units != NOT_FIXED) {
+            return units > 0;
+        }
+        return number.signum() > 0;
     }
 
     /**
@@ -147,7 +367,10 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public boolean isNegative() {
-        return number.compareTo(BigDecimal.ZERO) < 0;
+        if (units != NOT_FIXED) {
+            return units < 0;
+        }
+        return number.signum() < 0;
     }
 
     /**
@@ -156,7 +379,10 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public boolean isZero() {
-        return number.compareTo(BigDecimal.ZERO) == 0;
+        if (units != NOT_FIXED) {
+            return units == 0;
+        }
+        return number.signum() == 0;
     }
 
     /**
@@ -165,6 +391,9 @@ public class Decimal implements Comparable<Decimal> {
      * @return
      */
     public double getDoubleVal() {
+        if (units != NOT_FIXED) {
+            return (double) units / FACTOR;
+        }
         return number.doubleValue();
     }
 
@@ -193,7 +422,14 @@ public class Decimal implements Comparable<Decimal> {
         if (d == null) {
             return 1;
         }
-        return this.number.compareTo(d.number);
+        if (d == this) {
+            // Canonical price objects are often compared with themselves
+            return 0;
+        }
+        if (this.units != NOT_FIXED && d.units != NOT_FIXED) {
+            return Long.compare(this.units, d.units);
+        }
+        return this.toBigDecimal().compareTo(d.toBigDecimal());
     }
 
     /**
@@ -208,23 +444,67 @@ public class Decimal implements Comparable<Decimal> {
             return false;
         }
         Decimal d = (Decimal) o;
-        return d.number.compareTo(this.number) == 0;
+        return d.compareTo(this) == 0;
+    }
+
+    /**
+     * Hash code consistent with equals(): numbers with the same value have
+     * the same hash, whatever the scale
+     *
+     * @return
+     */
+    @Override
+    public int hashCode() {
+        if (units != NOT_FIXED) {
+            return (int) (units ^ (units >>> 32));
+        }
+        // Fixed-point values are always stored as units, therefore a
+        // BigDecimal value never equals a fixed-point one
+        return number.stripTrailingZeros().hashCode();
     }
 
+    /**
+     * Get string representation in plain notation, trailing zeros of the
+     * fraction are not printed: "600.5", "1", "-0.00000001"
+     */
     @Override
     public String toString() {
-        return number.toString();
+        if (units == NOT_FIXED) {
+            return number.toString();
+        }
+        StringBuilder sb = new StringBuilder(24);
+        long u = units;
+        if (u < 0) {
+            sb.append('-');
+            u = -u;
+        }
+        sb.append(u / FACTOR);
+        long fraction = u % FACTOR;
+        if (fraction != 0) {
+            int digits = DEFAULT_SCALE;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            sb.append('.');
+            String f = Long.toString(fraction);
+            for (int i = f.length(); i < digits; ++i) {
+                sb.append('0');
+            }
+            sb.append(f);
+        }
+        return sb.toString();
     }
 
     /**
      * Get string representation, with all trailing zeros cut-off
-     * @return 
+     * @return
      */
     public String getNiceString() {
         if (isZero()) {
             return "0";
         }
-        String s = number.toPlainString();
+        String s = units != NOT_FIXED ? toString() : number.toPlainString();
         if (s.indexOf('.') < 0) {
             // When not a decimal, don't strip off anything
             return s;
@@ -243,11 +523,23 @@ public class Decimal implements Comparable<Decimal> {
             return "0";
         }
     }
-    
+
+    /**
+     * Get the value as a BigDecimal
+     *
+     * @return
+     */
+    public BigDecimal toBigDecimal() {
+        if (units != NOT_FIXED) {
+            return BigDecimal.valueOf(units, DEFAULT_SCALE);
+        }
+        return number;
+    }
+
     /**
      * Create an array of Decimals from an array of doubles
      * @param d
-     * @return 
+     * @return
      */
     public static Decimal[] createArray(double[] d) {
         if (d == null) {
@@ -259,4 +551,278 @@ public class Decimal implements Comparable<Decimal> {
         }
         return res;
     }
+
+    /**
+     * Convert a BigDecimal to fixed-point units
+     *
+     * @param bd
+     * @return the units or NOT_FIXED if the value has more than 8 decimal
+     * digits or does not fit in a long
+     */
+    private static long toUnits(BigDecimal bd) {
+        if (bd.scale() > DEFAULT_SCALE) {
+            bd = bd.stripTrailingZeros();
+            if (bd.scale() > DEFAULT_SCALE) {
+                return NOT_FIXED;
+            }
+        }
+        if (bd.precision() - bd.scale() > MAX_INTEGER_DIGITS) {
+            // Too large, don't even try to scale it
+            return NOT_FIXED;
+        }
+        // Scale of the result is zero, unscaled value holds the units
+        BigInteger scaled = bd.movePointRight(DEFAULT_SCALE).unscaledValue();
+        if (scaled.bitLength() > 63) {
+            return NOT_FIXED;
+        }
+        return scaled.longValue();
+    }
+
+    /**
+     * Parse a decimal number ("-123.45", "1.5e-7") from characters directly
+     * into fixed-point units. There is one loop for characters and one for
+     * bytes, so that reading a character needs no type checks.
+     *
+     * @param s the string containing the number
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the units or NOT_FIXED if the number can't be parsed this way:
+     * it has too many digits, does not fit, or the format is invalid
+     */
+    private static long parseUnits(CharSequence s, int start, int end) {
+        int i = start;
+        if (i >= end) {
+            return NOT_FIXED;
+        }
+        boolean negative = false;
+        int c = s.charAt(i);
+        if (c == '-') {
+            negative = true;
+            ++i;
+        } else if (c == '+') {
+            ++i;
+        }
+        // All the mantissa digits, the decimal point is ignored
+        long value = 0;
+        // Number of digits after the decimal point stored in value
+        int fractionDigits = 0;
+        boolean pointFound = false;
+        boolean digitFound = false;
+        for (; i < end; ++i) {
+            c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digitFound = true;
+                int digit = c - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    // Only trailing zeros of the fraction can be ignored
+                    if (digit != 0 || !pointFound) {
+                        return NOT_FIXED;
+                    }
+                    continue;
+                }
+                value = value * 10 + digit;
+                if (pointFound) {
+                    ++fractionDigits;
+                }
+            } else if (c == '.' && !pointFound) {
+                pointFound = true;
+            } else if ((c == 'e' || c == 'E') && digitFound) {
+                break;
+            } else {
+                return NOT_FIXED;
+            }
+        }
+        if (!digitFound) {
+            return NOT_FIXED;
+        }
+        int exponent = 0;
+        if (i < end) {
+            // Skip the 'e'
+            ++i;
+            boolean negativeExponent = false;
+            if (i < end) {
+                c = s.charAt(i);
+                if (c == '-' || c == '+') {
+                    negativeExponent = c == '-';
+                    ++i;
+                }
+            }
+            if (i >= end) {
+                return NOT_FIXED;
+            }
+            for (; i < end; ++i) {
+                c = s.charAt(i);
+                if (c < '0' || c > '9' || exponent > 100) {
+                    return NOT_FIXED;
+                }
+                exponent = exponent * 10 + (c - '0');
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        return scaleUnits(value, DEFAULT_SCALE - fractionDigits + exponent,
+                negative);
+    }
+
+    /**
+     * Parse a decimal number from ASCII bytes directly into fixed-point
+     * units, the same way as parseUnits(CharSequence, int, int)
+     *
+     * @param s buffer containing the number
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the units or NOT_FIXED if the number can't be parsed this way:
+     * it has too many digits, does not fit, or the format is invalid
+     */
+    private static long parseUnits(byte[] s, int start, int end) {
+        int i = start;
+        if (i >= end) {
+            return NOT_FIXED;
+        }
+        boolean negative = false;
+        int c = s[i];
+        if (c == '-') {
+            negative = true;
+            ++i;
+        } else if (c == '+') {
+            ++i;
+        }
+        // All the mantissa digits, the decimal point is ignored
+        long value = 0;
+        // Number of digits after the decimal point stored in value
+        int fractionDigits = 0;
+        boolean pointFound = false;
+        boolean digitFound = false;
+        for (; i < end; ++i) {
+            c = s[i];
+            if (c >= '0' && c <= '9') {
+                digitFound = true;
+                int digit = c - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    // Only trailing zeros of the fraction can be ignored
+                    if (digit != 0 || !pointFound) {
+                        return NOT_FIXED;
+                    }
+                    continue;
+                }
+                value = value * 10 + digit;
+                if (pointFound) {
+                    ++fractionDigits;
+                }
+            } else if (c == '.' && !pointFound) {
+                pointFound = true;
+            } else if ((c == 'e' || c == 'E') && digitFound) {
+                break;
+            } else {
+                return NOT_FIXED;
+            }
+        }
+        if (!digitFound) {
+            return NOT_FIXED;
+        }
+        int exponent = 0;
+        if (i < end) {
+            // Skip the 'e'
+            ++i;
+            boolean negativeExponent = false;
+            if (i < end) {
+                c = s[i];
+                if (c == '-' || c == '+') {
+                    negativeExponent = c == '-';
+                    ++i;
+                }
+            }
+            if (i >= end) {
+                return NOT_FIXED;
+            }
+            for (; i < end; ++i) {
+                c = s[i];
+                if (c < '0' || c > '9' || exponent > 100) {
+                    return NOT_FIXED;
+                }
+                exponent = exponent * 10 + (c - '0');
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        return scaleUnits(value, DEFAULT_SCALE - fractionDigits + exponent,
+                negative);
+    }
+
+    /**
+     * Scale a parsed mantissa to fixed-point units, the result must be exact
+     *
+     * @param value all digits of the mantissa, without sign
+     * @param k power of ten to multiply the mantissa with
+     * @param negative
+     * @return the units or NOT_FIXED if the result would be rounded or does
+     * not fit
+     */
+    private static long scaleUnits(long value, int k, boolean negative) {
+        if (value == 0) {
+            return 0;
+        }
+        while (k != 0) {
+            if (k > 0) {
+                if (value > Long.MAX_VALUE / 10) {
+                    return NOT_FIXED;
+                }
+                value *= 10;
+                --k;
+            } else {
+                if (value % 10 != 0) {
+                    return NOT_FIXED;
+                }
+                value /= 10;
+                ++k;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Multiply two fixed-point values, round the result HALF_UP
+     *
+     * @param a
+     * @param b
+     * @return the product or NOT_FIXED on overflow
+     */
+    private static long multiplyUnits(long a, long b) {
+        if (Math.abs(b) > MAX_FACTOR_MULTIPLIER) {
+            if (Math.abs(a) > MAX_FACTOR_MULTIPLIER) {
+                return NOT_FIXED;
+            }
+            // Keep the smaller operand as b
+            long t = a;
+            a = b;
+            b = t;
+        }
+        // a * b / FACTOR = whole(a) * b + fraction(a) * b / FACTOR
+        // Both parts have the same sign, therefore it is enough to round
+        // only the second one
+        long whole = a / FACTOR;
+        long fraction = a % FACTOR;
+        long high;
+        if (whole == 0) {
+            high = 0;
+        } else if (Math.abs(b) > Long.MAX_VALUE / Math.abs(whole)) {
+            return NOT_FIXED;
+        } else {
+            high = whole * b;
+        }
+        // |fraction| < FACTOR and |b| <= MAX_FACTOR_MULTIPLIER, can't overflow
+        long low = fraction * b;
+        long q = low / FACTOR;
+        long r = low % FACTOR;
+        if (Math.abs(r) * 2 >= FACTOR) {
+            q += Long.signum(low);
+        }
+        long res = high + q;
+        if (((high ^ res) & (q ^ res)) < 0 || res == NOT_FIXED) {
+            return NOT_FIXED;
+        }
+        return res;
+    }
 }
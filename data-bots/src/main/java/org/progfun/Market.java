@@ -3,15 +3,21 @@ package org.progfun;
 import org.progfun.price.PriceCandle;
 import org.progfun.price.Prices;
 import org.progfun.trade.Trade;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Arrays;
 
 import org.progfun.orderbook.Book;
+import org.progfun.orderbook.BookDelta;
+import org.progfun.orderbook.BookDeltaListener;
+import org.progfun.orderbook.BookType;
+import org.progfun.orderbook.DepthCursor;
+import org.progfun.orderbook.LadderLevels;
+import org.progfun.orderbook.LevelChange;
 import org.progfun.orderbook.Order;
 import org.progfun.orderbook.OrderbookListener;
+import org.progfun.orderbook.TopOfBookListener;
 import org.progfun.price.MultiResolutionPrices;
 import org.progfun.trade.TradeListener;
+import org.progfun.trade.TradeStore;
 
 /**
  * Represents a market trading a pair of assets (Currencies). Example markets:
@@ -25,20 +31,51 @@ import org.progfun.trade.TradeListener;
  * Bitcoin would be the base currency that we are trading while US Dollar is
  * used as a quote currency.
  *
- * The class is NOT Thread safe!
+ * The class is NOT Thread safe! Only listeners can be added and removed from
+ * other threads.
  */
 public class Market {
 
     private final CurrencyPair currencyPair;
     private String symbol;
 
-    private final Book bids = new Book();
-    private final Book asks = new Book();
+    private final Book bids;
+    private final Book asks;
+    private final BookType bookType;
 
-    private final List<Trade> trades = new ArrayList<>();
+    // Price increment, when known the books use a price ladder
+    private Decimal tickSize;
+    // When true, tick size is detected from order book snapshots
+    private boolean inferTickSize = false;
+    // True when the current tick size was detected, not set explicitly
+    private boolean tickInferred = false;
 
-    private final List<OrderbookListener> bookListeners = new ArrayList<>();
-    private final List<TradeListener> tradeListeners = new ArrayList<>();
+    // Bounded, the oldest trades are dropped
+    private TradeStore trades = new TradeStore();
+
+    // Listener arrays are never modified, a new copy is made on every
+    // add/remove. Notifications iterate them without locks or iterators
+    private volatile OrderbookListener[] bookListeners
+            = new OrderbookListener[0];
+    private volatile TradeListener[] tradeListeners = new TradeListener[0];
+    private volatile BookDeltaListener[] deltaListeners
+            = new BookDeltaListener[0];
+    private volatile TopOfBookListener[] topListeners
+            = new TopOfBookListener[0];
+
+    // Changes collected for delta listeners, the objects are reused
+    private BookDelta[] deltas = new BookDelta[0];
+    private int deltaCount = 0;
+    // Number of beginBatch() calls without flushBatch()
+    private int batchDepth = 0;
+
+    // Best prices and amounts sent to top-of-book listeners the last time
+    private Decimal topBidPrice, topBidAmount, topAskPrice, topAskAmount;
+    // True when the book changed inside a batch, top of book not checked yet
+    private boolean topDirty = false;
+    // Minimum time between top-of-book notifications, ms
+    private long topInterval = 0;
+    private long lastTopTime = 0;
 
     private final MultiResolutionPrices prices = new MultiResolutionPrices();
 
@@ -83,11 +120,142 @@ public class Market {
      * @throws InvalidFormatException when currency pair missing
      */
     public Market(CurrencyPair currencyPair) {
+        this(currencyPair, BookType.TREE);
+    }
+
+    /**
+     * Creates a new market for given currency pair, with specific order book
+     * storage
+     *
+     * @param currencyPair
+     * @param bookType storage used for bids and asks. BookType.ARRAY is
+     * faster for markets where the book depth is limited
+     * @throws InvalidFormatException when currency pair missing
+     */
+    public Market(CurrencyPair currencyPair, BookType bookType) {
         if (currencyPair == null) {
             throw new InvalidFormatException(
                     "Currency pair can not be empty for a market!");
         }
         this.currencyPair = currencyPair;
+        this.bookType = bookType;
+        this.bids = new Book(bookType);
+        this.asks = new Book(bookType);
+    }
+
+    /**
+     * Set the price increment of the market. When set, bids and asks are
+     * stored in a price ladder where updates of levels close to the best
+     * price are O(1). Existing orders are kept.
+     *
+     * @param tickSize the price increment, or null to go back to the storage
+     * type the market was created with
+     */
+    public void setTickSize(Decimal tickSize) {
+        this.tickSize = tickSize;
+        this.tickInferred = false;
+        if (tickSize != null) {
+            bids.setLevels(new LadderLevels(tickSize));
+            asks.setLevels(new LadderLevels(tickSize));
+        } else {
+            bids.setLevels(bookType.createLevels());
+            asks.setLevels(bookType.createLevels());
+        }
+    }
+
+    /**
+     * Return the price increment or null if not known
+     *
+     * @return
+     */
+    public Decimal getTickSize() {
+        return tickSize;
+    }
+
+    /**
+     * Return the storage type the market was created with. It is used for
+     * the books while the tick size is not known.
+     *
+     * @return
+     */
+    public BookType getBookType() {
+        return bookType;
+    }
+
+    /**
+     * When enabled, and tick size is not set, the tick size will be detected
+     * from prices of the order book snapshots loaded with loadSnapshot(): the
+     * greatest common divisor of the price differences. A snapshot with few
+     * levels may give a tick that is too coarse, therefore every following
+     * snapshot can make the detected tick smaller (never bigger). Until then
+     * prices off the grid are kept outside the ladder, in a tree.
+     *
+     * @param inferTickSize
+     */
+    public void setInferTickSize(boolean inferTickSize) {
+        this.inferTickSize = inferTickSize;
+    }
+
+    /**
+     * Replace the whole order book with a snapshot. Listeners get one
+     * bookReplaced() notification instead of one per price level.
+     *
+     * @param bidOrders all bids, preferably sorted by price
+     * @param askOrders all asks, preferably sorted by price
+     */
+    public void loadSnapshot(Order[] bidOrders, Order[] askOrders) {
+        bids.load(bidOrders);
+        asks.load(askOrders);
+        detectTickSize();
+        for (OrderbookListener l : bookListeners) {
+            l.bookReplaced(this);
+        }
+        // Changes collected before the snapshot have no meaning anymore
+        deltaCount = 0;
+        for (BookDeltaListener l : deltaListeners) {
+            l.bookReplaced(this);
+        }
+        checkTopOfBook();
+    }
+
+    /**
+     * Detect the tick size from the snapshot, or refine a detected one, if
+     * requested
+     */
+    private void detectTickSize() {
+        if (!inferTickSize || (tickSize != null && !tickInferred)) {
+            return;
+        }
+        long tick = tickSize != null ? tickSize.getUnits() : 0;
+        for (Book b : new Book[]{bids, asks}) {
+            Decimal[] p = b.getOrderedPrices(true);
+            for (int i = 1; i < p.length; ++i) {
+                if (!p[i].isFixedPoint() || !p[i - 1].isFixedPoint()) {
+                    return;
+                }
+                tick = gcd(tick, p[i].getUnits() - p[i - 1].getUnits());
+            }
+        }
+        if (tick > 0 && (tickSize == null || tick != tickSize.getUnits())) {
+            setTickSize(Decimal.fromUnits(tick));
+            tickInferred = true;
+        }
+    }
+
+    /**
+     * Greatest common divisor
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return Math.abs(a);
     }
 
     public String getBaseCurrency() {
@@ -111,14 +279,48 @@ public class Market {
     }
 
     /**
-     * Return all currently cached real-time trades
+     * Return all currently cached real-time trades, oldest first. The store
+     * also gives access to the last N trades or the trades since a specific
+     * time, without copying.
      *
      * @return
      */
-    public Collection<Trade> getTrades() {
+    public TradeStore getTrades() {
         return trades;
     }
 
+    /**
+     * Limit the number of cached trades. By default only the last
+     * TradeStore.DEFAULT_MAX_COUNT trades are kept.
+     *
+     * @param maxCount maximum number of trades kept
+     * @param maxAge trades older than this (milliseconds, compared to the
+     * newest trade) are removed. 0 for no age limit.
+     */
+    public void setTradeLimits(int maxCount, long maxAge) {
+        trades.setLimits(maxCount, maxAge);
+    }
+
+    /**
+     * Replace the storage of trades, for example with a ColumnarTradeStore
+     * when many trades must be kept in memory. Trades already stored are
+     * moved to the new store, within its limits.
+     *
+     * @param store
+     */
+    public void setTradeStore(TradeStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("Trade store missing");
+        }
+        if (store == trades) {
+            return;
+        }
+        for (Trade t : trades) {
+            store.add(t);
+        }
+        trades = store;
+    }
+
     /**
      * Return the list of price candles
      *
@@ -130,6 +332,48 @@ public class Market {
         return prices.get(resolution);
     }
 
+    /**
+     * Create a cursor over bids, starting from the best (highest) price
+     *
+     * @return
+     */
+    public DepthCursor getBidDepth() {
+        return bids.depth(false);
+    }
+
+    /**
+     * Create a cursor over asks, starting from the best (lowest) price
+     *
+     * @return
+     */
+    public DepthCursor getAskDepth() {
+        return asks.depth(true);
+    }
+
+    /**
+     * Copy the best n bids to arrays, as fixed-point units (1e-8)
+     *
+     * @param prices
+     * @param amounts
+     * @param n
+     * @return number of bids copied
+     */
+    public int fillTopBids(long[] prices, long[] amounts, int n) {
+        return bids.fillTopN(prices, amounts, n, false);
+    }
+
+    /**
+     * Copy the best n asks to arrays, as fixed-point units (1e-8)
+     *
+     * @param prices
+     * @param amounts
+     * @param n
+     * @return number of asks copied
+     */
+    public int fillTopAsks(long[] prices, long[] amounts, int n) {
+        return asks.fillTopN(prices, amounts, n, true);
+    }
+
     /**
      * Return a copy of bid orders, limited by price
      *
@@ -169,21 +413,41 @@ public class Market {
      */
     public void addBid(Decimal price, Decimal amount, int orderCount,
             boolean increment) {
-        Order bid = new Order(price, amount, orderCount);
-        Order updatedBid = bids.add(bid, increment);
+        LevelChange change = bids.update(price, amount, orderCount, increment);
+        notifyBidChange(change, price);
+        checkTopOfBook();
+    }
+
+    /**
+     * Notify book and delta listeners about a changed bid level
+     *
+     * @param change
+     * @param price
+     */
+    private void notifyBidChange(LevelChange change, Decimal price) {
+        OrderbookListener[] listeners = bookListeners;
+        boolean collectDeltas = deltaListeners.length > 0;
+        if (listeners.length == 0 && !collectDeltas) {
+            return;
+        }
         // Notify listeners about changes
-        for (OrderbookListener l : bookListeners) {
-            if (updatedBid != null) {
-                // Check if the update resulted in a delete
-                Decimal a = updatedBid.getAmount();
-                if (a.isPositive()) {
-                    l.bidUpdated(this, updatedBid);
-                } else {
+        Order bid = change != LevelChange.REMOVED
+                ? bids.getOrderForPrice(price) : null;
+        if (collectDeltas) {
+            addDelta(true, change, price, bid);
+        }
+        for (OrderbookListener l : listeners) {
+            switch (change) {
+                case ADDED:
+                    l.bidAdded(this, bid);
+                    break;
+                case UPDATED:
+                    l.bidUpdated(this, bid);
+                    break;
+                default:
                     // Order was actually removed
                     l.bidRemoved(this, price);
-                }
-            } else {
-                l.bidAdded(this, bid);
+                    break;
             }
         }
     }
@@ -238,20 +502,41 @@ public class Market {
      */
     public void addAsk(Decimal price, Decimal amount, int orderCount,
             boolean increment) {
-        Order ask = new Order(price, amount, orderCount);
-        Order updatedAsk = asks.add(ask, increment);
+        LevelChange change = asks.update(price, amount, orderCount, increment);
+        notifyAskChange(change, price);
+        checkTopOfBook();
+    }
+
+    /**
+     * Notify book and delta listeners about a changed ask level
+     *
+     * @param change
+     * @param price
+     */
+    private void notifyAskChange(LevelChange change, Decimal price) {
+        OrderbookListener[] listeners = bookListeners;
+        boolean collectDeltas = deltaListeners.length > 0;
+        if (listeners.length == 0 && !collectDeltas) {
+            return;
+        }
         // Notify listeners about changes
-        for (OrderbookListener l : bookListeners) {
-            if (updatedAsk != null) {
-                // Check if the update resulted in a delete
-                if (updatedAsk.getAmount().isPositive()) {
-                    l.askUpdated(this, updatedAsk);
-                } else {
+        Order ask = change != LevelChange.REMOVED
+                ? asks.getOrderForPrice(price) : null;
+        if (collectDeltas) {
+            addDelta(false, change, price, ask);
+        }
+        for (OrderbookListener l : listeners) {
+            switch (change) {
+                case ADDED:
+                    l.askAdded(this, ask);
+                    break;
+                case UPDATED:
+                    l.askUpdated(this, ask);
+                    break;
+                default:
                     // Order was actually removed
                     l.askRemoved(this, price);
-                }
-            } else {
-                l.askAdded(this, ask);
+                    break;
             }
         }
     }
@@ -298,10 +583,14 @@ public class Market {
      */
     public void removeBid(Decimal price) {
         bids.remove(price);
+        if (deltaListeners.length > 0) {
+            addDelta(true, LevelChange.REMOVED, price, null);
+        }
         // Notify listeners about changes
         for (OrderbookListener l : bookListeners) {
             l.bidRemoved(this, price);
         }
+        checkTopOfBook();
     }
 
     /**
@@ -311,10 +600,14 @@ public class Market {
      */
     public void removeAsk(Decimal price) {
         asks.remove(price);
+        if (deltaListeners.length > 0) {
+            addDelta(false, LevelChange.REMOVED, price, null);
+        }
         // Notify listeners about changes
         for (OrderbookListener l : bookListeners) {
             l.askRemoved(this, price);
         }
+        checkTopOfBook();
     }
 
     /**
@@ -323,9 +616,9 @@ public class Market {
      * @param listener
      * @return true if listener was added
      */
-    public boolean addBookListener(OrderbookListener listener) {
-        if (listener != null && !bookListeners.contains(listener)) {
-            bookListeners.add(listener);
+    public synchronized boolean addBookListener(OrderbookListener listener) {
+        if (listener != null && indexOf(bookListeners, listener) < 0) {
+            bookListeners = added(bookListeners, listener);
             return true;
         } else {
             return false;
@@ -338,9 +631,42 @@ public class Market {
      * @param listener
      * @return true if listener was added
      */
-    public boolean addTradeListener(TradeListener listener) {
-        if (listener != null && !tradeListeners.contains(listener)) {
-            tradeListeners.add(listener);
+    public synchronized boolean addTradeListener(TradeListener listener) {
+        if (listener != null && indexOf(tradeListeners, listener) < 0) {
+            tradeListeners = added(tradeListeners, listener);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Add a new listener for batches of order book changes, if it is not
+     * already registered
+     *
+     * @param listener
+     * @return true if listener was added
+     */
+    public synchronized boolean addDeltaListener(BookDeltaListener listener) {
+        if (listener != null && indexOf(deltaListeners, listener) < 0) {
+            deltaListeners = added(deltaListeners, listener);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Add a new listener for best bid and ask changes, if it is not already
+     * registered
+     *
+     * @param listener
+     * @return true if listener was added
+     */
+    public synchronized boolean addTopOfBookListener(
+            TopOfBookListener listener) {
+        if (listener != null && indexOf(topListeners, listener) < 0) {
+            topListeners = added(topListeners, listener);
             return true;
         } else {
             return false;
@@ -353,8 +679,249 @@ public class Market {
      * @param listener
      * @return
      */
-    public boolean removeListener(OrderbookListener listener) {
-        return bookListeners.remove(listener);
+    public synchronized boolean removeListener(OrderbookListener listener) {
+        int i = indexOf(bookListeners, listener);
+        if (i < 0) {
+            return false;
+        }
+        bookListeners = removed(bookListeners, i);
+        return true;
+    }
+
+    /**
+     * Remove trade listener. Return true if it was in the list.
+     *
+     * @param listener
+     * @return
+     */
+    public synchronized boolean removeTradeListener(TradeListener listener) {
+        int i = indexOf(tradeListeners, listener);
+        if (i < 0) {
+            return false;
+        }
+        tradeListeners = removed(tradeListeners, i);
+        return true;
+    }
+
+    /**
+     * Remove delta listener. Return true if it was in the list.
+     *
+     * @param listener
+     * @return
+     */
+    public synchronized boolean removeDeltaListener(BookDeltaListener listener) {
+        int i = indexOf(deltaListeners, listener);
+        if (i < 0) {
+            return false;
+        }
+        deltaListeners = removed(deltaListeners, i);
+        return true;
+    }
+
+    /**
+     * Remove top-of-book listener. Return true if it was in the list.
+     *
+     * @param listener
+     * @return
+     */
+    public synchronized boolean removeTopOfBookListener(
+            TopOfBookListener listener) {
+        int i = indexOf(topListeners, listener);
+        if (i < 0) {
+            return false;
+        }
+        topListeners = removed(topListeners, i);
+        return true;
+    }
+
+    /**
+     * Find position of a listener in a listener array
+     *
+     * @param listeners
+     * @param listener
+     * @return index or -1 if not found
+     */
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return a copy of the array with one more element at the end
+     */
+    private static <T> T[] added(T[] listeners, T listener) {
+        T[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+        copy[listeners.length] = listener;
+        return copy;
+    }
+
+    /**
+     * Return a copy of the array without the element at position i
+     */
+    private static <T> T[] removed(T[] listeners, int i) {
+        T[] copy = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+        return copy;
+    }
+
+    /**
+     * Start collecting order book changes: delta listeners are notified
+     * only when flushBatch() is called, once for all the changes. Top of
+     * book is checked only once per batch too. Parsers call it around the
+     * changes of one API message. Calls can be nested.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Notify delta listeners about all changes made since beginBatch()
+     */
+    public void flushBatch() {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+        if (batchDepth == 0) {
+            flushDeltas();
+            if (topDirty) {
+                checkTopOfBook();
+            }
+        }
+    }
+
+    /**
+     * Set minimum time between two top-of-book notifications. When the best
+     * bid or ask changes sooner, the notification is postponed until the
+     * next order book change after the interval, or until
+     * flushDueTopOfBook() or flushTopOfBook() is called. Listeners then get
+     * only the latest quote. WebSocketHandler.setTopOfBookInterval() sets the
+     * interval for all the subscribed markets and delivers the postponed
+     * quotes when no more changes come.
+     *
+     * @param millis 0 to notify on every change (default)
+     */
+    public void setTopOfBookInterval(long millis) {
+        this.topInterval = Math.max(0, millis);
+    }
+
+    /**
+     * Send a postponed top-of-book notification now, ignoring the interval.
+     * Can be called periodically by the thread updating the market.
+     */
+    public void flushTopOfBook() {
+        if (topDirty && batchDepth == 0) {
+            notifyTopOfBook();
+        }
+    }
+
+    /**
+     * Send a postponed top-of-book notification if the interval since the
+     * last one has passed. Call it periodically on the thread updating the
+     * market, so that the last quote is not held back until the next change.
+     */
+    public void flushDueTopOfBook() {
+        if (topDirty) {
+            checkTopOfBook();
+        }
+    }
+
+    /**
+     * Notify top-of-book listeners if the best bid or ask changed since the
+     * last notification
+     */
+    private void checkTopOfBook() {
+        if (topListeners.length == 0) {
+            return;
+        }
+        topDirty = true;
+        if (batchDepth > 0) {
+            return;
+        }
+        if (topInterval > 0
+                && System.currentTimeMillis() - lastTopTime < topInterval) {
+            return;
+        }
+        notifyTopOfBook();
+    }
+
+    /**
+     * Compare the best bid and ask with the last notified ones, notify the
+     * listeners when different
+     */
+    private void notifyTopOfBook() {
+        topDirty = false;
+        Order bestBid = getBestBid();
+        Order bestAsk = getBestAsk();
+        Decimal bidPrice = bestBid != null ? bestBid.getPrice() : null;
+        Decimal bidAmount = bestBid != null ? bestBid.getAmount() : null;
+        Decimal askPrice = bestAsk != null ? bestAsk.getPrice() : null;
+        Decimal askAmount = bestAsk != null ? bestAsk.getAmount() : null;
+        if (same(bidPrice, topBidPrice) && same(bidAmount, topBidAmount)
+                && same(askPrice, topAskPrice)
+                && same(askAmount, topAskAmount)) {
+            return;
+        }
+        topBidPrice = bidPrice;
+        topBidAmount = bidAmount;
+        topAskPrice = askPrice;
+        topAskAmount = askAmount;
+        lastTopTime = System.currentTimeMillis();
+        for (TopOfBookListener l : topListeners) {
+            l.topOfBookChanged(this, bestBid, bestAsk);
+        }
+    }
+
+    /**
+     * Null-safe comparison of two numbers
+     */
+    private static boolean same(Decimal a, Decimal b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Record a change for delta listeners. Outside a batch, listeners are
+     * notified immediately.
+     *
+     * @param bid
+     * @param change
+     * @param price
+     * @param order the price level after the change, null when removed
+     */
+    private void addDelta(boolean bid, LevelChange change, Decimal price,
+            Order order) {
+        if (deltaCount == deltas.length) {
+            deltas = Arrays.copyOf(deltas, Math.max(16, deltas.length * 2));
+            for (int i = deltaCount; i < deltas.length; ++i) {
+                deltas[i] = new BookDelta();
+            }
+        }
+        if (order != null) {
+            Integer count = order.getCount();
+            deltas[deltaCount++].set(bid, change, price, order.getAmount(),
+                    count != null ? count : 0);
+        } else {
+            deltas[deltaCount++].set(bid, change, price, Decimal.ZERO, 0);
+        }
+        if (batchDepth == 0) {
+            flushDeltas();
+        }
+    }
+
+    /**
+     * Send the collected changes to delta listeners
+     */
+    private void flushDeltas() {
+        if (deltaCount == 0) {
+            return;
+        }
+        for (BookDeltaListener l : deltaListeners) {
+            l.onBookDelta(this, deltas, deltaCount);
+        }
+        deltaCount = 0;
     }
 
     /**
@@ -398,6 +965,7 @@ public class Market {
     public void clearOrderBook() {
         bids.clear();
         asks.clear();
+        checkTopOfBook();
     }
 
     /**
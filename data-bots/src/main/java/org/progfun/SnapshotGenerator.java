@@ -2,8 +2,6 @@ package org.progfun;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import org.progfun.websocket.WebSocketHandler;
 
 /**
@@ -13,7 +11,7 @@ public class SnapshotGenerator {
 
     private Exchange exchange;
     private final List<SnapshotListener> listeners = new LinkedList<>();
-    private Timer timer;
+    private SnapshotTimer timer;
     private final boolean deleteTrades;
     private final boolean deletePrices;
     private final WebSocketHandler handler;
@@ -27,7 +25,9 @@ public class SnapshotGenerator {
      * Create a new snapshot generator
      *
      * @param handler associated WebSocket handler
-     * @param deleteTrades when true, trades will be cleared after each snapshot
+     * @param deleteTrades when true, trades will be cleared after each snapshot.
+     * Otherwise the markets keep the most recent trades, see
+     * Market.setTradeLimits()
      * @param deletePrices when true, prices will be cleared after each snapshot
      */
     public SnapshotGenerator(WebSocketHandler handler, boolean deleteTrades,
@@ -37,8 +37,6 @@ public class SnapshotGenerator {
         this.deletePrices = deletePrices;
     }
 
-    private TimerTask task;
-
     public void setExchange(Exchange exchange) {
         this.exchange = exchange;
     }
@@ -68,17 +66,8 @@ public class SnapshotGenerator {
      */
     public void schedule(long interval) {
         stop(); // Stop previous timer if one running
-        timer = new Timer(true);
-        // We must create new task every time. Otherwise we get 
-        // "IllegalStateException" the 2nd time we schedule the same task
-        task = new TimerTask() {
-            @Override
-            public void run() {
-                // We want to handle the notification on the main HandlerThread
-                handler.scheduleExecution(notifier);
-            }
-        };
-        timer.scheduleAtFixedRate(task, interval, interval);
+        timer = new SnapshotTimer(interval);
+        ThreadLauncher.start(timer, "Snapshot Timer", true);
         Logger.log("Snapshot generator started");
     }
 
@@ -112,4 +101,50 @@ public class SnapshotGenerator {
         }
     }
 
+    /**
+     * Triggers snapshots at a fixed rate. Used instead of java.util.Timer, so
+     * that it can run on a virtual thread, see ThreadLauncher.
+     */
+    private class SnapshotTimer implements Runnable {
+
+        private final long interval;
+        private volatile boolean running = true;
+        private volatile Thread thread;
+
+        SnapshotTimer(long interval) {
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long next = System.currentTimeMillis() + interval;
+            while (running) {
+                long delay = next - System.currentTimeMillis();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        // Cancelled, the loop condition will tell
+                    }
+                    continue;
+                }
+                // We want to handle the notification on the main HandlerThread
+                handler.scheduleExecution(notifier);
+                next += interval;
+            }
+        }
+
+        /**
+         * Stop the timer, no more snapshots will be triggered
+         */
+        void cancel() {
+            running = false;
+            Thread t = thread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+
 }
@@ -1,17 +1,20 @@
 package org.progfun;
 
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Holds a list of subscriptions for Exchange API
+ * Holds a list of subscriptions for Exchange API. Only getActive() may be
+ * called from other threads than the Handler thread.
  */
 public class Subscriptions {
 
-    // Active subscriptions
-    private final Map<String, Subscription> activeSubs = new HashMap<>();
+    // Active subscriptions. Market workers look them up while the Handler
+    // thread activates new ones
+    private final Map<String, Subscription> activeSubs
+            = new ConcurrentHashMap<>();
     // Inactive subscriptions
     private final List<Subscription> inactiveSubs = new LinkedList<>();
 
@@ -88,6 +91,20 @@ public class Subscriptions {
         subscription.setId(subsId);
     }
 
+    /**
+     * Move an active subscription back to the inactive list, so that it will
+     * be subscribed again
+     *
+     * @param subscription
+     */
+    public void deactivate(Subscription subscription) {
+        if (subscription.getId() != null) {
+            activeSubs.remove(subscription.getId());
+        }
+        subscription.setId(null);
+        addInactive(subscription);
+    }
+
     /**
      * Set temporary ID for an inactive subscriptions
      *
@@ -131,6 +148,9 @@ public class Subscriptions {
      * @return subscription or null if no active subscription with give ID found
      */
     public Subscription getActive(String subsId) {
+        if (subsId == null) {
+            return null;
+        }
         return activeSubs.get(subsId);
     }
 
@@ -146,6 +166,34 @@ public class Subscriptions {
         activeSubs.clear();
     }
 
+    /**
+     * Set minimum time between top-of-book notifications for the markets of
+     * all inactive subscriptions, see Market.setTopOfBookInterval()
+     *
+     * @param millis
+     */
+    public void setTopOfBookInterval(long millis) {
+        for (Subscription s : inactiveSubs) {
+            Market m = s.getMarket();
+            if (m != null) {
+                m.setTopOfBookInterval(millis);
+            }
+        }
+    }
+
+    /**
+     * Send postponed top-of-book notifications of markets with an active
+     * order book subscription, see Market.flushDueTopOfBook()
+     */
+    public void flushTopOfBook() {
+        for (Subscription s : activeSubs.values()) {
+            Market m = s.getMarket();
+            if (m != null && s.getChannel() == Channel.ORDERBOOK) {
+                m.flushDueTopOfBook();
+            }
+        }
+    }
+
     /**
      * Clear data for all markets bound to both active and inactive
      * subscriptions
@@ -0,0 +1,115 @@
+package org.progfun;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts the threads used by the crawlers: Handler threads, market workers,
+ * WebSocket readers and snapshot schedulers. By default normal (platform)
+ * threads are used. When virtual threads are enabled and the JVM supports
+ * them (Java 21 and newer), virtual threads are used instead, which is much
+ * cheaper when many crawlers run in one JVM.
+ *
+ * The library targets Java 8, therefore virtual threads are created through
+ * reflection. Note: virtual threads are always daemon threads, they do not
+ * keep the JVM alive!
+ */
+public class ThreadLauncher {
+
+    // Thread.ofVirtual() and Thread.Builder methods, null when not supported
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (NoSuchMethodException | ClassNotFoundException ex) {
+            // Older JVM, only platform threads available
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    private static volatile boolean virtualThreads = false;
+
+    /**
+     * Check if the JVM supports virtual threads
+     *
+     * @return
+     */
+    public static boolean isVirtualAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Use virtual threads for all threads started from now on, if the JVM
+     * supports them. Platform threads are used otherwise.
+     *
+     * @param enabled
+     */
+    public static void setVirtualThreads(boolean enabled) {
+        if (enabled && !isVirtualAvailable()) {
+            Logger.log("Virtual threads not supported by this JVM, "
+                    + "using platform threads");
+        }
+        virtualThreads = enabled;
+    }
+
+    /**
+     * Check if new threads will be virtual
+     *
+     * @return
+     */
+    public static boolean isVirtualEnabled() {
+        return virtualThreads && isVirtualAvailable();
+    }
+
+    /**
+     * Start a new thread
+     *
+     * @param task code to run in the thread
+     * @param name name of the thread, used for debugging
+     * @param daemon when true, the thread does not keep the JVM alive. Ignored
+     * for virtual threads, they are always daemon threads.
+     * @return the started thread
+     */
+    public static Thread start(Runnable task, String name, boolean daemon) {
+        Thread t = null;
+        if (isVirtualEnabled()) {
+            t = createVirtual(task, name);
+        }
+        if (t == null) {
+            t = new Thread(task, name);
+            t.setDaemon(daemon);
+        }
+        t.start();
+        return t;
+    }
+
+    /**
+     * Create a virtual thread, not started
+     *
+     * @param task
+     * @param name
+     * @return the thread or null when it could not be created
+     */
+    private static Thread createVirtual(Runnable task, String name) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            Logger.log("Could not create virtual thread: " + ex.getMessage());
+            return null;
+        }
+    }
+}
@@ -16,6 +16,22 @@ public class BitFinexHandler extends WebSocketHandler {
 
     private static final String API_URL = "wss://api.bitfinex.com/ws/2";
 
+    // Configuration flag: send checksum of the order book after every update
+    private static final int OB_CHECKSUM_FLAG = 131072;
+
+    // When true, order books are verified with checksums sent by the API
+    private boolean checksums = true;
+
+    /**
+     * Enable or disable order book verification with checksums. Enabled by
+     * default. Takes effect on the next connection.
+     *
+     * @param checksums
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
     @Override
     protected String getUrl() {
         return API_URL;
@@ -28,7 +44,10 @@ public class BitFinexHandler extends WebSocketHandler {
 
     @Override
     public void init() {
-        // Nothing to do initially
+        if (checksums && connector != null) {
+            connector.send("{\"event\":\"conf\", \"flags\":"
+                    + OB_CHECKSUM_FLAG + "}");
+        }
     }
 
     @Override
@@ -136,6 +155,23 @@ public class BitFinexHandler extends WebSocketHandler {
 
     }
 
+    /**
+     * Unsubscribe from a channel, identified by the channel ID assigned by
+     * the API
+     *
+     * @param s
+     * @return
+     */
+    @Override
+    protected boolean unsubscribeFromChannel(Subscription s) {
+        if (connector == null || s == null || s.getId() == null) {
+            return false;
+        }
+        connector.send("{\"event\":\"unsubscribe\", \"chanId\":"
+                + s.getId() + "}");
+        return true;
+    }
+
     @Override
     public boolean supportsOrderbook() {
         return true;
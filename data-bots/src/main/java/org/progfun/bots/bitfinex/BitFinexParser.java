@@ -1,19 +1,25 @@
 package org.progfun.bots.bitfinex;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.progfun.Channel;
 import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
 import org.progfun.Logger;
 import org.progfun.Market;
 import org.progfun.price.PriceCandle;
 import org.progfun.Subscription;
+import org.progfun.orderbook.Order;
 import org.progfun.trade.Trade;
 import org.progfun.websocket.Action;
 import org.progfun.websocket.Parser;
 import org.progfun.websocket.Event;
+import org.progfun.websocket.JsonReader;
+import org.progfun.websocket.JsonToken;
 
 /**
  *
@@ -28,69 +34,174 @@ public class BitFinexParser extends Parser {
 
     private static final int EXPECTED_VERSION = 2;
 
+    private JsonReader reader;
+    private final BookChecksum checksum = new BookChecksum();
+    // The last channel which received data, and its subscription
+    private int lastChannelId;
+    private Subscription lastSubscription;
+    // Channels which are being unsubscribed, their data is ignored
+    private final Set<Integer> closingChannels = new HashSet<>();
+
     @Override
     public Event parseMessage(String message) {
-        // We don't know whether we will receive a JSON Object or JSON array
-        // Try one first, if it fails, try another. JSONArray is more likely,
-        // we try it first
+        try {
+            reader = startReading(message);
+            return parseCurrentMessage();
+        } catch (InvalidFormatException ex) {
+            return formatError(ex);
+        }
+    }
 
+    @Override
+    public Event parseMessage(ByteBuffer message) {
+        // Messages are ASCII JSON, read the bytes without decoding them
         try {
-            JSONArray updateMsg = new JSONArray(message);
-            // We got a valid JSON array. Now let's find out if it is a snapshot
-            // or update
-            int channelId = updateMsg.getInt(0);
-            if (updateMsg.length() > 1) {
-                Object val = updateMsg.get(1);
-                if (val instanceof JSONArray) {
-                    // Some data received
-                    JSONArray data = (JSONArray) val;
-                    // First item should be channel id
-                    return parseDataMessage(channelId, data);
-                } else if (val instanceof String) {
-                    // This may be a heartbeat message
-                    String sv = (String) val;
-                    if ("hb".equals(sv)) {
-                        return heartbeatReceived();
-                    } else if ("te".equals(sv)) {
-                        // Trade updates have a bit different format
-                        Object val2 = updateMsg.get(2);
-                        if (val2 instanceof JSONArray) {
-                            JSONArray data = (JSONArray) val2;
-                            return parseDataMessage(channelId, data);
-                        }
-                    } else if ("tu".equals(sv)) {
-                        // "tu" is a trade update which historically included 
-                        // some additional information. Now it is just a 
-                        // duplicate of "te" message
-                        return null;
-                    }
-                }
-            }
-            // If we got here, something is wrong
-            return shutDownAction("Could not understand API response: "
-                    + message);
-        } catch (JSONException ex) {
+            reader = startReading(message);
+            return parseCurrentMessage();
+        } catch (InvalidFormatException ex) {
+            return formatError(ex);
+        }
+    }
+
+    @Override
+    public Market routeMessage(String message) {
+        try {
+            reader = startReading(message);
+            return routeCurrentMessage();
+        } catch (InvalidFormatException ex) {
+            // Let the parser report it
+            return null;
         }
+    }
 
-        // Check if it is an event message
+    @Override
+    public Market routeMessage(ByteBuffer message) {
         try {
-            JSONObject event = new JSONObject(message);
-            return parseEvent(event);
-        } catch (JSONException ex) {
-            return shutDownAction("Could not understand API response: "
-                    + message + ", excaption: " + ex.getMessage());
+            reader = startReading(message);
+            return routeCurrentMessage();
+        } catch (InvalidFormatException ex) {
+            return null;
         }
     }
 
     /**
-     * Parse one API response which contains data
+     * Find the market of a data message: [chanId, ...] of an active channel
+     *
+     * @return the market or null for all other messages
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Market routeCurrentMessage() {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            return null;
+        }
+        reader.beginArray();
+        Subscription s = getSubscription(reader.nextInt());
+        return s != null ? s.getMarket() : null;
+    }
+
+    @Override
+    public void onUnsubscribing(Subscription s) {
+        try {
+            closingChannels.add(Integer.parseInt(s.getId()));
+        } catch (NumberFormatException ex) {
+            Logger.log("Invalid channel ID: " + s.getId());
+        }
+    }
+
+    /**
+     * Parse the message the reader is positioned at
+     *
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Event parseCurrentMessage() {
+        // Data messages are arrays, events are objects
+        JsonToken first = reader.peek();
+        if (first == JsonToken.BEGIN_ARRAY) {
+            return parseArrayMessage();
+        } else if (first == JsonToken.BEGIN_OBJECT) {
+            return parseEvent(readEvent(), getMessageText());
+        }
+        return shutDownAction("Could not understand API response: "
+                + getMessageText());
+    }
+
+    /**
+     * Report a message which could not be parsed
+     *
+     * @param ex
+     * @return
+     */
+    private Event formatError(InvalidFormatException ex) {
+        return shutDownAction("Could not understand API response: "
+                + getMessageText() + ", exception: " + ex.getMessage());
+    }
+
+    /**
+     * Parse a message in format [chanId, data] or [chanId, "type", ...]
+     *
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Event parseArrayMessage() {
+        reader.beginArray();
+        int channelId = reader.nextInt();
+        JsonToken t = reader.peek();
+        if (t == JsonToken.BEGIN_ARRAY) {
+            // Some data received
+            return parseDataMessage(channelId);
+        } else if (t == JsonToken.STRING) {
+            switch (reader.nextString()) {
+                case "hb":
+                    return heartbeatReceived();
+                case "cs":
+                    return verifyChecksum(channelId, reader.nextInt());
+                case "te":
+                    // Trade updates have a bit different format
+                    return parseDataMessage(channelId);
+                case "tu":
+                    // "tu" is a trade update which historically included
+                    // some additional information. Now it is just a
+                    // duplicate of "te" message
+                    return null;
+            }
+        }
+        throw new InvalidFormatException("Unknown message type");
+    }
+
+    /**
+     * Find the active subscription for a channel ID. The last one is cached,
+     * most messages come for the same channel.
+     *
+     * @param channelId
+     * @return the subscription or null if it is not active
+     */
+    private Subscription getSubscription(int channelId) {
+        Subscription s = lastSubscription;
+        if (s != null && channelId == lastChannelId
+                && s == subscriptions.getActive(s.getId())) {
+            return s;
+        }
+        s = subscriptions.getActive("" + channelId);
+        lastSubscription = s;
+        lastChannelId = channelId;
+        return s;
+    }
+
+    /**
+     * Parse one API response which contains data: a snapshot (array of
+     * tuples) or an update (one tuple)
      *
      * @param channelId ID identifying the channel (Subscription)
-     * @param data
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parseDataMessage(int channelId, JSONArray data) {
-        Subscription subscription = subscriptions.getActive("" + channelId);
+    private Event parseDataMessage(int channelId) {
+        Subscription subscription = getSubscription(channelId);
+        if (subscription == null && closingChannels.contains(channelId)) {
+            // Data sent before the unsubscribe request was processed
+            return null;
+        }
         if (subscription == null) {
             return shutDownAction("Wrong channel ID for data update: "
                     + channelId);
@@ -100,88 +211,170 @@ public class BitFinexParser extends Parser {
             return shutDownAction("Trying to parse snapshot without market!");
         }
 
-        // Check if we got snapshot or update
-        if (data.length() > 1) {
-            Object firstItem = data.get(0);
-            Channel channel = subscription.getChannel();
-            if (firstItem instanceof JSONArray) {
-                switch (channel) {
-                    case ORDERBOOK:
-                        return parseOrderSnapshot(market, data);
-                    case TRADES:
-                        return parseTradeSnapshot(market, data);
-                    case PRICES_1MIN:
-                    case PRICES_5MIN:
-                    case PRICES_15MIN:
-                    case PRICES_30MIN:
-                    case PRICES_1H:
-                    case PRICES_3H:
-                    case PRICES_6H:
-                    case PRICES_12H:
-                    case PRICES_1D:
-                    case PRICES_1W:
-                        return parsePriceSnapshot(market, data, channel);
-                    default:
-                        return shutDownAction(
-                                "Snapshot for unsupported channel: " + channel);
-                }
-            } else {
-                switch (channel) {
-                    case ORDERBOOK:
-                        return parseOrderUpdate(market, data);
-                    case TRADES:
-                        return parseTrade(market, data);
-                    case PRICES_1MIN:
-                    case PRICES_5MIN:
-                    case PRICES_15MIN:
-                    case PRICES_30MIN:
-                    case PRICES_1H:
-                    case PRICES_3H:
-                    case PRICES_6H:
-                    case PRICES_12H:
-                    case PRICES_1D:
-                    case PRICES_1W:
-                        return parsePrice(market, data, channel);
-                    default:
-                        return shutDownAction("Update for unsupported channel: "
-                                + channel);
-                }
+        reader.beginArray();
+        JsonToken first = reader.peek();
+        if (first == JsonToken.END_ARRAY) {
+            return shutDownAction("Wrong data message, not enough items");
+        }
+        Channel channel = subscription.getChannel();
+        if (first == JsonToken.BEGIN_ARRAY) {
+            switch (channel) {
+                case ORDERBOOK:
+                    return parseOrderSnapshot(market);
+                case TRADES:
+                    return parseTradeSnapshot(market);
+                case PRICES_1MIN:
+                case PRICES_5MIN:
+                case PRICES_15MIN:
+                case PRICES_30MIN:
+                case PRICES_1H:
+                case PRICES_3H:
+                case PRICES_6H:
+                case PRICES_12H:
+                case PRICES_1D:
+                case PRICES_1W:
+                    return parsePriceSnapshot(market, channel);
+                default:
+                    return shutDownAction(
+                            "Snapshot for unsupported channel: " + channel);
             }
         } else {
-            return shutDownAction("Wrong data message, not enough items: "
-                    + data);
+            switch (channel) {
+                case ORDERBOOK:
+                    return parseOrderUpdate(market);
+                case TRADES:
+                    market.addTrade(parseTrade());
+                    return null;
+                case PRICES_1MIN:
+                case PRICES_5MIN:
+                case PRICES_15MIN:
+                case PRICES_30MIN:
+                case PRICES_1H:
+                case PRICES_3H:
+                case PRICES_6H:
+                case PRICES_12H:
+                case PRICES_1D:
+                case PRICES_1W:
+                    market.addPrice(channel, parsePrice(channel));
+                    return null;
+                default:
+                    return shutDownAction("Update for unsupported channel: "
+                            + channel);
+            }
+        }
+    }
+
+    /**
+     * Fields of an event message, {"event":"...", ...}. The fields can come
+     * in any order, therefore all of them are read before the event is
+     * handled.
+     */
+    private static class EventFields {
+
+        String event;
+        String channel;
+        String symbol;
+        String key;
+        String msg;
+        Integer chanId;
+        Integer code;
+        Integer version;
+    }
+
+    /**
+     * Read all the interesting fields of an event message
+     *
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private EventFields readEvent() {
+        EventFields e = new EventFields();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "event":
+                    e.event = readOptionalString();
+                    break;
+                case "channel":
+                    e.channel = readOptionalString();
+                    break;
+                case "symbol":
+                    e.symbol = readOptionalString();
+                    break;
+                case "key":
+                    e.key = readOptionalString();
+                    break;
+                case "msg":
+                    e.msg = readOptionalString();
+                    break;
+                case "chanId":
+                    e.chanId = reader.nextInt();
+                    break;
+                case "code":
+                    e.code = reader.nextInt();
+                    break;
+                case "version":
+                    e.version = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return e;
+    }
+
+    /**
+     * Read a string value which may be null
+     *
+     * @return
+     */
+    private String readOptionalString() {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
         }
+        return reader.nextString();
     }
 
-    private Event parseEvent(JSONObject event) {
-        String eventType = event.getString("event");
+    private Event parseEvent(EventFields event, String message) {
+        String eventType = event.event;
         if (eventType != null) {
             switch (eventType) {
                 case "subscribed":
-                    return parseSubscriptionResponse(event);
+                    return parseSubscriptionResponse(event, message);
                 case "error":
-                    Logger.log("Error occurred: " + event.getString("msg")
-                            + ", code = " + event.getInt("code"));
-                    return shutDownAction("Received msg: " + event);
+                    Logger.log("Error occurred: " + event.msg
+                            + ", code = " + event.code);
+                    return shutDownAction("Received msg: " + message);
                 case "info":
-                    return parseInfo(event);
+                    return parseInfo(event, message);
+                case "conf":
+                    Logger.log("Configuration response: " + message);
+                    return null;
+                case "unsubscribed":
+                    if (event.chanId != null) {
+                        closingChannels.remove(event.chanId);
+                    }
+                    return null;
             }
         }
 
         Logger.log("Did not receive 'event' field!");
-        return shutDownAction("Received msg: " + event);
+        return shutDownAction("Received msg: " + message);
     }
 
     /**
      * Parse info event
      *
      * @param event
+     * @param message
      * @return
      */
-    private Event parseInfo(JSONObject event) {
-        Logger.log("Info message received: " + event);
-        if (event.has("version")) {
-            int v = event.getInt("version");
+    private Event parseInfo(EventFields event, String message) {
+        Logger.log("Info message received: " + message);
+        if (event.version != null) {
+            int v = event.version;
             Logger.log("Received version info: " + v);
             if (v == EXPECTED_VERSION) {
                 return null;
@@ -197,14 +390,17 @@ public class BitFinexParser extends Parser {
         }
     }
 
-    private Event parseSubscriptionResponse(JSONObject msg) {
+    private Event parseSubscriptionResponse(EventFields msg, String message) {
         if (subscriptions == null) {
             return shutDownAction("Error: received subscription response "
                     + "but subscriptions not set in BitFinexParser!");
         }
 
         // Find out the channel
-        String ch = msg.getString("channel");
+        String ch = msg.channel;
+        if (ch == null) {
+            return shutDownAction("Channel missing, msg: " + message);
+        }
         Channel channel;
         switch (ch) {
             case "book":
@@ -228,7 +424,7 @@ public class BitFinexParser extends Parser {
             symbol = null;
 
             // Candle channel does not include a symbol, rather a key
-            String key = msg.getString("key");
+            String key = msg.key;
             // The key is expected to be in the format trades:<resolution>:t<symbol>
             if (key != null && key.length() > 10
                     && key.substring(0, 6).equals("trade:")) {
@@ -250,66 +446,111 @@ public class BitFinexParser extends Parser {
             } else {
             }
         } else {
-            symbol = msg.getString("symbol");
+            symbol = msg.symbol;
         }
         // strip the first "t"
         if (symbol == null || symbol.length() < 1) {
-            return shutDownAction("Wrong symbol received, msg: " + msg);
+            return shutDownAction("Wrong symbol received, msg: " + message);
         }
         symbol = symbol.substring(1);
 
         String subsId = getInactiveSubsSymbol(symbol, channel);
         Subscription s = subscriptions.getInactive(subsId);
         if (s != null) {
+            if (msg.chanId == null) {
+                return shutDownAction("Channel ID missing, msg: " + message);
+            }
             // Activate the subscription, store the new ID
-            int newId = msg.getInt("chanId");
-            subscriptions.activate("" + newId, s);
+            subscriptions.activate("" + msg.chanId, s);
         }
 
         // Tell the Handler that we are ready to process next subscription
         return new Event(Action.SUBSCRIBE, s, "Subscription successful");
     }
 
-    private Event parseOrderSnapshot(Market market, JSONArray data) {
-        if (data.length() < 1) {
-            return shutDownAction("Wrong snapshot received: " + data);
+    /**
+     * Compare the order book checksum sent by the API with our book
+     *
+     * @param channelId
+     * @param expected checksum sent by the API
+     * @return request to subscribe to the order book again if the checksum
+     * does not match, null otherwise
+     */
+    private Event verifyChecksum(int channelId, int expected) {
+        Subscription s = getSubscription(channelId);
+        if (s == null || s.getChannel() != Channel.ORDERBOOK) {
+            return null;
         }
-
-        // Clear previous orders, start fresh
-        market.clearOrderBook();
-
-        // Snapshot is an array of updates
+        boolean valid;
         try {
-            for (int i = 0; i < data.length(); ++i) {
-                JSONArray values = data.getJSONArray(i);
-                Event resp = parseOrderUpdate(market, values);
-                if (resp != null) {
-                    return resp;
-                }
+            valid = checksum.calculate(s.getMarket()) == expected;
+        } catch (ArithmeticException ex) {
+            // Prices which BitFinex could not have sent
+            valid = false;
+        }
+        if (valid) {
+            return null;
+        }
+        Logger.log("Order book checksum mismatch for " + s.getMarket());
+        closingChannels.add(channelId);
+        return new Event(Action.RESUBSCRIBE, s, "Order book checksum mismatch");
+    }
+
+    /**
+     * Parse a snapshot of the orderbook: an array of [price, count, amount]
+     * tuples. The opening bracket of the snapshot is already consumed.
+     *
+     * @param market
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Event parseOrderSnapshot(Market market) {
+        // Bids come first, sorted by price, then asks. Load all of them at
+        // once
+        List<Order> bids = new ArrayList<>();
+        List<Order> asks = new ArrayList<>();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            Decimal price = reader.nextDecimal();
+            int count = reader.nextInt();
+            Decimal amount = reader.nextDecimal();
+            endTuple();
+            if (count <= 0) {
+                continue;
+            }
+            if (amount.isPositive()) {
+                bids.add(new Order(price, amount, count));
+            } else if (amount.isNegative()) {
+                asks.add(new Order(price, amount.negate(), count));
             }
-        } catch (JSONException ex) {
-            return shutDownAction("Error in BitFinex snapshot parsing:"
-                    + ex.getMessage());
         }
+        market.loadSnapshot(bids.toArray(new Order[bids.size()]),
+                asks.toArray(new Order[asks.size()]));
         return null;
     }
 
     /**
-     * Parse message that contains one update to the orderbook
+     * Parse one update to the orderbook: [price, count, amount]. The opening
+     * bracket is already consumed.
      *
      * @param market
-     * @param values
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parseOrderUpdate(Market market, JSONArray values) {
+    private Event parseOrderUpdate(Market market) {
+        // The side is known only from the amount, which comes later. Any
+        // object with the right value works as a price, therefore the cache
+        // of the bid book is used for both sides
+        Decimal price = reader.nextPrice(market.getBids());
+        int count = reader.nextInt();
+        Decimal amount = reader.nextDecimal();
+        // One batch per message, same as for the other exchanges
+        market.beginBatch();
         try {
-            Decimal price = new Decimal(values.getDouble(0));
-            int count = values.getInt(1);
-            Decimal amount = new Decimal(values.getDouble(2));
             if (count > 0) {
-                // BitFinex always reports the total updated amount, 
-                // not the difference. Therefore we must set the final value, 
-                // not increment
+                // BitFinex always reports the total updated amount,
+                // not the difference. Therefore we must set the final
+                // value, not increment
                 if (amount.isPositive()) {
                     market.addBid(price, amount, count, false);
                 } else if (amount.isNegative()) {
@@ -322,144 +563,111 @@ public class BitFinexParser extends Parser {
                     market.removeAsk(price);
                 }
             }
-
-            return null;
-        } catch (JSONException e) {
-            Logger.log("Error while parsing JSON msg: " + values);
-            return shutDownAction("Error in BitFinex update parsing:"
-                    + e.getMessage());
+        } finally {
+            market.flushBatch();
         }
+        return null;
     }
 
     /**
-     * Parse message that contains snapshot of trades
+     * Parse a snapshot of trades: an array of trade tuples. The opening
+     * bracket of the snapshot is already consumed.
      *
      * @param market
-     * @param data JSON array containing the items
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parseTradeSnapshot(Market market, JSONArray data) {
-        if (data.length() < 1) {
-            return shutDownAction("Wrong snapshot received: " + data);
-        }
-
+    private Event parseTradeSnapshot(Market market) {
         // Clear previous trades, start fresh
         market.clearTrades();
-
-        // Snapshot is an array of updates
-        try {
-            for (int i = 0; i < data.length(); ++i) {
-                JSONArray values = data.getJSONArray(i);
-                Event resp = parseTrade(market, values);
-                if (resp != null) {
-                    return resp;
-                }
-            }
-        } catch (JSONException ex) {
-            return shutDownAction("Error in BitFinex snapshot parsing:"
-                    + ex.getMessage());
+        while (reader.hasNext()) {
+            reader.beginArray();
+            market.addTrade(parseTrade());
         }
         return null;
     }
 
     /**
-     * Parse message that contains one update - trade
+     * Parse one trade: [id, timestamp, amount, price]. The opening bracket
+     * is already consumed, the closing one is consumed as well.
      *
-     * @param market
-     * @param values
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parseTrade(Market market, JSONArray values) {
-        try {
-            int tradeId = values.getInt(0);
-            long timestampMs = values.getLong(1);
-            Decimal amount = new Decimal(values.getDouble(2));
-            boolean sellSide;
-            if (amount.isNegative()) {
-                // Negative amount means "this was a sell-side trade"
-                amount = amount.negate();
-                sellSide = true;
-            } else {
-                sellSide = false;
-            }
-            Decimal price = new Decimal(values.getDouble(3));
-            Date time = new Date(timestampMs);
-            Trade trade = new Trade(time, price, amount, sellSide);
-            trade.setId(tradeId);
-            market.addTrade(trade);
-
-            return null;
-        } catch (JSONException e) {
-            Logger.log("Error while parsing JSON msg: " + values);
-            return shutDownAction("Error in BitFinex update parsing:"
-                    + e.getMessage());
+    private Trade parseTrade() {
+        long tradeId = reader.nextLong();
+        long timestampMs = reader.nextLong();
+        Decimal amount = reader.nextDecimal();
+        Decimal price = reader.nextDecimal();
+        endTuple();
+        boolean sellSide;
+        if (amount.isNegative()) {
+            // Negative amount means "this was a sell-side trade"
+            amount = amount.negate();
+            sellSide = true;
+        } else {
+            sellSide = false;
         }
+        Trade trade = new Trade(new Date(timestampMs), price, amount,
+                sellSide);
+        trade.setId(tradeId);
+        return trade;
     }
 
     /**
-     * Parse message that contains snapshot of price candles
+     * Parse a snapshot of price candles: an array of candle tuples. The
+     * opening bracket of the snapshot is already consumed.
      *
      * @param market
-     * @param data JSON array containing the items
      * @param resolution a channel representing price candle resolution
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parsePriceSnapshot(Market market, JSONArray data,
-            Channel resolution) {
-        if (data.length() < 1) {
-            return shutDownAction("Wrong snapshot received: " + data);
-        }
-        Logger.log(data.length() + " prices in snapshot for resolution "
-                + resolution);
-
+    private Event parsePriceSnapshot(Market market, Channel resolution) {
         // Clear previous prices, start fresh
         market.clearPrices(resolution);
-
-        // Snapshot is an array of updates
-        try {
-            for (int i = 0; i < data.length(); ++i) {
-                JSONArray values = data.getJSONArray(i);
-                Event resp = parsePrice(market, values, resolution);
-                if (resp != null) {
-                    return resp;
-                }
-            }
-        } catch (JSONException ex) {
-            return shutDownAction("Error in BitFinex snapshot parsing:"
-                    + ex.getMessage());
+        int n = 0;
+        while (reader.hasNext()) {
+            reader.beginArray();
+            market.addPrice(resolution, parsePrice(resolution));
+            ++n;
         }
+        Logger.log(n + " prices in snapshot for resolution " + resolution);
         return null;
     }
 
     /**
-     * Parse message that contains one update - price candle
+     * Parse one price candle: [timestamp, open, close, high, low, volume].
+     * The opening bracket is already consumed, the closing one is consumed
+     * as well.
      *
-     * @param market
-     * @param values
      * @param resolution a channel representing price candle resolution
      * @return
+     * @throws InvalidFormatException when message format is wrong
      */
-    private Event parsePrice(Market market, JSONArray values, Channel resolution) {
-        try {
-            long timestampMs = values.getLong(0);
-            Decimal openPrice = new Decimal(values.getDouble(1));
-            Decimal closePrice = new Decimal(values.getDouble(2));
-            Decimal highPrice = new Decimal(values.getDouble(3));
-            Decimal lowPrice = new Decimal(values.getDouble(4));
-            Decimal amount = new Decimal(values.getDouble(5));
-            // Convert resolution from Channel to minutes
-            int resMin = PriceCandle.resolutionToMinutes(resolution);
-            PriceCandle price = new PriceCandle(timestampMs, openPrice,
-                    closePrice,
-                    lowPrice, highPrice, amount, resMin);
-            market.addPrice(resolution, price);
+    private PriceCandle parsePrice(Channel resolution) {
+        long timestampMs = reader.nextLong();
+        Decimal openPrice = reader.nextDecimal();
+        Decimal closePrice = reader.nextDecimal();
+        Decimal highPrice = reader.nextDecimal();
+        Decimal lowPrice = reader.nextDecimal();
+        Decimal amount = reader.nextDecimal();
+        endTuple();
+        // Convert resolution from Channel to minutes
+        int resMin = PriceCandle.resolutionToMinutes(resolution);
+        return new PriceCandle(timestampMs, openPrice, closePrice,
+                lowPrice, highPrice, amount, resMin);
+    }
 
-            return null;
-        } catch (JSONException e) {
-            Logger.log("Error while parsing JSON msg: " + values);
-            return shutDownAction("Error in BitFinex update parsing:"
-                    + e.getMessage());
+    /**
+     * Skip the remaining fields of a tuple (BitFinex may add new ones) and
+     * consume its closing bracket
+     */
+    private void endTuple() {
+        while (reader.hasNext()) {
+            reader.skipValue();
         }
+        reader.endArray();
     }
 
     /**
@@ -477,21 +685,15 @@ public class BitFinexParser extends Parser {
      * @param message
      * @return
      */
-    private boolean isReconnectRequest(JSONObject event) {
+    private boolean isReconnectRequest(EventFields event) {
         // We check if the message is something like this:
         // {"event":"info","code":20051,"msg":"Stopping. Please try to reconnect"}
-
-        try {
-            String eventType = event.getString("event");
-            if (!"info".equals(eventType)) {
-                return false;
-            }
-            int code = event.getInt("code");
-            return code == RECONNECT_CODE || code == MAINTENANCE_CODE;
-        } catch (JSONException ex) {
+        if (!"info".equals(event.event) || event.code == null) {
             // Nope, not a valid info message
             return false;
         }
+        int code = event.code;
+        return code == RECONNECT_CODE || code == MAINTENANCE_CODE;
     }
 
     /**
@@ -0,0 +1,112 @@
+package org.progfun.bots.bitfinex;
+
+import java.util.zip.CRC32;
+import org.progfun.Market;
+
+/**
+ * Calculates BitFinex order book checksum: CRC32 of the string
+ * "bid1price:bid1amount:ask1price:-ask1amount:bid2price:..." for the top 25
+ * levels, with numbers printed the way BitFinex (JavaScript) prints them.
+ * See https://docs.bitfinex.com/docs/ws-websocket-checksum
+ *
+ * The same buffers are reused for every calculation, no objects are created.
+ * NOT Thread safe!
+ */
+public class BookChecksum {
+
+    // Number of levels per side included in the checksum
+    public static final int DEPTH = 25;
+
+    // Fixed-point units in one
+    private static final long FACTOR = 100000000L;
+    // Fixed-point digits
+    private static final int SCALE = 8;
+
+    private final CRC32 crc = new CRC32();
+    private final long[] bidPrices = new long[DEPTH];
+    private final long[] bidAmounts = new long[DEPTH];
+    private final long[] askPrices = new long[DEPTH];
+    private final long[] askAmounts = new long[DEPTH];
+    // One formatted number, filled from the end
+    private final byte[] buf = new byte[32];
+    // Number of values added to the current checksum
+    private int values;
+
+    /**
+     * Calculate checksum for the current order book of a market
+     *
+     * @param market
+     * @return checksum as a signed 32-bit value, the way BitFinex sends it
+     * @throws ArithmeticException if some price in the top levels is not
+     * fixed-point
+     */
+    public int calculate(Market market) {
+        int numBids = market.fillTopBids(bidPrices, bidAmounts, DEPTH);
+        int numAsks = market.fillTopAsks(askPrices, askAmounts, DEPTH);
+        crc.reset();
+        values = 0;
+        for (int i = 0; i < DEPTH; ++i) {
+            if (i < numBids) {
+                append(bidPrices[i]);
+                append(bidAmounts[i]);
+            }
+            if (i < numAsks) {
+                append(askPrices[i]);
+                // Asks have negative amounts in BitFinex API
+                append(-askAmounts[i]);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Format a fixed-point number and add it to the checksum. Trailing zeros
+     * are skipped, numbers below 1e-6 are printed in exponential form, as
+     * JavaScript does.
+     *
+     * @param units
+     */
+    private void append(long units) {
+        int pos = buf.length;
+        boolean negative = units < 0;
+        long v = negative ? -units : units;
+        if (v > 0 && v < 100) {
+            // Less than 1e-6: 1e-7, 1.5e-7, 5e-8
+            int exp = v >= 10 ? 7 : 8;
+            buf[--pos] = (byte) ('0' + exp);
+            buf[--pos] = '-';
+            buf[--pos] = 'e';
+            if (v >= 10 && v % 10 != 0) {
+                buf[--pos] = (byte) ('0' + v % 10);
+                buf[--pos] = '.';
+            }
+            buf[--pos] = (byte) ('0' + (v >= 10 ? v / 10 : v));
+        } else {
+            long whole = v / FACTOR;
+            long fraction = v % FACTOR;
+            if (fraction != 0) {
+                int digits = SCALE;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    --digits;
+                }
+                for (int i = 0; i < digits; ++i) {
+                    buf[--pos] = (byte) ('0' + fraction % 10);
+                    fraction /= 10;
+                }
+                buf[--pos] = '.';
+            }
+            do {
+                buf[--pos] = (byte) ('0' + whole % 10);
+                whole /= 10;
+            } while (whole > 0);
+        }
+        if (negative) {
+            buf[--pos] = '-';
+        }
+        if (values++ > 0) {
+            crc.update(':');
+        }
+        crc.update(buf, pos, buf.length - pos);
+    }
+}
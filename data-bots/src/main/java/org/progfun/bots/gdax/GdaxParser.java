@@ -1,9 +1,12 @@
 package org.progfun.bots.gdax;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
 import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
 import org.progfun.Market;
+import org.progfun.orderbook.Order;
+import org.progfun.websocket.JsonReader;
 import org.progfun.websocket.Parser;
 import org.progfun.websocket.Event;
 
@@ -13,6 +16,10 @@ import org.progfun.websocket.Event;
  */
 public class GdaxParser extends Parser {
 
+    // Market of the last product, messages of one product usually come in a
+    // row
+    private Market lastMarket;
+
     /**
      * Handles the incoming messages from the API and puts it in the orderbook
      * See message documentation: https://docs.gdax.com/#websocket-feed
@@ -22,56 +29,172 @@ public class GdaxParser extends Parser {
      */
     @Override
     public Event parseMessage(String message) {
-        // TODO - support multiple currencies
         // TODO - give Action.SUBSCRIBE response when some kind of "subscription done" is received
         if (exchange == null) {
             return shutDownAction("Trying to parse message without exchange!");
         }
-        Market market = exchange.getFirstMarket();
-        if (market == null) {
-            return shutDownAction("Trying to parse update without market!");
-        }
 
-        JSONObject JSONMessage = new JSONObject(message);
-        String type = JSONMessage.getString("type");
-        if (type.equals("snapshot")) {
-            JSONArray bids = JSONMessage.getJSONArray("bids");
-            for (int i = 0; i < bids.length(); ++i) {
-                JSONArray bid = bids.getJSONArray(i);
-                market.addBid(bid.getString(0), bid.getString(1), 0);
-            }
-            JSONArray asks = JSONMessage.getJSONArray("asks");
-            for (int i = 0; i < asks.length(); ++i) {
-                JSONArray ask = asks.getJSONArray(i);
-                market.addAsk(ask.getString(0), ask.getString(1), 0);
+        // Fields may come in any order, collect everything first
+        String type = null;
+        String productId = null;
+        Market market = null;
+        List<Order> bids = null;
+        List<Order> asks = null;
+        List<Order> bidChanges = new ArrayList<>();
+        List<Order> askChanges = new ArrayList<>();
+        try {
+            JsonReader reader = startReading(message);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type":
+                        type = reader.nextString();
+                        break;
+                    case "product_id":
+                        productId = reader.nextString();
+                        market = findMarket(productId);
+                        break;
+                    case "bids":
+                        bids = parseLevels(reader);
+                        break;
+                    case "asks":
+                        asks = parseLevels(reader);
+                        break;
+                    case "changes":
+                        parseChanges(reader, market != null ? market
+                                : lastMarket, bidChanges, askChanges);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
             }
-        } else if (type.equals("l2update")) {
-            JSONArray changes = JSONMessage.getJSONArray("changes");
-            for (int i = 0; i < changes.length(); ++i) {
-                JSONArray change = changes.getJSONArray(i);
-                String side = change.getString(0);
-                Decimal price = new Decimal(change.getDouble(1));
-                String amountString = change.getString(2);
+            reader.endObject();
+        } catch (InvalidFormatException ex) {
+            return shutDownAction("Could not understand API response: "
+                    + message + ", exception: " + ex.getMessage());
+        }
 
-                // The amount is the total, not delta
-                // Therefore we always remove the order first, then add
-                // it back with the new amount, if necessary
-                if (side.equals("buy")) {
-                    market.removeBid(price);
-                } else if (side.equals("sell")) {
-                    market.removeAsk(price);
+        if (!"snapshot".equals(type) && !"l2update".equals(type)) {
+            return null;
+        }
+        if (market == null) {
+            return shutDownAction("Orderbook update for unknown product: "
+                    + productId);
+        }
+        if ("snapshot".equals(type) && bids != null && asks != null) {
+            market.loadSnapshot(bids.toArray(new Order[bids.size()]),
+                    asks.toArray(new Order[asks.size()]));
+        } else if ("l2update".equals(type)) {
+            // The amount is the total, not delta
+            // Therefore we always remove the order first, then add
+            // it back with the new amount, if necessary
+            // Delta listeners get all changes of the message at once
+            market.beginBatch();
+            try {
+                for (Order change : bidChanges) {
+                    market.removeBid(change.getPrice());
+                    if (!change.getAmount().isZero()) {
+                        market.addBid(change.getPrice(), change.getAmount(), 0);
+                    }
                 }
-                if (!amountString.equals("0")) {
-                    Decimal amount = new Decimal(amountString);
-                    if (side.equals("buy")) {
-                        market.addBid(price, amount, 0);
-                    } else if (side.equals("sell")) {
-                        market.addAsk(price, amount, 0);
+                for (Order change : askChanges) {
+                    market.removeAsk(change.getPrice());
+                    if (!change.getAmount().isZero()) {
+                        market.addAsk(change.getPrice(), change.getAmount(), 0);
                     }
                 }
+            } finally {
+                market.flushBatch();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse snapshot levels: an array of [price, size] entries
+     *
+     * @param reader
+     * @return
+     */
+    private List<Order> parseLevels(JsonReader reader) {
+        List<Order> orders = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            Decimal price = reader.nextDecimal();
+            Decimal amount = reader.nextDecimal();
+            skipRest(reader);
+            orders.add(new Order(price, amount, 0));
+        }
+        reader.endArray();
+        return orders;
+    }
+
+    /**
+     * Parse l2update changes: an array of [side, price, size] entries. Size
+     * is the new total amount at that price, zero means the level is removed.
+     *
+     * @param reader
+     * @param market prices are taken from the price cache of its books, can
+     * be null
+     * @param bidChanges buy side changes are stored here
+     * @param askChanges sell side changes are stored here
+     */
+    private void parseChanges(JsonReader reader, Market market,
+            List<Order> bidChanges, List<Order> askChanges) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            String side = reader.nextString();
+            Decimal price;
+            if (market != null) {
+                price = reader.nextPrice(side.equals("buy")
+                        ? market.getBids() : market.getAsks());
+            } else {
+                price = reader.nextDecimal();
+            }
+            Decimal amount = reader.nextDecimal();
+            skipRest(reader);
+            if (side.equals("buy")) {
+                bidChanges.add(new Order(price, amount, 0));
+            } else if (side.equals("sell")) {
+                askChanges.add(new Order(price, amount, 0));
+            }
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Find the market of a GDAX product. Markets must have the product ID as
+     * their symbol, such as BTC-USD.
+     *
+     * @param productId
+     * @return the market or null if the exchange has no such market
+     */
+    private Market findMarket(String productId) {
+        if (lastMarket != null && productId.equals(lastMarket.getSymbol())) {
+            return lastMarket;
+        }
+        for (Market m : exchange.getMarkets()) {
+            if (productId.equals(m.getSymbol())) {
+                lastMarket = m;
+                return m;
             }
         }
         return null;
     }
 
+    /**
+     * Skip the remaining elements of an array and consume its closing
+     * bracket
+     *
+     * @param reader
+     */
+    private void skipRest(JsonReader reader) {
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
 }
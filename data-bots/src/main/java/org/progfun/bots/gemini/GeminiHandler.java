@@ -7,6 +7,7 @@ import org.progfun.Exchange;
 import org.progfun.Logger;
 import org.progfun.Market;
 import org.progfun.Subscription;
+import org.progfun.Subscriptions;
 import org.progfun.websocket.WebSocketHandler;
 import org.progfun.websocket.Parser;
 
@@ -30,6 +31,22 @@ public class GeminiHandler extends WebSocketHandler {
         this.mainMarket = market;
     }
 
+    /**
+     * When main market is not set, use the market of the first subscription
+     *
+     * @param subscriptions
+     */
+    @Override
+    public void subscribe(Subscriptions subscriptions) {
+        if (mainMarket == null && subscriptions != null) {
+            Subscription s = subscriptions.getNextInactive();
+            if (s != null) {
+                setMainMarket(s.getMarket());
+            }
+        }
+        super.subscribe(subscriptions);
+    }
+
     @Override
     protected String getUrl() {
         if (mainMarket == null) {
@@ -40,7 +57,7 @@ public class GeminiHandler extends WebSocketHandler {
 
     @Override
     public Parser createParser() {
-        return new GeminiParser();
+        return new GeminiParser(mainMarket);
     }
 
     /**
@@ -1,10 +1,12 @@
 package org.progfun.bots.gemini;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
 import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
 import org.progfun.Market;
+import org.progfun.websocket.JsonReader;
+import org.progfun.websocket.JsonToken;
 import org.progfun.websocket.Parser;
 import org.progfun.websocket.Event;
 
@@ -13,7 +15,24 @@ import org.progfun.websocket.Event;
  */
 public class GeminiParser extends Parser {
     private Market market;
-    
+
+    /**
+     * Create a parser for the first market of the exchange
+     */
+    public GeminiParser() {
+    }
+
+    /**
+     * Create a parser for one market. Every Gemini connection serves a single
+     * market, the parser of each connection must update its own market, also
+     * when several connections share one exchange.
+     *
+     * @param market
+     */
+    public GeminiParser(Market market) {
+        this.market = market;
+    }
+
     @Override
     public Event parseMessage(String message) {
         if (exchange == null) {
@@ -27,47 +46,121 @@ public class GeminiParser extends Parser {
             return shutDownAction("Gemini msg received without market, ignoring");
         }
                 
+        // The type of the message may come after the events, collect them
+        // first
+        String type = null;
+        List<UpdateEvent> events = new ArrayList<>();
         try {
-            // Check events only inside messages with type=update
-            JSONObject mainMsg = new JSONObject(message);
-            String type = mainMsg.getString("type");
-            if (type.equals("update")) {
-                JSONArray events = mainMsg.getJSONArray("events");
-                for (Object eo : events) {
-                    if (eo instanceof JSONObject) {
-                        JSONObject event = (JSONObject) eo;
-                        Event resp = parseUpdateEvent(event);
-                        if (resp != null) {
-                            // If some action was needed as a result of parsing
-                            // the event message, return it and skip parsing the rest
-                            return resp;
-                        }                                
-                    } else {
-                        System.out.println("Event not an object: " + eo);
-                    }
+            JsonReader reader = startReading(message);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type":
+                        type = reader.nextString();
+                        break;
+                    case "events":
+                        readEvents(reader, events);
+                        break;
+                    default:
+                        reader.skipValue();
                 }
             }
-        } catch (JSONException ex) {
+            reader.endObject();
+        } catch (InvalidFormatException ex) {
             System.out.println("Error parsing JSON: " + ex.getMessage());
+            return null;
+        }
+
+        // Check events only inside messages with type=update
+        if ("update".equals(type)) {
+            // Listeners get all changes of the message at once
+            market.beginBatch();
+            try {
+                for (UpdateEvent event : events) {
+                    Event resp = parseUpdateEvent(event);
+                    if (resp != null) {
+                        // If some action was needed as a result of parsing
+                        // the event message, return it and skip parsing
+                        // the rest
+                        return resp;
+                    }
+                }
+            } finally {
+                market.flushBatch();
+            }
         }
         return null;
     }
 
+    /**
+     * Fields of one event inside an update message
+     */
+    private static class UpdateEvent {
+
+        String type;
+        Decimal price;
+        String side;
+        Decimal remaining;
+        Decimal delta;
+    }
+
+    /**
+     * Read the array of events
+     *
+     * @param reader
+     * @param events the events are added here
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private void readEvents(JsonReader reader, List<UpdateEvent> events) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                System.out.println("Event not an object: "
+                        + reader.peek());
+                reader.skipValue();
+                continue;
+            }
+            UpdateEvent event = new UpdateEvent();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type":
+                        event.type = reader.nextString();
+                        break;
+                    case "price":
+                        event.price = reader.nextDecimal();
+                        break;
+                    case "side":
+                        event.side = reader.nextString();
+                        break;
+                    case "remaining":
+                        event.remaining = reader.nextDecimal();
+                        break;
+                    case "delta":
+                        event.delta = reader.nextDecimal();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            events.add(event);
+        }
+        reader.endArray();
+    }
+
     /**
      * Parse one update event
      *
      * @param event
      */
-    private Event parseUpdateEvent(JSONObject event) {
-        try {
-            String type = event.getString("type");
-            if (type.equals("change")) {
-                return parseOrderBookChange(event);
-            } else if (type.equals("trade")) {
-                return parseTradeEvent(event);
-            }
-        } catch (JSONException ex) {
-            System.out.println("Error parsing JSON event: " + ex.getMessage());
+    private Event parseUpdateEvent(UpdateEvent event) {
+        if ("change".equals(event.type)) {
+            return parseOrderBookChange(event);
+        } else if ("trade".equals(event.type)) {
+            return parseTradeEvent(event);
+        } else if (event.type == null) {
+            System.out.println("Error parsing JSON event: no type");
         }
         return null;
     }
@@ -76,12 +169,16 @@ public class GeminiParser extends Parser {
      * Parse changes in 
      * @param event 
      */
-    private Event parseOrderBookChange(JSONObject event) {
-        Decimal price = new Decimal(event.getString("price"));
-        boolean isBid = event.getString("side").equals("bid");
-        String rs = event.getString("remaining");
-        Decimal delta = new Decimal(event.getString("delta"));
-        if (rs.equals("0")) {
+    private Event parseOrderBookChange(UpdateEvent event) {
+        if (event.price == null || event.side == null
+                || event.remaining == null || event.delta == null) {
+            System.out.println("Error parsing JSON event: incomplete change");
+            return null;
+        }
+        Decimal price = event.price;
+        boolean isBid = event.side.equals("bid");
+        Decimal delta = event.delta;
+        if (event.remaining.isZero()) {
             // Order removed, zero remaining
             if (isBid) {
                 market.removeBid(price);
@@ -99,7 +196,7 @@ public class GeminiParser extends Parser {
         return null;
     }
 
-    private Event parseTradeEvent(JSONObject event) {
+    private Event parseTradeEvent(UpdateEvent event) {
         return shutDownAction("Gemini Trade parsing not supported yet");
     }
 }
@@ -1,17 +1,22 @@
 package org.progfun.bots.hitbtc;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.List;
 import org.progfun.Channel;
 import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
 import org.progfun.Market;
 import org.progfun.Subscription;
+import org.progfun.orderbook.Book;
+import org.progfun.orderbook.Order;
 import org.progfun.trade.Trade;
 import org.progfun.websocket.Action;
+import org.progfun.websocket.JsonReader;
+import org.progfun.websocket.JsonToken;
 import org.progfun.websocket.Parser;
 import org.progfun.websocket.Event;
 
@@ -23,46 +28,340 @@ public class HitBtcParser extends Parser {
 
     // Parser of timestamps reported by the API, see 
     // https://api.hitbtc.com/#datetime-format
-    private static final SimpleDateFormat TIMESTAMP_PARSER
+    // Not static: SimpleDateFormat is not Thread safe, and parsers of market
+    // workers run in parallel
+    private final SimpleDateFormat timestampParser
             = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    // Market of the last orderbook notification. HitBTC sends the symbol
+    // after the levels, therefore the prices are taken from the price cache
+    // of this market. Any object with the right value works as a price, the
+    // cache only saves allocations
+    private Market bookMarket;
+
+    /**
+     * Fields of the "params" object of notifications. The fields can come in
+     * any order, therefore everything is collected before the notification
+     * is handled.
+     */
+    private static class Params {
+
+        String symbol;
+        List<Order> bids;
+        List<Order> asks;
+        List<Trade> trades;
+    }
+
+    /**
+     * Fields of the "error" object
+     */
+    private static class ErrorFields {
+
+        int code;
+        String message;
+        String description = "";
+    }
 
     @Override
     public Event parseMessage(String message) {
-        JSONObject msg = new JSONObject(message);
-        if (msg.has("result")) {
-            return parseSubscriptionResult(msg);
+        String method = null;
+        Params params = null;
+        Boolean result = null;
+        Integer id = null;
+        ErrorFields error = null;
+        try {
+            JsonReader reader = startReading(message);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "method":
+                        method = reader.nextString();
+                        break;
+                    case "params":
+                        params = parseParams(reader);
+                        break;
+                    case "result":
+                        result = reader.nextBoolean();
+                        break;
+                    case "id":
+                        id = reader.nextInt();
+                        break;
+                    case "error":
+                        error = parseError(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (InvalidFormatException ex) {
+            return shutDownAction("Could not understand API response: "
+                    + message + ", exception: " + ex.getMessage());
+        }
+
+        if (result != null) {
+            return parseSubscriptionResult(result, id, message);
+        }
+        if (error != null) {
+            return parseErrorMsg(error, id);
         }
-        if (msg.has("error")) {
-            int id = msg.getInt("id");
-            return parseErrorMsg(msg, id);
+        if (method == null || params == null) {
+            return null;
         }
+        switch (method) {
+            case "snapshotOrderbook":
+                return parseOderbookUpdate(params, true);
+            case "updateOrderbook":
+                return parseOderbookUpdate(params, false);
+            case "snapshotTrades":
+                return parseTrades(params);
+            case "updateTrades":
+                return parseTrades(params);
+            default:
+                return shutDownAction("Unknwon response: " + message);
+        }
+    }
+
+    @Override
+    public Market routeMessage(String message) {
         try {
-            String responseType = msg.getString("method");
-            JSONObject params = msg.getJSONObject("params");
-            switch (responseType) {
-                case "snapshotOrderbook":
-                    return parseOderbookUpdate(params);
-                case "updateOrderbook":
-                    return parseOderbookUpdate(params);
-                case "snapshotTrades":
-                    return parseTrades(params);
-                case "updateTrades":
-                    return parseTrades(params);
+            return routeCurrentMessage(startReading(message));
+        } catch (InvalidFormatException ex) {
+            // Let the parser report it
+            return null;
+        }
+    }
+
+    @Override
+    public Market routeMessage(ByteBuffer message) {
+        try {
+            return routeCurrentMessage(startReading(message));
+        } catch (InvalidFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the market of an orderbook or trade notification, skip the data
+     *
+     * @param reader
+     * @return the market or null for all other messages
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Market routeCurrentMessage(JsonReader reader) {
+        String method = null;
+        String symbol = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("method".equals(name) && reader.peek() == JsonToken.STRING) {
+                method = reader.nextString();
+            } else if ("params".equals(name)
+                    && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("symbol".equals(reader.nextName())
+                            && reader.peek() == JsonToken.STRING) {
+                        symbol = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (method == null || symbol == null) {
+            return null;
+        }
+        Channel channel;
+        switch (method) {
+            case "snapshotOrderbook":
+            case "updateOrderbook":
+                channel = Channel.ORDERBOOK;
+                break;
+            case "snapshotTrades":
+            case "updateTrades":
+                channel = Channel.TRADES;
+                break;
+            default:
+                return null;
+        }
+        Subscription s = subscriptions.getActive(
+                getActiveSubscriptionId(symbol, channel));
+        return s != null ? s.getMarket() : null;
+    }
+
+    /**
+     * Read the "params" object of a notification
+     *
+     * @param reader
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private Params parseParams(JsonReader reader) {
+        Params params = new Params();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "symbol":
+                    params.symbol = reader.nextString();
+                    break;
+                case "bid":
+                    params.bids = parseLevels(reader, bookMarket != null
+                            ? bookMarket.getBids() : null);
+                    break;
+                case "ask":
+                    params.asks = parseLevels(reader, bookMarket != null
+                            ? bookMarket.getAsks() : null);
+                    break;
+                case "data":
+                    params.trades = parseTradeList(reader);
+                    break;
                 default:
-                    return shutDownAction("Unknwon response: " + message);
+                    reader.skipValue();
             }
-        } catch (JSONException e) {
-            System.out.println("test" + e);
         }
-        return null;
+        reader.endObject();
+        return params;
+    }
+
+    /**
+     * Read an array of order book levels: {"price": "...", "size": "..."}
+     *
+     * @param reader
+     * @param book prices are taken from its price cache, can be null
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private List<Order> parseLevels(JsonReader reader, Book book) {
+        List<Order> levels = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Decimal price = null;
+            Decimal size = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "price":
+                        price = book != null ? reader.nextPrice(book)
+                                : reader.nextDecimal();
+                        break;
+                    case "size":
+                        size = reader.nextDecimal();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (price == null || size == null) {
+                throw new InvalidFormatException("Incomplete order level");
+            }
+            levels.add(new Order(price, size, 0));
+        }
+        reader.endArray();
+        return levels;
+    }
+
+    /**
+     * Read an array of trades
+     *
+     * @param reader
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private List<Trade> parseTradeList(JsonReader reader) {
+        List<Trade> trades = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Long tradeId = null;
+            Decimal volume = null;
+            Decimal price = null;
+            boolean sellSide = false;
+            String ts = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        tradeId = reader.nextLong();
+                        break;
+                    case "quantity":
+                        volume = reader.nextDecimal();
+                        break;
+                    case "price":
+                        price = reader.nextDecimal();
+                        break;
+                    case "side":
+                        sellSide = "sell".equals(reader.nextString());
+                        break;
+                    case "timestamp":
+                        ts = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (tradeId == null || volume == null || price == null
+                    || ts == null) {
+                throw new InvalidFormatException("Incomplete trade");
+            }
+            Date time;
+            try {
+                time = timestampParser.parse(ts);
+            } catch (ParseException ex) {
+                throw new InvalidFormatException("Wrong trade timestamp: "
+                        + ts + ": " + ex.getMessage());
+            }
+            Trade trade = new Trade(time, price, volume, sellSide);
+            trade.setId(tradeId);
+            trades.add(trade);
+        }
+        reader.endArray();
+        return trades;
+    }
+
+    /**
+     * Read the "error" object
+     *
+     * @param reader
+     * @return
+     * @throws InvalidFormatException when message format is wrong
+     */
+    private ErrorFields parseError(JsonReader reader) {
+        ErrorFields error = new ErrorFields();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "code":
+                    error.code = reader.nextInt();
+                    break;
+                case "message":
+                    error.message = reader.nextString();
+                    break;
+                case "description":
+                    error.description = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return error;
     }
 
-    private Event parseOderbookUpdate(JSONObject params) {
+    private Event parseOderbookUpdate(Params params, boolean snapshot) {
         // Find market
         Subscription subscription = null;
-        if (params.has("symbol")) {
-            String symbol = params.getString("symbol");
-            String subsId = getActiveSubscriptionId(symbol, Channel.ORDERBOOK);
+        if (params.symbol != null) {
+            String subsId = getActiveSubscriptionId(params.symbol,
+                    Channel.ORDERBOOK);
             subscription = subscriptions.getActive(subsId);
         }
         if (subscription == null) {
@@ -70,46 +369,71 @@ public class HitBtcParser extends Parser {
         }
         // TODO - check sequence number, reconnect when gap detected
         Market market = subscription.getMarket();
+        bookMarket = market;
 
-        if (params.has("ask")) {
-            JSONArray asks = params.getJSONArray("ask");
-            for (Object obj : asks) {
-                JSONObject ask = (JSONObject) obj;
-                Decimal askSize = new Decimal(ask.getString("size"));
-                Decimal askPrice = new Decimal(ask.getString("price"));
-                if (askSize.isZero()) {
-                    market.removeAsk(askPrice);
-                } else {
-                    // HitBTC always reports the final value, not difference,
-                    // therefore we should not increment
-                    market.addAsk(askPrice, askSize, 0, false);
+        if (snapshot) {
+            // Replace the whole book at once
+            market.loadSnapshot(nonEmptyLevels(params.bids),
+                    nonEmptyLevels(params.asks));
+            return null;
+        }
+
+        // Delta listeners get all changes of the message at once
+        market.beginBatch();
+        try {
+            if (params.asks != null) {
+                for (Order ask : params.asks) {
+                    if (ask.getAmount().isZero()) {
+                        market.removeAsk(ask.getPrice());
+                    } else {
+                        // HitBTC always reports the final value, not difference,
+                        // therefore we should not increment
+                        market.addAsk(ask.getPrice(), ask.getAmount(), 0, false);
+                    }
                 }
             }
-        }
-        if (params.has("bid")) {
-            JSONArray bids = params.getJSONArray("bid");
-            for (Object obj : bids) {
-                JSONObject bid = (JSONObject) obj;
-                Decimal bidSize = new Decimal(bid.getString("size"));
-                Decimal bidPrice = new Decimal(bid.getString("price"));
-                if (bidSize.isZero()) {
-                    market.removeBid(bidPrice);
-                } else {
-                    // HitBTC always reports the final value, not difference,
-                    // therefore we should not increment
-                    market.addBid(bidPrice, bidSize, 0, false);
+            if (params.bids != null) {
+                for (Order bid : params.bids) {
+                    if (bid.getAmount().isZero()) {
+                        market.removeBid(bid.getPrice());
+                    } else {
+                        // HitBTC always reports the final value, not difference,
+                        // therefore we should not increment
+                        market.addBid(bid.getPrice(), bid.getAmount(), 0, false);
+                    }
                 }
             }
+        } finally {
+            market.flushBatch();
         }
         return null;
     }
 
-    private Event parseTrades(JSONObject params) {
+    /**
+     * Prepare one side of an order book snapshot: skip empty levels
+     *
+     * @param levels levels received in the snapshot, can be null
+     * @return
+     */
+    private Order[] nonEmptyLevels(List<Order> levels) {
+        if (levels == null) {
+            return new Order[0];
+        }
+        List<Order> orders = new ArrayList<>(levels.size());
+        for (Order level : levels) {
+            if (!level.getAmount().isZero()) {
+                orders.add(level);
+            }
+        }
+        return orders.toArray(new Order[orders.size()]);
+    }
+
+    private Event parseTrades(Params params) {
         // Find market
         Subscription subscription = null;
-        if (params.has("symbol")) {
-            String symbol = params.getString("symbol");
-            String subsId = getActiveSubscriptionId(symbol, Channel.TRADES);
+        if (params.symbol != null) {
+            String subsId = getActiveSubscriptionId(params.symbol,
+                    Channel.TRADES);
             subscription = subscriptions.getActive(subsId);
         }
         if (subscription == null) {
@@ -118,25 +442,8 @@ public class HitBtcParser extends Parser {
         // TODO - check sequence number, reconnect when gap detected
         Market market = subscription.getMarket();
 
-        if (params.has("data")) {
-            JSONArray trades = params.getJSONArray("data");
-            for (Object obj : trades) {
-                JSONObject t = (JSONObject) obj;
-                long tradeId = t.getLong("id");
-                Decimal volume = new Decimal(t.getString("quantity"));
-                Decimal price = new Decimal(t.getString("price"));
-                boolean sellSide = "sell".equals(t.getString("side"));
-                Date time;
-                String ts = null;
-                try {
-                    ts = t.getString("timestamp");
-                    time = TIMESTAMP_PARSER.parse(ts);
-                } catch (ParseException ex) {
-                    return shutDownAction("Wrong trade timestamp: " + ts 
-                            + ": " + ex.getMessage());
-                }
-                Trade trade = new Trade(time, price, volume, sellSide);
-                trade.setId(tradeId);
+        if (params.trades != null) {
+            for (Trade trade : params.trades) {
                 market.addTrade(trade);
             }
         }
@@ -144,61 +451,45 @@ public class HitBtcParser extends Parser {
         return null;
     }
 
-    private Event parseSubscriptionResult(JSONObject msg) {
+    private Event parseSubscriptionResult(boolean result, Integer id,
+            String message) {
         if (subscriptions == null) {
             return shutDownAction("Error: received subscription response "
                     + "but subscriptions not set in HitBTCParser!");
         }
-        try {
-            boolean result = msg.getBoolean("result");
-            if (!result) {
-                return shutDownAction("Got result which was not true!");
-            } else {
-                // Last action was ok, find subscription and activate it
-                int id = msg.getInt("id");
-                Subscription s = subscriptions.getInactive("" + id);
-
-                if (s != null) {
-                    // Activate the subscription, store the new ID
-                    Market m = s.getMarket();
-                    // BTCUSD, etc
-                    String symbol = m.getSymbol();
-                    String subsId = getActiveSubscriptionId(symbol, s.getChannel());
-                    subscriptions.activate(subsId, s);
-                } else {
-                    return shutDownAction("Got result for unknown subscription: "
-                            + msg);
-                }
+        if (!result) {
+            return shutDownAction("Got result which was not true!");
+        }
+        if (id == null) {
+            return shutDownAction("Error in HitBTC result parsing: no id");
+        }
+        // Last action was ok, find subscription and activate it
+        Subscription s = subscriptions.getInactive("" + id);
 
-                // Tell the Handler that we are ready to process next subscription
-                return new Event(Action.SUBSCRIBE, s, "Subscription successful");
-            }
-        } catch (JSONException ex) {
-            return shutDownAction("Error in HitBTC result parsing:"
-                    + ex.getMessage());
+        if (s != null) {
+            // Activate the subscription, store the new ID
+            Market m = s.getMarket();
+            // BTCUSD, etc
+            String symbol = m.getSymbol();
+            String subsId = getActiveSubscriptionId(symbol, s.getChannel());
+            subscriptions.activate(subsId, s);
+        } else {
+            return shutDownAction("Got result for unknown subscription: "
+                    + message);
         }
+
+        // Tell the Handler that we are ready to process next subscription
+        return new Event(Action.SUBSCRIBE, s, "Subscription successful");
     }
 
-    private Event parseErrorMsg(JSONObject msg, int id) {
-        try {
-            JSONObject error = msg.getJSONObject("error");
-            int code = error.getInt("code");
-            String errMsg = error.getString("message");
-            String description = "";
-            if (error.has("description")) {
-                description = error.getString("description");
-            }
-            String errLog = "Error for req #" + id + ", code " + code
-                    + ": " + errMsg + "; " + description;
-            if (notCriticalError(code)) {
-                // We can recover from the error, retry connection
-                return new Event(Action.RECONNECT, null, errLog);
-            } else {
-                return shutDownAction(errLog);
-            }
-        } catch (JSONException ex) {
-            return shutDownAction("Error in HitBTC error parsing:"
-                    + ex.getMessage());
+    private Event parseErrorMsg(ErrorFields error, Integer id) {
+        String errLog = "Error for req #" + id + ", code " + error.code
+                + ": " + error.message + "; " + error.description;
+        if (notCriticalError(error.code)) {
+            // We can recover from the error, retry connection
+            return new Event(Action.RECONNECT, null, errLog);
+        } else {
+            return shutDownAction(errLog);
         }
     }
 
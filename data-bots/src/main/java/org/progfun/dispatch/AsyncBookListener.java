@@ -0,0 +1,333 @@
+package org.progfun.dispatch;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.progfun.Decimal;
+import org.progfun.Market;
+import org.progfun.orderbook.LevelChange;
+import org.progfun.orderbook.Order;
+import org.progfun.orderbook.OrderbookListener;
+
+/**
+ * Passes order book changes to another listener on a separate thread. Orders
+ * are copied before they are queued, because the market keeps updating the
+ * original objects. On bookReplaced() the listener gets a copy of the market
+ * with the order book as it was at the time of the snapshot. Other data of
+ * that market object (trades, prices) is not copied. Level changes come with
+ * the live market object, don't read its book on the listener thread.
+ *
+ * With OverflowPolicy.CONFLATE changes are not queued one by one: pending
+ * changes of the same price level are merged, a new snapshot discards all
+ * pending changes. A slow listener then receives fewer, "bigger" updates and
+ * still ends up with the latest state of the book.
+ *
+ * OverflowPolicy.DROP_OLDEST is not supported: a dropped change would leave
+ * the listener with a wrong book.
+ *
+ * The listener thread is started automatically.
+ */
+public class AsyncBookListener extends AsyncDispatcher
+        implements OrderbookListener {
+
+    private final OrderbookListener listener;
+
+    /**
+     * One pending change of a price level (conflation only)
+     */
+    private static class Level {
+
+        LevelChange change;
+        final Decimal price;
+        Order order; // null for removed levels
+
+        Level(LevelChange change, Decimal price, Order order) {
+            this.change = change;
+            this.price = price;
+            this.order = order;
+        }
+    }
+
+    /**
+     * Changes of one market waiting for delivery (conflation only)
+     */
+    private static class PendingBook {
+
+        Market snapshot;
+        final Map<Decimal, Level> bids = new LinkedHashMap<>();
+        final Map<Decimal, Level> asks = new LinkedHashMap<>();
+        // True while a flush task for this market is in the queue
+        boolean queued = false;
+    }
+
+    // Guarded by itself
+    private final Map<Market, PendingBook> pendingBooks
+            = new IdentityHashMap<>();
+
+    /**
+     * @param listener the real listener
+     * @param capacity maximum number of waiting events. With CONFLATE this
+     * is the maximum number of markets waiting for a flush.
+     * @param policy BLOCK or CONFLATE, changes can't be dropped
+     */
+    public AsyncBookListener(OrderbookListener listener, int capacity,
+            OverflowPolicy policy) {
+        super("Book Listener", capacity, policy);
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener missing");
+        }
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException(
+                    "Book changes can't be dropped, use CONFLATE");
+        }
+        this.listener = listener;
+        start();
+    }
+
+    @Override
+    public void bidAdded(Market market, Order bid) {
+        onLevel(market, true, LevelChange.ADDED, bid.getPrice(), bid);
+    }
+
+    @Override
+    public void askAdded(Market market, Order ask) {
+        onLevel(market, false, LevelChange.ADDED, ask.getPrice(), ask);
+    }
+
+    @Override
+    public void bidUpdated(Market market, Order bid) {
+        onLevel(market, true, LevelChange.UPDATED, bid.getPrice(), bid);
+    }
+
+    @Override
+    public void askUpdated(Market market, Order ask) {
+        onLevel(market, false, LevelChange.UPDATED, ask.getPrice(), ask);
+    }
+
+    @Override
+    public void bidRemoved(Market market, Decimal price) {
+        onLevel(market, true, LevelChange.REMOVED, price, null);
+    }
+
+    @Override
+    public void askRemoved(Market market, Decimal price) {
+        onLevel(market, false, LevelChange.REMOVED, price, null);
+    }
+
+    @Override
+    public void bookReplaced(final Market market) {
+        final Market snapshot = MarketCopy.copyBook(market);
+        if (policy != OverflowPolicy.CONFLATE) {
+            enqueue(new Task() {
+                @Override
+                void deliver() {
+                    listener.bookReplaced(snapshot);
+                }
+            });
+            return;
+        }
+
+        boolean flush;
+        synchronized (pendingBooks) {
+            PendingBook p = getPending(market);
+            int merged = p.bids.size() + p.asks.size();
+            if (p.snapshot != null) {
+                merged++;
+            }
+            addDropped(merged);
+            p.bids.clear();
+            p.asks.clear();
+            p.snapshot = snapshot;
+            flush = markQueued(p);
+        }
+        if (flush) {
+            enqueueFlush(market);
+        }
+    }
+
+    /**
+     * Queue a change of one price level, or merge it with a pending one
+     *
+     * @param market
+     * @param bid true for bids, false for asks
+     * @param change
+     * @param price
+     * @param order the new state of the level, null when removed
+     */
+    private void onLevel(Market market, boolean bid, LevelChange change,
+            Decimal price, Order order) {
+        Order copy = order != null ? MarketCopy.copy(order) : null;
+        if (policy != OverflowPolicy.CONFLATE) {
+            enqueue(new LevelTask(market, bid, new Level(change, price, copy)));
+            return;
+        }
+
+        boolean flush;
+        synchronized (pendingBooks) {
+            PendingBook p = getPending(market);
+            Map<Decimal, Level> levels = bid ? p.bids : p.asks;
+            Level prev = levels.get(price);
+            if (prev == null) {
+                levels.put(price, new Level(change, price, copy));
+            } else {
+                addDropped(1);
+                if (change == LevelChange.REMOVED) {
+                    if (prev.change == LevelChange.ADDED) {
+                        // The listener has never seen this level
+                        levels.remove(price);
+                    } else {
+                        prev.change = LevelChange.REMOVED;
+                        prev.order = null;
+                    }
+                } else {
+                    // A level added and then updated is still new for the
+                    // listener. A level removed and then added again is an
+                    // update of a level the listener already knows.
+                    if (prev.change != LevelChange.ADDED) {
+                        prev.change = LevelChange.UPDATED;
+                    }
+                    prev.order = copy;
+                }
+            }
+            flush = markQueued(p);
+        }
+        if (flush) {
+            enqueueFlush(market);
+        }
+    }
+
+    /**
+     * Get pending changes of a market, create if necessary. Call only while
+     * holding the lock.
+     *
+     * @param market
+     * @return
+     */
+    private PendingBook getPending(Market market) {
+        PendingBook p = pendingBooks.get(market);
+        if (p == null) {
+            p = new PendingBook();
+            pendingBooks.put(market, p);
+        }
+        return p;
+    }
+
+    /**
+     * Check if a flush task must be queued for the market. Call only while
+     * holding the lock.
+     *
+     * @param p
+     * @return true if the caller must queue the flush task
+     */
+    private static boolean markQueued(PendingBook p) {
+        if (p.queued) {
+            return false;
+        }
+        p.queued = true;
+        return true;
+    }
+
+    /**
+     * Queue a task that will deliver all pending changes of a market. Must
+     * not be called while holding the lock, enqueue() can block.
+     *
+     * @param market
+     */
+    private void enqueueFlush(final Market market) {
+        enqueue(new Task() {
+            @Override
+            void deliver() {
+                flush(market);
+            }
+        });
+    }
+
+    /**
+     * Deliver pending changes of a market, called on the dispatcher thread
+     *
+     * @param market
+     */
+    private void flush(Market market) {
+        Market snapshot;
+        List<Level> bids;
+        List<Level> asks;
+        synchronized (pendingBooks) {
+            PendingBook p = pendingBooks.get(market);
+            if (p == null) {
+                return;
+            }
+            snapshot = p.snapshot;
+            p.snapshot = null;
+            bids = new ArrayList<>(p.bids.values());
+            asks = new ArrayList<>(p.asks.values());
+            p.bids.clear();
+            p.asks.clear();
+            p.queued = false;
+        }
+        if (snapshot != null) {
+            listener.bookReplaced(snapshot);
+        }
+        for (Level level : bids) {
+            deliver(market, true, level);
+        }
+        for (Level level : asks) {
+            deliver(market, false, level);
+        }
+    }
+
+    /**
+     * Pass one level change to the listener
+     *
+     * @param market
+     * @param bid
+     * @param level
+     */
+    private void deliver(Market market, boolean bid, Level level) {
+        switch (level.change) {
+            case ADDED:
+                if (bid) {
+                    listener.bidAdded(market, level.order);
+                } else {
+                    listener.askAdded(market, level.order);
+                }
+                break;
+            case UPDATED:
+                if (bid) {
+                    listener.bidUpdated(market, level.order);
+                } else {
+                    listener.askUpdated(market, level.order);
+                }
+                break;
+            case REMOVED:
+                if (bid) {
+                    listener.bidRemoved(market, level.price);
+                } else {
+                    listener.askRemoved(market, level.price);
+                }
+                break;
+        }
+    }
+
+    /**
+     * One queued level change (no conflation)
+     */
+    private class LevelTask extends Task {
+
+        private final Market market;
+        private final boolean bid;
+        private final Level level;
+
+        LevelTask(Market market, boolean bid, Level level) {
+            this.market = market;
+            this.bid = bid;
+            this.level = level;
+        }
+
+        @Override
+        void deliver() {
+            AsyncBookListener.this.deliver(market, bid, level);
+        }
+    }
+}
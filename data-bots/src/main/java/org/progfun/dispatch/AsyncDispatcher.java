@@ -0,0 +1,226 @@
+package org.progfun.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.progfun.Logger;
+import org.progfun.ThreadLauncher;
+
+/**
+ * Base class for asynchronous listeners: events are put in a bounded queue on
+ * the producer thread (the Handler thread or a market worker) and delivered
+ * to the real listener on a separate thread. A slow listener does not stall
+ * the parsing of API messages then.
+ *
+ * Also collects statistics: how many events were delivered and dropped, and
+ * how long the events waited in the queue (lag).
+ *
+ * Trades and order book changes are passed with the live Market object, the
+ * producer keeps updating it while the event waits in the queue. Use it to
+ * identify the market, don't read its order book or trades on the listener
+ * thread. Snapshots are copies.
+ */
+public abstract class AsyncDispatcher implements Runnable {
+
+    /**
+     * One event waiting in the queue
+     */
+    abstract static class Task {
+
+        // System.nanoTime() when the event was queued
+        long queuedAt;
+
+        /**
+         * Pass the event to the listener, called on the dispatcher thread
+         */
+        abstract void deliver();
+    }
+
+    private final String name;
+    protected final OverflowPolicy policy;
+    private final ArrayBlockingQueue<Task> queue;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long lastLag = 0;
+    private volatile long maxLag = 0;
+
+    // How long a producer waits for room in the queue before checking if
+    // the dispatcher was stopped meanwhile
+    private static final long PUT_TIMEOUT_MS = 100;
+
+    private volatile boolean running = false;
+    // Set by stop(), new events are dropped from then on
+    private volatile boolean stopped = false;
+    private volatile Thread thread;
+
+    /**
+     * @param name name of the dispatcher thread
+     * @param capacity maximum number of waiting events
+     * @param policy what to do when the queue is full
+     */
+    protected AsyncDispatcher(String name, int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive: " + capacity);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy missing");
+        }
+        this.name = name;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Start the dispatcher thread. Events queued before are delivered too.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        stopped = false;
+        ThreadLauncher.start(this, name, true);
+    }
+
+    /**
+     * Stop the dispatcher thread. Events still waiting are not delivered,
+     * events queued after this are dropped. Both are counted as dropped. A
+     * producer waiting for room in the queue is released.
+     */
+    public void stop() {
+        stopped = true;
+        running = false;
+        // Wakes up the producers waiting in enqueue()
+        while (queue.poll() != null) {
+            dropped.incrementAndGet();
+        }
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Put an event in the queue. When the queue is full, either drop the
+     * oldest event (DROP_OLDEST) or wait. Subclasses do the conflation
+     * themselves and queue only a few "flush" tasks, these are never dropped.
+     * After stop() the event is dropped, the caller never waits.
+     *
+     * @param task
+     */
+    final void enqueue(Task task) {
+        if (stopped) {
+            dropped.incrementAndGet();
+            return;
+        }
+        task.queuedAt = System.nanoTime();
+        if (policy != OverflowPolicy.DROP_OLDEST) {
+            try {
+                while (!queue.offer(task, PUT_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS)) {
+                    if (stopped) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+                // Stopped while waiting: stop() made the room, take it back
+                if (stopped && queue.remove(task)) {
+                    dropped.incrementAndGet();
+                }
+            } catch (InterruptedException ex) {
+                Logger.log("Interrupted while waiting for " + name);
+                dropped.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        while (!queue.offer(task)) {
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Register that some events were merged with others and will never be
+     * delivered on their own
+     *
+     * @param n number of merged events
+     */
+    final void addDropped(long n) {
+        dropped.addAndGet(n);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException ex) {
+                // Stopped, the loop condition will tell
+                continue;
+            }
+            long lag = System.nanoTime() - task.queuedAt;
+            lastLag = lag;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+            try {
+                task.deliver();
+            } catch (RuntimeException ex) {
+                // A faulty listener must not stop the delivery
+                Logger.log(name + ": listener failed: " + ex.getMessage());
+            }
+            delivered.incrementAndGet();
+        }
+        Logger.log(name + " stopped");
+    }
+
+    /**
+     * @return number of events waiting for delivery
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of events delivered to the listener
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return number of events dropped or merged because the listener was
+     * too slow
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return how long the last delivered event waited in the queue,
+     * nanoseconds
+     */
+    public long getLastLagNanos() {
+        return lastLag;
+    }
+
+    /**
+     * @return the longest time an event waited in the queue, nanoseconds
+     */
+    public long getMaxLagNanos() {
+        return maxLag;
+    }
+
+    /**
+     * Start measuring the maximum lag again
+     */
+    public void resetMaxLag() {
+        maxLag = 0;
+    }
+}
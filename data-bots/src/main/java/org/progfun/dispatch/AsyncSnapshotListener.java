@@ -0,0 +1,76 @@
+package org.progfun.dispatch;
+
+import org.progfun.Exchange;
+import org.progfun.SnapshotListener;
+
+/**
+ * Passes snapshots to another listener on a separate thread, for example a
+ * listener that stores them in a database. The exchange data is copied on
+ * the calling thread, the listener gets its own Exchange object.
+ *
+ * With OverflowPolicy.CONFLATE only the latest snapshot is kept: when the
+ * listener is still busy with the previous one, older waiting snapshots are
+ * skipped.
+ *
+ * The listener thread is started automatically.
+ */
+public class AsyncSnapshotListener extends AsyncDispatcher
+        implements SnapshotListener {
+
+    private final SnapshotListener listener;
+    // Latest snapshot waiting for delivery, conflation only. Guarded by this
+    private Exchange latest;
+
+    /**
+     * @param listener the real listener
+     * @param capacity maximum number of waiting snapshots
+     * @param policy what to do when the listener can't keep up
+     */
+    public AsyncSnapshotListener(SnapshotListener listener, int capacity,
+            OverflowPolicy policy) {
+        super("Snapshot Listener", capacity, policy);
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener missing");
+        }
+        this.listener = listener;
+        start();
+    }
+
+    @Override
+    public void onSnapshot(Exchange exchange) {
+        final Exchange copy = MarketCopy.copyData(exchange);
+        if (policy != OverflowPolicy.CONFLATE) {
+            enqueue(new Task() {
+                @Override
+                void deliver() {
+                    listener.onSnapshot(copy);
+                }
+            });
+            return;
+        }
+
+        boolean flush;
+        synchronized (this) {
+            flush = latest == null;
+            if (!flush) {
+                addDropped(1);
+            }
+            latest = copy;
+        }
+        if (flush) {
+            enqueue(new Task() {
+                @Override
+                void deliver() {
+                    Exchange e;
+                    synchronized (AsyncSnapshotListener.this) {
+                        e = latest;
+                        latest = null;
+                    }
+                    if (e != null) {
+                        listener.onSnapshot(e);
+                    }
+                }
+            });
+        }
+    }
+}
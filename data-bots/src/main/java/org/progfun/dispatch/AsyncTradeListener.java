@@ -0,0 +1,48 @@
+package org.progfun.dispatch;
+
+import org.progfun.Market;
+import org.progfun.trade.Trade;
+import org.progfun.trade.TradeListener;
+
+/**
+ * Passes new trades to another listener on a separate thread. Register this
+ * object in the market instead of the real listener:
+ *
+ * market.addTradeListener(new AsyncTradeListener(listener, 1024,
+ * OverflowPolicy.BLOCK));
+ *
+ * The listener thread is started automatically.
+ */
+public class AsyncTradeListener extends AsyncDispatcher
+        implements TradeListener {
+
+    private final TradeListener listener;
+
+    /**
+     * @param listener the real listener
+     * @param capacity maximum number of waiting trades
+     * @param policy BLOCK or DROP_OLDEST, trades can't be conflated
+     */
+    public AsyncTradeListener(TradeListener listener, int capacity,
+            OverflowPolicy policy) {
+        super("Trade Listener", capacity, policy);
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener missing");
+        }
+        if (policy == OverflowPolicy.CONFLATE) {
+            throw new IllegalArgumentException("Trades can't be conflated");
+        }
+        this.listener = listener;
+        start();
+    }
+
+    @Override
+    public void tradeAdded(final Market market, final Trade trade) {
+        enqueue(new Task() {
+            @Override
+            void deliver() {
+                listener.tradeAdded(market, trade);
+            }
+        });
+    }
+}
@@ -0,0 +1,89 @@
+package org.progfun.dispatch;
+
+import org.progfun.Channel;
+import org.progfun.Exchange;
+import org.progfun.Market;
+import org.progfun.orderbook.Book;
+import org.progfun.orderbook.Order;
+import org.progfun.price.PriceCandle;
+import org.progfun.price.Prices;
+import org.progfun.trade.Trade;
+
+/**
+ * Copies market data, so that it can be read on another thread while the
+ * original is being updated
+ */
+class MarketCopy {
+
+    /**
+     * Copy an order
+     *
+     * @param order
+     * @return
+     */
+    static Order copy(Order order) {
+        return new Order(order.getPrice(), order.getAmount(), order.getCount());
+    }
+
+    /**
+     * Copy all orders of a book
+     *
+     * @param book
+     * @return
+     */
+    static Order[] copy(Book book) {
+        Order[] orders = new Order[book.size()];
+        int i = 0;
+        for (Order o : book) {
+            orders[i++] = copy(o);
+        }
+        return orders;
+    }
+
+    /**
+     * Create a new market with a copy of the order book, stored the same way
+     *
+     * @param market
+     * @return
+     */
+    static Market copyBook(Market market) {
+        Market m = new Market(market.getCurrencyPair(),
+                market.getBookType());
+        m.setSymbol(market.getSymbol());
+        if (market.getTickSize() != null) {
+            m.setTickSize(market.getTickSize());
+        }
+        m.loadSnapshot(copy(market.getBids()), copy(market.getAsks()));
+        return m;
+    }
+
+    /**
+     * Create a new exchange with a copy of all the data: order books,
+     * trades and prices
+     *
+     * @param exchange
+     * @return
+     */
+    static Exchange copyData(Exchange exchange) {
+        Exchange e = new Exchange();
+        e.setSymbol(exchange.getSymbol());
+        for (Market market : exchange.getMarkets()) {
+            Market m = copyBook(market);
+            // Same type of store, a columnar one stays compact
+            m.setTradeStore(market.getTrades().newEmptyStore());
+            for (Trade t : market.getTrades()) {
+                m.addTrade(t);
+            }
+            for (Channel resolution : Channel.values()) {
+                Prices prices = market.getPrices(resolution);
+                if (prices != null) {
+                    for (PriceCandle p : prices.getAll()) {
+                        m.addPrice(resolution, p);
+                    }
+                }
+            }
+            e.addMarket(m);
+        }
+        return e;
+    }
+}
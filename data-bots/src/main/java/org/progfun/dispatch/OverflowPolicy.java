@@ -0,0 +1,16 @@
+package org.progfun.dispatch;
+
+/**
+ * What an asynchronous listener does when its queue is full
+ */
+public enum OverflowPolicy {
+    // Wait until the listener catches up. Nothing is lost, but a slow
+    // listener slows down the Handler thread
+    BLOCK,
+    // Drop the oldest waiting event to make room for the new one. Not
+    // supported for order books.
+    DROP_OLDEST,
+    // Keep only the latest state: changes waiting for delivery are merged
+    // with the new ones. Not supported for trades.
+    CONFLATE
+}
@@ -7,6 +7,7 @@ import org.progfun.Channel;
 import org.progfun.Exchange;
 import org.progfun.Market;
 import org.progfun.Subscriptions;
+import org.progfun.ThreadLauncher;
 import org.progfun.bots.bitfinex.BitFinexHandler;
 import org.progfun.websocket.WebSocketHandler;
 
@@ -39,8 +40,7 @@ public class CandleExample {
         subs.addInactive(m2, Channel.PRICES_1H);
         handler.subscribe(subs);
         // Start handler in a separate thread
-        Thread handlerThread = new Thread(handler);
-        handlerThread.start();
+        ThreadLauncher.start(handler, "Handler Thread", false);
         // Notify handler that it has to connect to the WebSocket
         handler.scheduleConnect(0);
 
@@ -3,13 +3,12 @@ package org.progfun.examples;
 import java.util.Collection;
 import java.util.Iterator;
 import org.progfun.Channel;
-import org.progfun.Decimal;
 import org.progfun.Exchange;
 import org.progfun.Market;
 import org.progfun.price.PriceCandle;
 import org.progfun.SnapshotListener;
 import org.progfun.orderbook.Book;
-import org.progfun.orderbook.Order;
+import org.progfun.orderbook.DepthCursor;
 import org.progfun.price.Prices;
 import org.progfun.trade.Trade;
 
@@ -105,10 +104,9 @@ public class ExchangeLogger implements SnapshotListener {
      */
     private void printOrders(Book book, boolean ascending, String title) {
         System.out.println("  " + title + ":");
-        Decimal[] prices = book.getOrderedPrices(ascending);
-        for (int i = 0; i < bidLimit && i < prices.length; ++i) {
-            Order o = book.getOrderForPrice(prices[i]);
-            System.out.println("    " + o.getPrice() + " [" + o.getAmount() + "]");
+        DepthCursor c = book.depth(ascending).limit(bidLimit);
+        while (c.next()) {
+            System.out.println("    " + c.getPrice() + " [" + c.getAmount() + "]");
         }
     }
 
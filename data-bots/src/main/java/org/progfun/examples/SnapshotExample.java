@@ -7,6 +7,7 @@ import org.progfun.Channel;
 import org.progfun.Exchange;
 import org.progfun.Market;
 import org.progfun.Subscriptions;
+import org.progfun.ThreadLauncher;
 import org.progfun.bots.bitfinex.BitFinexHandler;
 import org.progfun.bots.gdax.GdaxHandler;
 import org.progfun.bots.gemini.GeminiHandler;
@@ -45,9 +46,10 @@ public class SnapshotExample {
 //        subs.add(new Market("QSH", "USD"), Channel.ORDERBOOK);
 //        subs.add(new Market("YYW", "USD"), Channel.ORDERBOOK);
         handler.subscribe(subs);
+        // Uncomment to run the crawler on virtual threads (Java 21+)
+//        ThreadLauncher.setVirtualThreads(true);
         // Start handler in a separate thread
-        Thread handlerThread = new Thread(handler);
-        handlerThread.start();
+        ThreadLauncher.start(handler, "Handler Thread", false);
         // Notify handler that it has to connect to the WebSocket
         handler.scheduleConnect(0);
 
@@ -6,6 +6,7 @@ import org.progfun.InvalidFormatException;
 import org.progfun.Logger;
 import org.progfun.Market;
 import org.progfun.Subscriptions;
+import org.progfun.ThreadLauncher;
 import org.progfun.bots.bitfinex.BitFinexHandler;
 import org.progfun.trade.Trade;
 import org.progfun.websocket.WebSocketHandler;
@@ -37,8 +38,7 @@ public class TradeCrawlerExample {
                 Logger.log("Added trade: " + trade.toString());
             });
             
-            Thread handlerThread = new Thread(handler);
-            handlerThread.start();
+            ThreadLauncher.start(handler, "Handler Thread", false);
             // Notify handler that it has to connect to the WebSocket
             handler.scheduleConnect(0);
 
@@ -0,0 +1,365 @@
+package org.progfun.orderbook;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.progfun.Decimal;
+
+/**
+ * Price levels stored in sorted primitive arrays: prices and amounts as
+ * fixed-point units (1e-8), counts as ints. Levels are found with binary
+ * search, inserted and removed by shifting the arrays. For books limited to a
+ * few hundred levels this keeps everything in a few cache lines and updates
+ * do not allocate any objects (except when the arrays must grow).
+ *
+ * Orders returned by this storage are copies: changing them does not change
+ * the book, and they are not updated when the book changes.
+ *
+ * Amounts with more than 8 decimal digits are rounded. Prices and amounts
+ * (also the sums of incremented amounts) must fit into the fixed-point
+ * representation, otherwise ArithmeticException is thrown and the level is
+ * not changed.
+ */
+public class ArrayLevels implements PriceLevels {
+
+    // Initial number of levels, arrays grow when necessary
+    public static final int DEFAULT_CAPACITY = 128;
+
+    // Count value representing "null" (not available), negative counts are
+    // allowed otherwise
+    private static final int NO_COUNT = Integer.MIN_VALUE;
+
+    // Sorted in ascending order
+    private long[] prices;
+    private long[] amounts;
+    private int[] counts;
+    private int size = 0;
+
+    /**
+     * Create empty storage with default capacity
+     */
+    public ArrayLevels() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create empty storage
+     *
+     * @param capacity initial number of price levels
+     */
+    public ArrayLevels(int capacity) {
+        capacity = Math.max(capacity, 1);
+        prices = new long[capacity];
+        amounts = new long[capacity];
+        counts = new int[capacity];
+    }
+
+    @Override
+    public Order add(Order order, boolean increment) {
+        Integer c = order.getCount();
+        int i = find(order.getPrice().getUnits());
+        LevelChange change = update(i, order.getPrice().getUnits(),
+                toUnits(order.getAmount()), c != null ? c : NO_COUNT,
+                increment);
+        switch (change) {
+            case ADDED:
+                return null;
+            case REMOVED:
+                return new Order(order.getPrice(), Decimal.ZERO, null);
+            default:
+                return createOrder(i, order.getPrice());
+        }
+    }
+
+    @Override
+    public LevelChange update(Decimal price, Decimal amount, int count,
+            boolean increment) {
+        long p = price.getUnits();
+        return update(find(p), p, toUnits(amount), count, increment);
+    }
+
+    /**
+     * Update a price level
+     *
+     * @param i result of find(price)
+     * @param price
+     * @param amount
+     * @param count
+     * @param increment
+     * @return
+     */
+    private LevelChange update(int i, long price, long amount, int count,
+            boolean increment) {
+        if (i < 0) {
+            insert(-i - 1, price, amount, count);
+            return LevelChange.ADDED;
+        }
+        if (increment) {
+            // Throws before anything is changed when the sum does not fit
+            amounts[i] = Math.addExact(amounts[i], amount);
+            // Same rules as in Order.increase()
+            if (counts[i] != NO_COUNT) {
+                if (count != NO_COUNT) {
+                    int c = counts[i] + count;
+                    counts[i] = c < 0 ? NO_COUNT : c;
+                }
+            } else {
+                counts[i] = count;
+            }
+        } else {
+            amounts[i] = amount;
+            counts[i] = count;
+        }
+        if (amounts[i] <= 0) {
+            delete(i);
+            return LevelChange.REMOVED;
+        }
+        return LevelChange.UPDATED;
+    }
+
+    @Override
+    public boolean remove(Decimal price) {
+        int i = find(price.getUnits());
+        if (i >= 0) {
+            delete(i);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public void load(Order[] orders) {
+        clear();
+        int n = orders.length;
+        boolean ascending = isSorted(orders, true);
+        if (!ascending && !isSorted(orders, false)) {
+            for (Order o : orders) {
+                add(o, false);
+            }
+            return;
+        }
+        if (n > prices.length) {
+            prices = new long[n];
+            amounts = new long[n];
+            counts = new int[n];
+        }
+        // Fill the arrays directly, no searching or shifting
+        for (int i = 0; i < n; ++i) {
+            Order o = orders[ascending ? i : n - 1 - i];
+            Integer c = o.getCount();
+            prices[i] = o.getPrice().getUnits();
+            amounts[i] = toUnits(o.getAmount());
+            counts[i] = c != null ? c : NO_COUNT;
+        }
+        size = n;
+    }
+
+    /**
+     * Check if orders are sorted by price, without duplicate prices
+     *
+     * @param orders
+     * @param ascending
+     * @return
+     */
+    private static boolean isSorted(Order[] orders, boolean ascending) {
+        for (int i = 1; i < orders.length; ++i) {
+            int cmp = orders[i - 1].getPrice().compareTo(orders[i].getPrice());
+            if (ascending ? cmp >= 0 : cmp <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Order get(Decimal price) {
+        int i = find(price.getUnits());
+        return i >= 0 ? createOrder(i, price) : null;
+    }
+
+    @Override
+    public Order getFirst(boolean ascending) {
+        if (size == 0) {
+            return null;
+        }
+        int i = ascending ? 0 : size - 1;
+        return createOrder(i, Decimal.fromUnits(prices[i]));
+    }
+
+    @Override
+    public Decimal[] getOrderedPrices(boolean ascending) {
+        Decimal[] res = new Decimal[size];
+        for (int i = 0; i < size; ++i) {
+            res[i] = Decimal.fromUnits(prices[ascending ? i : size - 1 - i]);
+        }
+        return res;
+    }
+
+    @Override
+    public Iterator<Order> iterator(final boolean ascending) {
+        return new Iterator<Order>() {
+            private int n = 0;
+
+            @Override
+            public boolean hasNext() {
+                return n < size;
+            }
+
+            @Override
+            public Order next() {
+                if (n >= size) {
+                    throw new NoSuchElementException();
+                }
+                int i = ascending ? n : size - 1 - n;
+                ++n;
+                return createOrder(i, Decimal.fromUnits(prices[i]));
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Order> iterator() {
+        return iterator(true);
+    }
+
+    @Override
+    public DepthCursor depth(final boolean ascending) {
+        return new DepthCursor(ascending) {
+            private int n = 0;
+            // Index of the current level
+            private int i;
+
+            @Override
+            protected boolean advance() {
+                if (n >= size) {
+                    return false;
+                }
+                i = ascending ? n : size - 1 - n;
+                ++n;
+                return true;
+            }
+
+            @Override
+            protected boolean isPriceFixedPoint() {
+                return true;
+            }
+
+            @Override
+            public Decimal getPrice() {
+                return Decimal.fromUnits(prices[i]);
+            }
+
+            @Override
+            public long getPriceUnits() {
+                return prices[i];
+            }
+
+            @Override
+            public Decimal getAmount() {
+                return Decimal.fromUnits(amounts[i]);
+            }
+
+            @Override
+            public long getAmountUnits() {
+                return amounts[i];
+            }
+
+            @Override
+            public int getCount() {
+                return counts[i] != NO_COUNT ? counts[i] : 0;
+            }
+        };
+    }
+
+    @Override
+    public Decimal getPrice(long units) {
+        return Decimal.fromUnits(units);
+    }
+
+    /**
+     * Find a price level using binary search
+     *
+     * @param price
+     * @return index of the level, or (-(insertion point) - 1) if not found
+     */
+    private int find(long price) {
+        return Arrays.binarySearch(prices, 0, size, price);
+    }
+
+    /**
+     * Insert a new level at position i, shift the rest
+     *
+     * @param i
+     * @param price
+     * @param amount
+     * @param count
+     */
+    private void insert(int i, long price, long amount, int count) {
+        if (size == prices.length) {
+            int capacity = prices.length * 2;
+            prices = Arrays.copyOf(prices, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        int n = size - i;
+        if (n > 0) {
+            System.arraycopy(prices, i, prices, i + 1, n);
+            System.arraycopy(amounts, i, amounts, i + 1, n);
+            System.arraycopy(counts, i, counts, i + 1, n);
+        }
+        prices[i] = price;
+        amounts[i] = amount;
+        counts[i] = count;
+        ++size;
+    }
+
+    /**
+     * Delete level at position i, shift the rest
+     *
+     * @param i
+     */
+    private void delete(int i) {
+        int n = size - i - 1;
+        if (n > 0) {
+            System.arraycopy(prices, i + 1, prices, i, n);
+            System.arraycopy(amounts, i + 1, amounts, i, n);
+            System.arraycopy(counts, i + 1, counts, i, n);
+        }
+        --size;
+    }
+
+    /**
+     * Create an Order object for level i
+     *
+     * @param i
+     * @param price price object to use
+     * @return
+     */
+    private Order createOrder(int i, Decimal price) {
+        return new Order(price, Decimal.fromUnits(amounts[i]),
+                counts[i] != NO_COUNT ? counts[i] : null);
+    }
+
+    /**
+     * Convert an amount to fixed-point units, round it if necessary
+     *
+     * @param d
+     * @return
+     */
+    static long toUnits(Decimal d) {
+        if (d.isFixedPoint()) {
+            return d.getUnits();
+        }
+        return new Decimal(d.toBigDecimal()).getUnits();
+    }
+}
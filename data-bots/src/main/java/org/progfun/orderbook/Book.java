@@ -1,8 +1,6 @@
 package org.progfun.orderbook;
 
 import java.util.Iterator;
-import java.util.NavigableSet;
-import java.util.TreeMap;
 import org.progfun.Decimal;
 
 /**
@@ -11,7 +9,84 @@ import org.progfun.Decimal;
  */
 public class Book implements Iterable<Order> {
 
-    private final TreeMap<Decimal, Order> orders = new TreeMap<>();
+    // How many price objects are cached by default
+    public static final int DEFAULT_PRICE_CACHE_SIZE = 256;
+
+    // Storage of price levels, does the real work
+    private PriceLevels levels;
+
+    // Cached first orders on both ends of the book. Only the price of the
+    // first level is maintained on every change, the order itself is
+    // fetched when asked for (null when not fetched yet) - the storage may
+    // have to create it. Used only while the valid flag is set
+    private Decimal lowestPrice;
+    private Order lowest;
+    private boolean lowestValid = true;
+    private Decimal highestPrice;
+    private Order highest;
+    private boolean highestValid = true;
+
+    /**
+     * Create an empty book with the default storage: a tree with price cache
+     */
+    public Book() {
+        this(DEFAULT_PRICE_CACHE_SIZE);
+    }
+
+    /**
+     * Create an empty book with tree storage
+     *
+     * @param priceCacheSize how many price levels to keep in the price cache.
+     * Use zero to disable the cache.
+     */
+    public Book(int priceCacheSize) {
+        this(new TreeLevels(priceCacheSize));
+    }
+
+    /**
+     * Create an empty book with a specific storage of price levels
+     *
+     * @param levels
+     */
+    public Book(PriceLevels levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Create an empty book
+     *
+     * @param type the storage type to use
+     */
+    public Book(BookType type) {
+        this(type.createLevels());
+    }
+
+    /**
+     * Replace the storage of price levels. All the current orders are copied
+     * to the new storage.
+     *
+     * @param newLevels empty storage
+     */
+    public void setLevels(PriceLevels newLevels) {
+        Iterator<Order> it = levels.iterator(true);
+        while (it.hasNext()) {
+            Order o = it.next();
+            newLevels.add(new Order(o.getPrice(), o.getAmount(), o.getCount()),
+                    false);
+        }
+        levels = newLevels;
+        lowestValid = false;
+        highestValid = false;
+    }
+
+    /**
+     * Get the storage of price levels
+     *
+     * @return
+     */
+    public PriceLevels getLevels() {
+        return levels;
+    }
 
     /**
      * Add a new bid/ask order. If an order with that price is already
@@ -36,30 +111,17 @@ public class Book implements Iterable<Order> {
         if (order == null) {
             return null;
         }
-
-        Order o = orders.get(order.getPrice());
+        Order o = levels.add(order, increment);
+        LevelChange change;
         if (o == null) {
-            // First order for this price
-            orders.put(order.getPrice(), order);
-            return null;
+            change = LevelChange.ADDED;
+        } else if (o.getAmount().isPositive()) {
+            change = LevelChange.UPDATED;
         } else {
-            // Existing order
-            if (increment) {
-                // increment amount and count
-                o.increase(order.getAmount(), order.getCount());
-            } else {
-                // replace the amount and count
-                o.setAmount(order.getAmount());
-                o.setCount(order.getCount());
-            }
-            // Check if amount became zero, then we remove the order
-            if (!o.getAmount().isPositive()) {
-                orders.remove(o.getPrice());
-                o.setAmount(Decimal.ZERO);
-                o.setCount(null);
-            }
-            return o;
+            change = LevelChange.REMOVED;
         }
+        levelChanged(order.getPrice(), change);
+        return o;
     }
 
     /**
@@ -73,20 +135,92 @@ public class Book implements Iterable<Order> {
         return add(order, true);
     }
 
+    /**
+     * Add or update a price level without creating an Order object for it
+     * (unless a new level is created). Same rules as for add(order, increment)
+     * apply.
+     *
+     * @param price
+     * @param amount
+     * @param count number of aggregated orders
+     * @param increment
+     * @return what happened to the price level
+     */
+    public LevelChange update(Decimal price, Decimal amount, int count,
+            boolean increment) {
+        LevelChange change = levels.update(price, amount, count, increment);
+        levelChanged(price, change);
+        return change;
+    }
+
+    /**
+     * Update the cached first prices after a change of a price level. Does
+     * not touch the storage, the first orders are fetched again only in
+     * getFirstOrder().
+     *
+     * @param price
+     * @param change
+     */
+    private void levelChanged(Decimal price, LevelChange change) {
+        if (lowestValid) {
+            int cmp = lowestPrice != null ? price.compareTo(lowestPrice) : -1;
+            if (cmp == 0 && change == LevelChange.REMOVED) {
+                // Find the next one when needed
+                lowestValid = false;
+            } else if (cmp == 0) {
+                lowest = null;
+            } else if (cmp < 0 && change == LevelChange.ADDED) {
+                lowestPrice = price;
+                lowest = null;
+            }
+        }
+        if (highestValid) {
+            int cmp = highestPrice != null ? price.compareTo(highestPrice) : 1;
+            if (cmp == 0 && change == LevelChange.REMOVED) {
+                highestValid = false;
+            } else if (cmp == 0) {
+                highest = null;
+            } else if (cmp > 0 && change == LevelChange.ADDED) {
+                highestPrice = price;
+                highest = null;
+            }
+        }
+    }
+
     /**
      * Remove an order with a specific price
      *
      * @param price
      */
     public void remove(Decimal price) {
-        orders.remove(price);
+        if (levels.remove(price)) {
+            levelChanged(price, LevelChange.REMOVED);
+        }
     }
 
     /**
      * Clear all orders from the book
      */
     public void clear() {
-        orders.clear();
+        levels.clear();
+        lowestPrice = null;
+        lowest = null;
+        lowestValid = true;
+        highestPrice = null;
+        highest = null;
+        highestValid = true;
+    }
+
+    /**
+     * Replace all orders in the book with new ones, in one pass. Orders
+     * sorted by price, in either direction, are loaded fastest.
+     *
+     * @param orders one order per price level, the book may keep the objects
+     */
+    public void load(Order[] orders) {
+        levels.load(orders);
+        lowestValid = false;
+        highestValid = false;
     }
 
     /**
@@ -95,7 +229,7 @@ public class Book implements Iterable<Order> {
      * @return
      */
     public int size() {
-        return orders.size();
+        return levels.size();
     }
 
     /**
@@ -106,11 +240,7 @@ public class Book implements Iterable<Order> {
      * @return n-th highest order or null if index out of bounds
      */
     public Decimal[] getOrderedPrices(boolean ascending) {
-        NavigableSet<Decimal> ns = ascending ? orders.navigableKeySet()
-                : orders.descendingKeySet();
-        Decimal[] prices = new Decimal[ns.size()];
-        ns.toArray(prices);
-        return prices;
+        return levels.getOrderedPrices(ascending);
     }
 
     /**
@@ -120,7 +250,19 @@ public class Book implements Iterable<Order> {
      * @return
      */
     public Order getOrderForPrice(Decimal price) {
-        return orders.get(price);
+        return levels.get(price);
+    }
+
+    /**
+     * Get a price object for fixed-point units (1e-8). If the book has
+     * already seen this price, the same object may be returned, without
+     * creating new objects.
+     *
+     * @param units
+     * @return
+     */
+    public Decimal getPrice(long units) {
+        return levels.getPrice(units);
     }
 
     /**
@@ -133,6 +275,44 @@ public class Book implements Iterable<Order> {
         return getOrderForPrice(new Decimal(price));
     }
 
+    /**
+     * Create a cursor over the price levels, sorted by price. The levels are
+     * read directly from the book, nothing is copied. Use limit() and until()
+     * on the cursor to read only the top of the book.
+     *
+     * @param ascending when true, start from the lowest price (asks). When
+     * false, start from the highest price (bids).
+     * @return
+     */
+    public DepthCursor depth(boolean ascending) {
+        return levels.depth(ascending);
+    }
+
+    /**
+     * Copy prices and amounts of the first n levels to arrays, as fixed-point
+     * units (1e-8)
+     *
+     * @param prices
+     * @param amounts
+     * @param n maximum number of levels to copy, limited by the array sizes
+     * @param ascending when true, start from the lowest price (asks). When
+     * false, start from the highest price (bids).
+     * @return number of levels copied
+     * @throws ArithmeticException when a price is not fixed-point
+     */
+    public int fillTopN(long[] prices, long[] amounts, int n,
+            boolean ascending) {
+        n = Math.min(n, Math.min(prices.length, amounts.length));
+        DepthCursor c = levels.depth(ascending).limit(n);
+        int i = 0;
+        while (c.next()) {
+            prices[i] = c.getPriceUnits();
+            amounts[i] = c.getAmountUnits();
+            ++i;
+        }
+        return i;
+    }
+
     /**
      * Return a copy of the orders, limited by price
      *
@@ -143,25 +323,28 @@ public class Book implements Iterable<Order> {
      * @return
      */
     public Book getPriceLimitedOrders(double limitPercent, boolean ascending) {
-        Book b = new Book();
-        if (orders.isEmpty()) {
+        // The copy is short-lived, no need for a price cache
+        Book b = new Book(0);
+        if (levels.size() == 0) {
             return b;
         }
 
         // Get the best price and calculate threshold
-        NavigableSet<Decimal> ns = ascending ? orders.navigableKeySet()
-                : orders.descendingKeySet();
-        Decimal bestPrice = ns.first();
+        Iterator<Order> it = levels.iterator(ascending);
+        Order best = it.next();
         double limit = (ascending ? 1 : -1) * limitPercent;
-        Decimal threshold = getPriceThreshold(bestPrice, limit);
+        Decimal threshold = getPriceThreshold(best.getPrice(), limit);
 
-        for (Decimal price : ns) {
+        b.add(best, false);
+        while (it.hasNext()) {
+            Order o = it.next();
+            Decimal price = o.getPrice();
             if ((ascending && price.isGreaterThan(threshold))
                     || (!ascending && price.isSmallerThan(threshold))) {
                 // Threshold reached
                 break;
             }
-            b.add(orders.get(price), false);
+            b.add(o, false);
         }
 
         return b;
@@ -181,7 +364,17 @@ public class Book implements Iterable<Order> {
 
     @Override
     public Iterator<Order> iterator() {
-        return orders.values().iterator();
+        return levels.iterator();
+    }
+
+    /**
+     * Iterate over orders sorted by price
+     *
+     * @param ascending when true, start from the lowest price
+     * @return
+     */
+    public Iterator<Order> iterator(boolean ascending) {
+        return levels.iterator(ascending);
     }
 
     /**
@@ -245,19 +438,32 @@ public class Book implements Iterable<Order> {
     }
 
     /**
-     * Get the first order
+     * Get the first order. The result is cached, repeated calls do not
+     * search the book. Changes of other price levels keep the cached order.
      *
      * @param ascending when true - return order with the lowest price,
      * otherwise return order with the highest price
      * @return
      */
     public Order getFirstOrder(boolean ascending) {
-        if (orders.isEmpty()) {
-            return null;
+        if (ascending) {
+            if (!lowestValid) {
+                lowest = levels.getFirst(true);
+                lowestPrice = lowest != null ? lowest.getPrice() : null;
+                lowestValid = true;
+            } else if (lowest == null && lowestPrice != null) {
+                lowest = levels.get(lowestPrice);
+            }
+            return lowest;
+        } else {
+            if (!highestValid) {
+                highest = levels.getFirst(false);
+                highestPrice = highest != null ? highest.getPrice() : null;
+                highestValid = true;
+            } else if (highest == null && highestPrice != null) {
+                highest = levels.get(highestPrice);
+            }
+            return highest;
         }
-        NavigableSet<Decimal> ns = ascending ? orders.navigableKeySet()
-                : orders.descendingKeySet();
-        Decimal bestPrice = ns.first();
-        return getOrderForPrice(bestPrice);
     }
 }
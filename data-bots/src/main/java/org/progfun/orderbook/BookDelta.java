@@ -0,0 +1,68 @@
+package org.progfun.orderbook;
+
+import org.progfun.Decimal;
+
+/**
+ * One change of a price level, reported to BookDeltaListener. Delta objects
+ * are reused by the market: read them during the notification, do not keep
+ * references to them!
+ */
+public class BookDelta {
+
+    private boolean bid;
+    private LevelChange change;
+    private Decimal price;
+    private Decimal amount;
+    private int orderCount;
+
+    /**
+     * Fill the delta with new values
+     *
+     * @param bid true for a bid, false for an ask
+     * @param change what happened to the price level
+     * @param price
+     * @param amount total amount for the price after the change, zero when
+     * the level was removed
+     * @param orderCount total number of orders for the price after the change
+     */
+    public void set(boolean bid, LevelChange change, Decimal price,
+            Decimal amount, int orderCount) {
+        this.bid = bid;
+        this.change = change;
+        this.price = price;
+        this.amount = amount;
+        this.orderCount = orderCount;
+    }
+
+    /**
+     * @return true for a bid, false for an ask
+     */
+    public boolean isBid() {
+        return bid;
+    }
+
+    public LevelChange getChange() {
+        return change;
+    }
+
+    public Decimal getPrice() {
+        return price;
+    }
+
+    /**
+     * @return total amount for the price, zero when the level was removed
+     */
+    public Decimal getAmount() {
+        return amount;
+    }
+
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    @Override
+    public String toString() {
+        return (bid ? "Bid " : "Ask ") + change + " " + price
+                + " [" + amount + "]";
+    }
+}
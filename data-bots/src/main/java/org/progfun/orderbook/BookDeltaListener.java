@@ -0,0 +1,29 @@
+package org.progfun.orderbook;
+
+import org.progfun.Market;
+
+/**
+ * Listener for order book changes in batches: parsers group the changes of
+ * one API message, and the listener is called once for all of them, instead
+ * of once per price level as OrderbookListener.
+ */
+public interface BookDeltaListener {
+
+    /**
+     * Price levels of the market changed
+     *
+     * @param market
+     * @param deltas the changes, in the order they were applied. The array
+     * and the deltas are reused after the call returns!
+     * @param count number of valid deltas in the array
+     */
+    public void onBookDelta(Market market, BookDelta[] deltas, int count);
+
+    /**
+     * All bids and asks replaced with a new snapshot. Read the new book from
+     * the market.
+     *
+     * @param market
+     */
+    public void bookReplaced(Market market);
+}
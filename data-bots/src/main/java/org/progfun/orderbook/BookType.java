@@ -0,0 +1,23 @@
+package org.progfun.orderbook;
+
+/**
+ * Storage strategies available for order books
+ */
+public enum BookType {
+    TREE, // Sorted tree of Order objects, no limitations
+    ARRAY; // Sorted primitive arrays, best for books with limited depth
+
+    /**
+     * Create empty price level storage of this type
+     *
+     * @return
+     */
+    public PriceLevels createLevels() {
+        switch (this) {
+            case ARRAY:
+                return new ArrayLevels();
+            default:
+                return new TreeLevels(Book.DEFAULT_PRICE_CACHE_SIZE);
+        }
+    }
+}
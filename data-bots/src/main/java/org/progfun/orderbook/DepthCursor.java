@@ -0,0 +1,135 @@
+package org.progfun.orderbook;
+
+import org.progfun.Decimal;
+
+/**
+ * Cursor over price levels of one book, sorted by price. Values of the
+ * current level are read directly from the book storage, no Order objects or
+ * arrays are copied. Call next() before reading the first level:
+ *
+ * DepthCursor c = book.depth(false).limit(10);
+ * while (c.next()) {
+ *     long price = c.getPriceUnits();
+ *     ...
+ * }
+ *
+ * The cursor must not be used after the book has been changed.
+ */
+public abstract class DepthCursor {
+
+    protected final boolean ascending;
+
+    // How many levels can still be returned
+    private int remaining = Integer.MAX_VALUE;
+    // Stop at this price, null when not limited
+    private Decimal threshold;
+
+    /**
+     * @param ascending when true, start from the lowest price
+     */
+    protected DepthCursor(boolean ascending) {
+        this.ascending = ascending;
+    }
+
+    /**
+     * Return at most n levels
+     *
+     * @param n
+     * @return this cursor
+     */
+    public DepthCursor limit(int n) {
+        this.remaining = n;
+        return this;
+    }
+
+    /**
+     * Stop when a price level beyond the threshold is reached: higher than
+     * the threshold for ascending cursors, lower for descending ones.
+     *
+     * @param threshold the last price to include
+     * @return this cursor
+     */
+    public DepthCursor until(Decimal threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Move to the next price level
+     *
+     * @return true if there is a level, false when the end of the book or
+     * one of the limits is reached
+     */
+    public boolean next() {
+        if (remaining <= 0 || !advance()) {
+            remaining = 0;
+            return false;
+        }
+        if (threshold != null) {
+            int cmp;
+            if (threshold.isFixedPoint() && isPriceFixedPoint()) {
+                cmp = Long.compare(getPriceUnits(), threshold.getUnits());
+            } else {
+                cmp = getPrice().compareTo(threshold);
+            }
+            if (ascending ? cmp > 0 : cmp < 0) {
+                remaining = 0;
+                return false;
+            }
+        }
+        --remaining;
+        return true;
+    }
+
+    /**
+     * Move to the next level in the storage
+     *
+     * @return false if there are no more levels
+     */
+    protected abstract boolean advance();
+
+    /**
+     * Return true if price of the current level fits into fixed-point units
+     *
+     * @return
+     */
+    protected abstract boolean isPriceFixedPoint();
+
+    /**
+     * Return price of the current level. May create a new object.
+     *
+     * @return
+     */
+    public abstract Decimal getPrice();
+
+    /**
+     * Return price of the current level in fixed-point units (1e-8)
+     *
+     * @return
+     * @throws ArithmeticException when the price is not fixed-point
+     */
+    public abstract long getPriceUnits();
+
+    /**
+     * Return amount of the current level. May create a new object.
+     *
+     * @return
+     */
+    public abstract Decimal getAmount();
+
+    /**
+     * Return amount of the current level in fixed-point units (1e-8),
+     * rounded if necessary
+     *
+     * @return
+     */
+    public abstract long getAmountUnits();
+
+    /**
+     * Return number of orders aggregated in the current level, zero when not
+     * known
+     *
+     * @return
+     */
+    public abstract int getCount();
+}
@@ -0,0 +1,611 @@
+package org.progfun.orderbook;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.progfun.Decimal;
+
+/**
+ * Price levels for markets with a fixed price increment (tick size). Prices
+ * are mapped to slots of a ring buffer: slot = (price - base) / tick. The
+ * window covers a limited number of ticks around the prices seen, updates and
+ * removals of levels inside the window are O(1) and do not allocate objects.
+ *
+ * Levels outside the window, prices not on the tick grid and prices which do
+ * not fit into the fixed-point representation are spilled to a sparse tree.
+ * When a new level on the tick grid is spilled while the spill holds more
+ * such levels than the window, the window is recentred around the new price.
+ * Recentring moves only the head of the ring. Prices off the grid (when the
+ * tick size is wrong) stay in the spill and never move the window, so they
+ * cost the same as in TreeLevels.
+ *
+ * Orders returned by this storage are copies for levels inside the window and
+ * live objects for spilled levels. Don't rely on either.
+ *
+ * Amounts of levels inside the window are stored the same way as in
+ * ArrayLevels: when an amount or the sum of incremented amounts does not fit
+ * into the fixed-point representation, ArithmeticException is thrown and the
+ * level is not changed.
+ */
+public class LadderLevels implements PriceLevels {
+
+    // Default number of ticks covered by the window
+    public static final int DEFAULT_WINDOW = 1024;
+
+    // Count value representing "null" (not available)
+    private static final int NO_COUNT = Integer.MIN_VALUE;
+
+    private final long tick;
+    private final int mask;
+    private final long[] amounts;
+    private final int[] counts;
+    private final boolean[] present;
+
+    // Ring index of the lowest price in the window
+    private int head = 0;
+    // Price (units) of the lowest slot in the window
+    private long base;
+    private boolean hasBase = false;
+    // Number of levels inside the window
+    private int ladderSize = 0;
+    // Offsets (from base) of the lowest and highest level in the window,
+    // -1 when window is empty
+    private int low = -1;
+    private int high = -1;
+
+    // Levels that do not fit into the window
+    private final TreeLevels spill = new TreeLevels(0);
+    // Number of spilled levels which are not on the tick grid (or not
+    // fixed-point), these can never move into the window
+    private int offGrid = 0;
+
+    /**
+     * Create empty storage with default window size
+     *
+     * @param tickSize the price increment of the market, must be positive
+     */
+    public LadderLevels(Decimal tickSize) {
+        this(tickSize, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Create empty storage
+     *
+     * @param tickSize the price increment of the market, must be positive
+     * @param window number of ticks covered by the window, rounded up to a
+     * power of two
+     */
+    public LadderLevels(Decimal tickSize, int window) {
+        if (tickSize == null || !tickSize.isPositive()
+                || !tickSize.isFixedPoint()) {
+            throw new IllegalArgumentException("Invalid tick size: "
+                    + tickSize);
+        }
+        this.tick = tickSize.getUnits();
+        int n = Integer.highestOneBit(Math.max(window, 2) - 1) << 1;
+        this.mask = n - 1;
+        amounts = new long[n];
+        counts = new int[n];
+        present = new boolean[n];
+    }
+
+    /**
+     * Return the tick size
+     *
+     * @return
+     */
+    public Decimal getTickSize() {
+        return Decimal.fromUnits(tick);
+    }
+
+    @Override
+    public Order add(Order order, boolean increment) {
+        Decimal price = order.getPrice();
+        int off = locate(price, true);
+        if (off < 0) {
+            Order o = spill.add(order, increment);
+            spillChanged(price, o == null ? LevelChange.ADDED
+                    : (o.getAmount().isPositive() ? LevelChange.UPDATED
+                    : LevelChange.REMOVED));
+            return o;
+        }
+        Integer c = order.getCount();
+        LevelChange change = update(off, ArrayLevels.toUnits(order.getAmount()),
+                c != null ? c : NO_COUNT, increment);
+        switch (change) {
+            case ADDED:
+                return null;
+            case REMOVED:
+                return new Order(price, Decimal.ZERO, null);
+            default:
+                return createOrder(off, price);
+        }
+    }
+
+    @Override
+    public LevelChange update(Decimal price, Decimal amount, int count,
+            boolean increment) {
+        int off = locate(price, true);
+        if (off < 0) {
+            LevelChange change = spill.update(price, amount, count, increment);
+            spillChanged(price, change);
+            return change;
+        }
+        return update(off, ArrayLevels.toUnits(amount), count, increment);
+    }
+
+    /**
+     * Keep count of the spilled levels off the tick grid
+     *
+     * @param price
+     * @param change what happened to the spilled level
+     */
+    private void spillChanged(Decimal price, LevelChange change) {
+        if (change != LevelChange.UPDATED && !isOnGrid(price)) {
+            offGrid += change == LevelChange.ADDED ? 1 : -1;
+        }
+    }
+
+    /**
+     * Check if a price is on the tick grid of the window
+     *
+     * @param price
+     * @return
+     */
+    private boolean isOnGrid(Decimal price) {
+        return price.isFixedPoint()
+                && (!hasBase || (price.getUnits() - base) % tick == 0);
+    }
+
+    /**
+     * Update a price level inside the window
+     *
+     * @param off offset of the level from base
+     * @param amount
+     * @param count
+     * @param increment
+     * @return
+     */
+    private LevelChange update(int off, long amount, int count,
+            boolean increment) {
+        int i = (head + off) & mask;
+        if (!present[i]) {
+            present[i] = true;
+            amounts[i] = amount;
+            counts[i] = count;
+            ++ladderSize;
+            if (low < 0 || off < low) {
+                low = off;
+            }
+            if (off > high) {
+                high = off;
+            }
+            return LevelChange.ADDED;
+        }
+        if (increment) {
+            // Throws before anything is changed when the sum does not fit
+            amounts[i] = Math.addExact(amounts[i], amount);
+            // Same rules as in Order.increase()
+            if (counts[i] != NO_COUNT) {
+                if (count != NO_COUNT) {
+                    int c = counts[i] + count;
+                    counts[i] = c < 0 ? NO_COUNT : c;
+                }
+            } else {
+                counts[i] = count;
+            }
+        } else {
+            amounts[i] = amount;
+            counts[i] = count;
+        }
+        if (amounts[i] <= 0) {
+            delete(off);
+            return LevelChange.REMOVED;
+        }
+        return LevelChange.UPDATED;
+    }
+
+    /**
+     * Delete a level inside the window
+     *
+     * @param off offset of the level from base
+     */
+    private void delete(int off) {
+        present[(head + off) & mask] = false;
+        --ladderSize;
+        if (ladderSize == 0) {
+            low = -1;
+            high = -1;
+            return;
+        }
+        // Move the boundaries to the next existing level
+        if (off == low) {
+            do {
+                ++low;
+            } while (!present[(head + low) & mask]);
+        }
+        if (off == high) {
+            do {
+                --high;
+            } while (!present[(head + high) & mask]);
+        }
+    }
+
+    /**
+     * Find offset of the price inside the window
+     *
+     * @param price
+     * @param insert when true, the window may be moved so that the price fits
+     * into it
+     * @return offset from base or -1 if the price does not belong to the window
+     */
+    private int locate(Decimal price, boolean insert) {
+        if (!price.isFixedPoint()) {
+            return -1;
+        }
+        long p = price.getUnits();
+        int off = offset(p);
+        if (off >= 0 || !insert) {
+            return off;
+        }
+        // Move the window when it is empty, or when a new level on the grid
+        // arrives while the spill holds most of the levels on the grid
+        if (ladderSize == 0 || (spill.size() - offGrid > ladderSize
+                && (p - base) % tick == 0 && spill.get(price) == null)) {
+            recenter(p);
+            return offset(p);
+        }
+        return -1;
+    }
+
+    /**
+     * Calculate offset of the price from base
+     *
+     * @param p price in units
+     * @return offset or -1 if the price is outside the window or not on the
+     * tick grid
+     */
+    private int offset(long p) {
+        if (!hasBase) {
+            return -1;
+        }
+        long d = p - base;
+        if (d < 0 || d % tick != 0) {
+            return -1;
+        }
+        d /= tick;
+        return d <= mask ? (int) d : -1;
+    }
+
+    /**
+     * Move the window so that the price is in the middle of it. Levels which
+     * fall out of the window are moved to the spill, spilled levels which fit
+     * into the new window are moved into it. When the price is on the current
+     * tick grid, only the ring head moves, the levels stay in their slots.
+     *
+     * @param p price in units
+     */
+    private void recenter(long p) {
+        long half = (mask + 1) / 2;
+        long newBase = p - half * tick;
+        if (newBase > p) {
+            // Overflow, start the window at the price instead
+            newBase = p;
+        }
+        long shift = newBase - base;
+        if (hasBase && ladderSize > 0 && shift % tick == 0
+                && Math.abs(shift / tick) <= mask) {
+            int k = (int) (shift / tick);
+            // Evict the slots which leave the window
+            int from = k > 0 ? 0 : mask + 1 + k;
+            int to = k > 0 ? k - 1 : mask;
+            for (int off = Math.max(from, low); off <= Math.min(to, high);
+                    ++off) {
+                evict(off);
+            }
+            head = (head + k) & mask;
+            base = newBase;
+            // Find the new boundaries
+            low = -1;
+            high = -1;
+            for (int off = 0; off <= mask; ++off) {
+                if (present[(head + off) & mask]) {
+                    if (low < 0) {
+                        low = off;
+                    }
+                    high = off;
+                }
+            }
+        } else {
+            for (int off = low; off >= 0 && off <= high; ++off) {
+                evict(off);
+            }
+            low = -1;
+            high = -1;
+            head = 0;
+            base = newBase;
+            hasBase = true;
+        }
+
+        offGrid = 0;
+        if (spill.size() == 0) {
+            return;
+        }
+        // The grid may have changed, count the levels off the grid again
+        List<Order> moved = new ArrayList<>();
+        for (Order o : spill) {
+            int off = o.getPrice().isFixedPoint()
+                    ? offset(o.getPrice().getUnits()) : -1;
+            if (off >= 0) {
+                Integer c = o.getCount();
+                update(off, ArrayLevels.toUnits(o.getAmount()),
+                        c != null ? c : NO_COUNT, false);
+                moved.add(o);
+            } else if (!isOnGrid(o.getPrice())) {
+                ++offGrid;
+            }
+        }
+        for (Order o : moved) {
+            spill.remove(o.getPrice());
+        }
+    }
+
+    /**
+     * Move a level from the window to the spill, if it exists. The window
+     * boundaries are not updated.
+     *
+     * @param off offset of the level from base
+     */
+    private void evict(int off) {
+        int i = (head + off) & mask;
+        if (present[i]) {
+            present[i] = false;
+            --ladderSize;
+            spill.add(new Order(Decimal.fromUnits(base + off * tick),
+                    Decimal.fromUnits(amounts[i]),
+                    counts[i] != NO_COUNT ? counts[i] : null), false);
+        }
+    }
+
+    @Override
+    public boolean remove(Decimal price) {
+        int off = locate(price, false);
+        if (off < 0) {
+            if (spill.remove(price)) {
+                spillChanged(price, LevelChange.REMOVED);
+                return true;
+            }
+            return false;
+        }
+        if (present[(head + off) & mask]) {
+            delete(off);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for (int off = low; off >= 0 && off <= high; ++off) {
+            present[(head + off) & mask] = false;
+        }
+        ladderSize = 0;
+        low = -1;
+        high = -1;
+        spill.clear();
+        offGrid = 0;
+    }
+
+    @Override
+    public void load(Order[] orders) {
+        clear();
+        for (Order o : orders) {
+            add(o, false);
+        }
+    }
+
+    @Override
+    public int size() {
+        return ladderSize + spill.size();
+    }
+
+    @Override
+    public Order get(Decimal price) {
+        int off = locate(price, false);
+        if (off < 0) {
+            return spill.get(price);
+        }
+        return present[(head + off) & mask] ? createOrder(off, price) : null;
+    }
+
+    @Override
+    public Order getFirst(boolean ascending) {
+        Order s = spill.getFirst(ascending);
+        if (ladderSize == 0) {
+            return s;
+        }
+        int off = ascending ? low : high;
+        long p = base + off * tick;
+        if (s != null && isBefore(s.getPrice(), p, ascending)) {
+            return s;
+        }
+        return createOrder(off, Decimal.fromUnits(p));
+    }
+
+    @Override
+    public Decimal[] getOrderedPrices(boolean ascending) {
+        Decimal[] res = new Decimal[size()];
+        Iterator<Order> it = iterator(ascending);
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = it.next().getPrice();
+        }
+        return res;
+    }
+
+    @Override
+    public Iterator<Order> iterator(boolean ascending) {
+        final Cursor c = new Cursor(ascending);
+        return new Iterator<Order>() {
+            private boolean hasNext = c.advance();
+
+            @Override
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public Order next() {
+                if (!hasNext) {
+                    throw new NoSuchElementException();
+                }
+                Order o = c.spilled != null ? c.spilled
+                        : createOrder(c.current, c.getPrice());
+                hasNext = c.advance();
+                return o;
+            }
+        };
+    }
+
+    @Override
+    public DepthCursor depth(boolean ascending) {
+        return new Cursor(ascending);
+    }
+
+    /**
+     * Cursor merging levels of the window with the spilled levels
+     */
+    private class Cursor extends DepthCursor {
+
+        private final Iterator<Order> spilledIt;
+        private Order nextSpilled;
+        // Offset of the next level inside the window, -1 when none
+        private int nextOffset;
+
+        // The current level: either an offset inside the window, or a
+        // spilled order
+        private int current = -1;
+        private Order spilled;
+
+        Cursor(boolean ascending) {
+            super(ascending);
+            spilledIt = spill.iterator(ascending);
+            nextSpilled = spilledIt.hasNext() ? spilledIt.next() : null;
+            nextOffset = ladderSize == 0 ? -1 : (ascending ? low : high);
+        }
+
+        @Override
+        protected boolean advance() {
+            if (nextOffset >= 0 && (nextSpilled == null || !isBefore(
+                    nextSpilled.getPrice(), base + nextOffset * tick,
+                    ascending))) {
+                current = nextOffset;
+                spilled = null;
+                nextOffset = step(nextOffset, ascending);
+                return true;
+            }
+            if (nextSpilled != null) {
+                current = -1;
+                spilled = nextSpilled;
+                nextSpilled = spilledIt.hasNext() ? spilledIt.next() : null;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean isPriceFixedPoint() {
+            return spilled == null || spilled.getPrice().isFixedPoint();
+        }
+
+        @Override
+        public Decimal getPrice() {
+            return spilled != null ? spilled.getPrice()
+                    : Decimal.fromUnits(base + current * tick);
+        }
+
+        @Override
+        public long getPriceUnits() {
+            return spilled != null ? spilled.getPrice().getUnits()
+                    : base + current * tick;
+        }
+
+        @Override
+        public Decimal getAmount() {
+            return spilled != null ? spilled.getAmount()
+                    : Decimal.fromUnits(amounts[(head + current) & mask]);
+        }
+
+        @Override
+        public long getAmountUnits() {
+            return spilled != null ? ArrayLevels.toUnits(spilled.getAmount())
+                    : amounts[(head + current) & mask];
+        }
+
+        @Override
+        public int getCount() {
+            if (spilled != null) {
+                Integer c = spilled.getCount();
+                return c != null ? c : 0;
+            }
+            int c = counts[(head + current) & mask];
+            return c != NO_COUNT ? c : 0;
+        }
+    }
+
+    /**
+     * Find the next level inside the window
+     *
+     * @param off offset of the current level
+     * @param ascending
+     * @return offset of the next level or -1 if there are no more levels
+     */
+    private int step(int off, boolean ascending) {
+        if (off == (ascending ? high : low)) {
+            return -1;
+        }
+        do {
+            off += ascending ? 1 : -1;
+        } while (!present[(head + off) & mask]);
+        return off;
+    }
+
+    @Override
+    public Iterator<Order> iterator() {
+        return iterator(true);
+    }
+
+    @Override
+    public Decimal getPrice(long units) {
+        return Decimal.fromUnits(units);
+    }
+
+    /**
+     * Check if a price comes before a fixed-point price in the given order
+     *
+     * @param price
+     * @param units
+     * @param ascending
+     * @return
+     */
+    private static boolean isBefore(Decimal price, long units,
+            boolean ascending) {
+        int cmp = price.isFixedPoint()
+                ? Long.compare(price.getUnits(), units)
+                : price.compareTo(Decimal.fromUnits(units));
+        return ascending ? cmp < 0 : cmp > 0;
+    }
+
+    /**
+     * Create an Order object for a level inside the window
+     *
+     * @param off offset of the level from base
+     * @param price price object to use
+     * @return
+     */
+    private Order createOrder(int off, Decimal price) {
+        int i = (head + off) & mask;
+        return new Order(price, Decimal.fromUnits(amounts[i]),
+                counts[i] != NO_COUNT ? counts[i] : null);
+    }
+}
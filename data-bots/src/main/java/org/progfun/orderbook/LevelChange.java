@@ -0,0 +1,10 @@
+package org.progfun.orderbook;
+
+/**
+ * What happened to a price level after an update in the book
+ */
+public enum LevelChange {
+    ADDED, // A new price level was created
+    UPDATED, // Amount or count of an existing price level changed
+    REMOVED // The price level was removed from the book
+}
@@ -0,0 +1,62 @@
+package org.progfun.orderbook;
+
+import java.util.Iterator;
+import org.progfun.Decimal;
+
+/**
+ * Depth cursor over storage that keeps Order objects
+ */
+class OrderCursor extends DepthCursor {
+
+    private final Iterator<Order> it;
+    private Order order;
+
+    /**
+     * @param it iterator over the orders, sorted by price
+     * @param ascending direction of the iterator
+     */
+    OrderCursor(Iterator<Order> it, boolean ascending) {
+        super(ascending);
+        this.it = it;
+    }
+
+    @Override
+    protected boolean advance() {
+        if (!it.hasNext()) {
+            return false;
+        }
+        order = it.next();
+        return true;
+    }
+
+    @Override
+    protected boolean isPriceFixedPoint() {
+        return order.getPrice().isFixedPoint();
+    }
+
+    @Override
+    public Decimal getPrice() {
+        return order.getPrice();
+    }
+
+    @Override
+    public long getPriceUnits() {
+        return order.getPrice().getUnits();
+    }
+
+    @Override
+    public Decimal getAmount() {
+        return order.getAmount();
+    }
+
+    @Override
+    public long getAmountUnits() {
+        return ArrayLevels.toUnits(order.getAmount());
+    }
+
+    @Override
+    public int getCount() {
+        Integer c = order.getCount();
+        return c != null ? c : 0;
+    }
+}
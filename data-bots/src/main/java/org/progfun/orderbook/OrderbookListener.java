@@ -1,5 +1,6 @@
 package org.progfun.orderbook;
 
+import java.util.Iterator;
 import org.progfun.Decimal;
 import org.progfun.Market;
 
@@ -50,5 +51,22 @@ public interface OrderbookListener {
      */
     public void askRemoved(Market market, Decimal price);
 
+    /**
+     * All bids and asks replaced with a new snapshot. Read the new book from
+     * the market. By default every level of the new book is reported with
+     * bidAdded() and askAdded(), best prices first. Listeners keeping their
+     * own copy of the book should override it and drop the old levels.
+     * @param market
+     */
+    public default void bookReplaced(Market market) {
+        Iterator<Order> it = market.getBids().iterator(false);
+        while (it.hasNext()) {
+            bidAdded(market, it.next());
+        }
+        it = market.getAsks().iterator(true);
+        while (it.hasNext()) {
+            askAdded(market, it.next());
+        }
+    }
 
 }
@@ -0,0 +1,166 @@
+package org.progfun.orderbook;
+
+import org.progfun.Decimal;
+
+/**
+ * Bounded cache of canonical price objects. Most order book updates hit a
+ * small set of price levels near the top of the book, therefore the same
+ * Decimal instance can be reused for them instead of keeping a new copy for
+ * every update.
+ *
+ * The cache is set-associative: every price can be stored only in one small
+ * set of slots. When the set is full, a slot is evicted using the "clock"
+ * (second chance) strategy: recently used slots get one more round.
+ *
+ * The class is NOT Thread safe!
+ */
+public class PriceCache {
+
+    // Number of slots in each set
+    private static final int WAYS = 4;
+
+    private final long[] keys;
+    private final Decimal[] prices;
+    private final boolean[] referenced;
+    // Clock hand for each set
+    private final int[] hands;
+    private final int setBits;
+
+    /**
+     * Create a price cache
+     *
+     * @param capacity maximum number of prices stored in the cache. Rounded up
+     * to a power of two, at least 4.
+     */
+    public PriceCache(int capacity) {
+        int sets = 1;
+        int bits = 0;
+        while (sets * WAYS < capacity) {
+            sets <<= 1;
+            ++bits;
+        }
+        this.setBits = bits;
+        this.keys = new long[sets * WAYS];
+        this.prices = new Decimal[sets * WAYS];
+        this.referenced = new boolean[sets * WAYS];
+        this.hands = new int[sets];
+    }
+
+    /**
+     * Return maximum number of prices held in the cache
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return prices.length;
+    }
+
+    /**
+     * Get the canonical object for a price. If the price is not cached yet,
+     * this one will be stored and returned.
+     *
+     * @param price
+     * @return cached object with the same value, or the price itself. Prices
+     * that are not fixed-point numbers are never cached.
+     */
+    public Decimal intern(Decimal price) {
+        if (price == null || !price.isFixedPoint()) {
+            return price;
+        }
+        long units = price.getUnits();
+        int first = findSet(units);
+        int slot = find(first, units);
+        if (slot >= 0) {
+            return prices[slot];
+        }
+        store(first, units, price);
+        return price;
+    }
+
+    /**
+     * Get the canonical object for a price given in fixed-point units (1e-8).
+     * A new Decimal is created only if the price is not in the cache.
+     *
+     * @param units
+     * @return
+     */
+    public Decimal get(long units) {
+        int first = findSet(units);
+        int slot = find(first, units);
+        if (slot >= 0) {
+            return prices[slot];
+        }
+        Decimal price = Decimal.fromUnits(units);
+        if (price.isFixedPoint()) {
+            store(first, units, price);
+        }
+        return price;
+    }
+
+    /**
+     * Remove all prices from the cache
+     */
+    public void clear() {
+        for (int i = 0; i < prices.length; ++i) {
+            prices[i] = null;
+            referenced[i] = false;
+        }
+    }
+
+    /**
+     * Find the first slot of the set where the price can be stored
+     *
+     * @param units
+     * @return
+     */
+    private int findSet(long units) {
+        if (setBits == 0) {
+            return 0;
+        }
+        // Fibonacci hashing, spreads neighbour price levels among the sets
+        long h = units * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> (64 - setBits)) * WAYS;
+    }
+
+    /**
+     * Find the slot holding the given price
+     *
+     * @param first first slot of the set
+     * @param units
+     * @return slot index or -1 if not found
+     */
+    private int find(int first, long units) {
+        for (int i = first; i < first + WAYS; ++i) {
+            if (prices[i] != null && keys[i] == units) {
+                referenced[i] = true;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Store a price in the set, evict an old one if necessary
+     *
+     * @param first first slot of the set
+     * @param units
+     * @param price
+     */
+    private void store(int first, long units, Decimal price) {
+        int set = first / WAYS;
+        int hand = hands[set];
+        while (true) {
+            int slot = first + hand;
+            hand = (hand + 1) % WAYS;
+            if (prices[slot] == null || !referenced[slot]) {
+                keys[slot] = units;
+                prices[slot] = price;
+                referenced[slot] = false;
+                hands[set] = hand;
+                return;
+            }
+            // Give the slot a second chance
+            referenced[slot] = false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.progfun.orderbook;
+
+import java.util.Iterator;
+import org.progfun.Decimal;
+
+/**
+ * Storage of price levels for one side of an order book. Book delegates all
+ * the work to an implementation of this interface, therefore different
+ * storage strategies can be used for different markets.
+ *
+ * Implementations are NOT Thread safe!
+ */
+public interface PriceLevels extends Iterable<Order> {
+
+    /**
+     * Add a new order, or merge it into an existing price level. See
+     * Book.add(order, increment) for the exact contract.
+     *
+     * @param order
+     * @param increment
+     * @return null if a new price level was created, otherwise the updated
+     * order
+     */
+    public Order add(Order order, boolean increment);
+
+    /**
+     * Add or update a price level without passing an Order object. Same rules
+     * as for add(order, increment) apply.
+     *
+     * @param price
+     * @param amount
+     * @param count number of aggregated orders
+     * @param increment
+     * @return what happened to the price level
+     */
+    public LevelChange update(Decimal price, Decimal amount, int count,
+            boolean increment);
+
+    /**
+     * Remove a price level
+     *
+     * @param price
+     * @return true if the level existed
+     */
+    public boolean remove(Decimal price);
+
+    /**
+     * Remove all price levels
+     */
+    public void clear();
+
+    /**
+     * Replace all price levels with the given orders. Orders sorted by price,
+     * in either direction, are loaded fastest. The storage may keep the order
+     * objects.
+     *
+     * @param orders one order per price level
+     */
+    public void load(Order[] orders);
+
+    /**
+     * Return number of price levels
+     *
+     * @return
+     */
+    public int size();
+
+    /**
+     * Get order for a specific price
+     *
+     * @param price
+     * @return the order or null if there is no such price level
+     */
+    public Order get(Decimal price);
+
+    /**
+     * Get the first order
+     *
+     * @param ascending when true - return order with the lowest price,
+     * otherwise return order with the highest price
+     * @return the order or null if there are no price levels
+     */
+    public Order getFirst(boolean ascending);
+
+    /**
+     * Get an ordered array of prices
+     *
+     * @param ascending
+     * @return
+     */
+    public Decimal[] getOrderedPrices(boolean ascending);
+
+    /**
+     * Iterate over orders sorted by price
+     *
+     * @param ascending
+     * @return
+     */
+    public Iterator<Order> iterator(boolean ascending);
+
+    /**
+     * Create a cursor over the price levels, reading them without copying
+     *
+     * @param ascending when true, start from the lowest price
+     * @return
+     */
+    public DepthCursor depth(boolean ascending);
+
+    /**
+     * Get a price object for fixed-point units (1e-8). Implementations may
+     * return the same object for the same price.
+     *
+     * @param units
+     * @return
+     */
+    public Decimal getPrice(long units);
+}
@@ -0,0 +1,22 @@
+package org.progfun.orderbook;
+
+import org.progfun.Market;
+
+/**
+ * Listener for the best bid and best ask (level 1 quote) of a market. Called
+ * only when the price or amount of the best bid or best ask changes, not on
+ * every change of the order book.
+ */
+public interface TopOfBookListener {
+
+    /**
+     * The best bid or the best ask changed
+     *
+     * @param market
+     * @param bestBid bid with the highest price, null when there are no bids.
+     * The object belongs to the order book: don't modify it and don't keep it
+     * after the call returns.
+     * @param bestAsk ask with the lowest price, null when there are no asks
+     */
+    public void topOfBookChanged(Market market, Order bestBid, Order bestAsk);
+}
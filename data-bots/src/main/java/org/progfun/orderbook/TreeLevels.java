@@ -0,0 +1,186 @@
+package org.progfun.orderbook;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.progfun.Decimal;
+
+/**
+ * Price levels stored as Order objects in a sorted tree. This is the default
+ * storage: any number of levels, any prices. Orders returned by this storage
+ * are the live objects stored in the book.
+ */
+public class TreeLevels implements PriceLevels {
+
+    private final TreeMap<Decimal, Order> orders = new TreeMap<>();
+    // The same orders indexed by price, for O(1) lookups of existing levels.
+    // Must always contain exactly the same orders as the tree
+    private final HashMap<Decimal, Order> index = new HashMap<>();
+
+    // Canonical price objects used as keys, null when caching disabled
+    private final PriceCache priceCache;
+
+    /**
+     * Create empty storage
+     *
+     * @param priceCacheSize how many price levels to keep in the price cache.
+     * Use zero to disable the cache.
+     */
+    public TreeLevels(int priceCacheSize) {
+        this.priceCache = priceCacheSize > 0
+                ? new PriceCache(priceCacheSize) : null;
+    }
+
+    @Override
+    public Order add(Order order, boolean increment) {
+        Order o = index.get(order.getPrice());
+        if (o == null) {
+            insert(order);
+            return null;
+        } else {
+            merge(o, order.getAmount(), order.getCount(), increment);
+            return o;
+        }
+    }
+
+    @Override
+    public LevelChange update(Decimal price, Decimal amount, int count,
+            boolean increment) {
+        Order o = index.get(price);
+        if (o == null) {
+            insert(new Order(price, amount, count));
+            return LevelChange.ADDED;
+        } else if (merge(o, amount, count, increment)) {
+            return LevelChange.REMOVED;
+        } else {
+            return LevelChange.UPDATED;
+        }
+    }
+
+    /**
+     * Insert an order for a new price level
+     *
+     * @param order
+     */
+    private void insert(Order order) {
+        // Use the canonical price object as the key, so that a level that
+        // comes and goes reuses it
+        if (priceCache != null) {
+            order.setPrice(priceCache.intern(order.getPrice()));
+        }
+        orders.put(order.getPrice(), order);
+        index.put(order.getPrice(), order);
+    }
+
+    /**
+     * Update an existing order, remove it when amount is not positive anymore
+     *
+     * @param o
+     * @param amount
+     * @param count
+     * @param increment
+     * @return true if the order was removed
+     */
+    private boolean merge(Order o, Decimal amount, Integer count,
+            boolean increment) {
+        if (increment) {
+            // increment amount and count
+            o.increase(amount, count);
+        } else {
+            // replace the amount and count
+            o.setAmount(amount);
+            o.setCount(count);
+        }
+        // Check if amount became zero, then we remove the order
+        if (!o.getAmount().isPositive()) {
+            orders.remove(o.getPrice());
+            index.remove(o.getPrice());
+            o.setAmount(Decimal.ZERO);
+            o.setCount(null);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(Decimal price) {
+        // Avoid searching the tree if there is no such price level
+        if (index.remove(price) != null) {
+            orders.remove(price);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        orders.clear();
+        index.clear();
+    }
+
+    @Override
+    public void load(Order[] orders) {
+        clear();
+        for (Order o : orders) {
+            add(o, false);
+        }
+    }
+
+    @Override
+    public int size() {
+        return orders.size();
+    }
+
+    @Override
+    public Order get(Decimal price) {
+        return index.get(price);
+    }
+
+    @Override
+    public Order getFirst(boolean ascending) {
+        if (orders.isEmpty()) {
+            return null;
+        }
+        return ascending ? orders.firstEntry().getValue()
+                : orders.lastEntry().getValue();
+    }
+
+    @Override
+    public Decimal[] getOrderedPrices(boolean ascending) {
+        NavigableMap<Decimal, Order> m = ascending ? orders
+                : orders.descendingMap();
+        Decimal[] prices = new Decimal[m.size()];
+        m.keySet().toArray(prices);
+        return prices;
+    }
+
+    @Override
+    public Iterator<Order> iterator(boolean ascending) {
+        NavigableMap<Decimal, Order> m = ascending ? orders
+                : orders.descendingMap();
+        return Collections.unmodifiableCollection(m.values()).iterator();
+    }
+
+    @Override
+    public DepthCursor depth(boolean ascending) {
+        NavigableMap<Decimal, Order> m = ascending ? orders
+                : orders.descendingMap();
+        return new OrderCursor(m.values().iterator(), ascending);
+    }
+
+    @Override
+    public Iterator<Order> iterator() {
+        // Removing through the iterator would break the price index
+        return Collections.unmodifiableCollection(orders.values()).iterator();
+    }
+
+    @Override
+    public Decimal getPrice(long units) {
+        if (priceCache != null) {
+            return priceCache.get(units);
+        }
+        return Decimal.fromUnits(units);
+    }
+}
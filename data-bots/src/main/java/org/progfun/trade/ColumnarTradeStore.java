@@ -0,0 +1,190 @@
+package org.progfun.trade;
+
+import java.util.Date;
+import org.progfun.Decimal;
+
+/**
+ * Trade store which keeps the values in primitive arrays (columns) instead of
+ * Trade objects: id, time, price and amount as longs, the side as one bit.
+ * That is about 32 bytes per trade, a Trade object with its Date and
+ * Decimals takes several times more. Suitable for keeping millions of trades
+ * per market in memory.
+ *
+ * Trades are returned as TradeView objects. Iteration and get() create a new
+ * view for every trade, so the store behaves as any other collection. To read
+ * many trades without allocating, reuse one view with get(int, TradeView):
+ *
+ * TradeView view = store.newView();
+ * for (int i = store.indexSince(time); i < store.size(); ++i) {
+ *     store.get(i, view);
+ *     ...
+ * }
+ *
+ * The views are read-only, setId() throws UnsupportedOperationException.
+ * A view is equal only to views of the same trade, never to the Trade object
+ * which was added to the store. Use TradeView.copy() when a standalone Trade
+ * is needed.
+ *
+ * Prices and amounts that don't fit in fixed-point units (see Decimal) are
+ * rare, for these the original Trade object is kept in a separate array,
+ * allocated only when needed.
+ */
+public class ColumnarTradeStore extends TradeStore {
+
+    private long[] ids = new long[0];
+    private long[] times = new long[0];
+    private long[] prices = new long[0];
+    private long[] amounts = new long[0];
+    // One bit per slot, set for sell-side trades
+    private long[] sellSides = new long[0];
+    // Trades that don't fit in the columns, null until the first one
+    private Trade[] exact = null;
+    private int capacity = 0;
+
+    /**
+     * Create a store for at most DEFAULT_MAX_COUNT trades
+     */
+    public ColumnarTradeStore() {
+        super();
+    }
+
+    /**
+     * Create a store with given limits
+     *
+     * @param maxCount maximum number of trades kept
+     * @param maxAge maximum age of trades, in milliseconds. 0 for no limit.
+     */
+    public ColumnarTradeStore(int maxCount, long maxAge) {
+        super(maxCount, maxAge);
+    }
+
+    /**
+     * Read a trade into an existing view, without allocating anything
+     *
+     * @param i position, 0 is the oldest trade
+     * @param view
+     * @return the view
+     */
+    public TradeView get(int i, TradeView view) {
+        if (i < 0 || i >= size()) {
+            throw new IndexOutOfBoundsException("Trade " + i + ", size "
+                    + size());
+        }
+        load(position(i), view);
+        return view;
+    }
+
+    /**
+     * Create a view for reading trades with get(int, TradeView)
+     *
+     * @return
+     */
+    public TradeView newView() {
+        return new TradeView();
+    }
+
+    @Override
+    public TradeStore newEmptyStore() {
+        return new ColumnarTradeStore(getMaxCount(), getMaxAge());
+    }
+
+    @Override
+    protected int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    protected void reallocate(int newCapacity, int count) {
+        long[] newIds = new long[newCapacity];
+        long[] newTimes = new long[newCapacity];
+        long[] newPrices = new long[newCapacity];
+        long[] newAmounts = new long[newCapacity];
+        long[] newSides = new long[(newCapacity + 63) >>> 6];
+        Trade[] newExact = exact != null ? new Trade[newCapacity] : null;
+        for (int i = 0; i < count; ++i) {
+            int pos = position(i);
+            newIds[i] = ids[pos];
+            newTimes[i] = times[pos];
+            newPrices[i] = prices[pos];
+            newAmounts[i] = amounts[pos];
+            if (isSell(sellSides, pos)) {
+                newSides[i >>> 6] |= 1L << i;
+            }
+            if (newExact != null) {
+                newExact[i] = exact[pos];
+            }
+        }
+        ids = newIds;
+        times = newTimes;
+        prices = newPrices;
+        amounts = newAmounts;
+        sellSides = newSides;
+        exact = newExact;
+        capacity = newCapacity;
+    }
+
+    @Override
+    protected void setSlot(int pos, Trade trade) {
+        ids[pos] = trade.getId();
+        Date time = trade.getTime();
+        times[pos] = time != null ? time.getTime() : NO_TIME;
+        Decimal price = trade.getPrice();
+        Decimal amount = trade.getAmount();
+        if (fits(price) && fits(amount)) {
+            prices[pos] = price.getUnits();
+            amounts[pos] = amount.getUnits();
+            if (exact != null) {
+                exact[pos] = null;
+            }
+        } else {
+            if (exact == null) {
+                exact = new Trade[capacity];
+            }
+            exact[pos] = trade;
+        }
+        if (trade.isSellSide()) {
+            sellSides[pos >>> 6] |= 1L << pos;
+        } else {
+            sellSides[pos >>> 6] &= ~(1L << pos);
+        }
+    }
+
+    @Override
+    protected Trade getSlot(int pos) {
+        TradeView view = new TradeView();
+        load(pos, view);
+        return view;
+    }
+
+    @Override
+    protected long getSlotTime(int pos) {
+        return times[pos];
+    }
+
+    @Override
+    protected void clearSlot(int pos) {
+        if (exact != null) {
+            exact[pos] = null;
+        }
+    }
+
+    /**
+     * Fill the view with the trade stored in a slot
+     */
+    private void load(int pos, TradeView view) {
+        long time = times[pos];
+        view.load(ids[pos], time, time != NO_TIME, prices[pos], amounts[pos],
+                isSell(sellSides, pos), exact != null ? exact[pos] : null);
+    }
+
+    private static boolean isSell(long[] bits, int pos) {
+        return (bits[pos >>> 6] & (1L << pos)) != 0;
+    }
+
+    /**
+     * Check if a number can be stored in a column
+     */
+    private static boolean fits(Decimal d) {
+        return d != null && d.isFixedPoint();
+    }
+}
@@ -35,6 +35,15 @@ public class Trade {
         return id;
     }
 
+    /**
+     * Set the ID of the trade. Trades read from a ColumnarTradeStore are
+     * read-only views (TradeView), for them this method throws
+     * UnsupportedOperationException. Use TradeView.copy() to get a trade
+     * that can be changed.
+     *
+     * @param id
+     * @throws UnsupportedOperationException when called on a TradeView
+     */
     public void setId(long id) {
         this.id = id;
     }
@@ -62,7 +71,8 @@ public class Trade {
     }
     
     public String toString() {
-        return (sellSide ? "Sell " : "Buy ") + amount + " @ " + price + " [" + time + "]";
+        return (isSellSide() ? "Sell " : "Buy ") + getAmount() + " @ "
+                + getPrice() + " [" + getTime() + "]";
     }
 
 }
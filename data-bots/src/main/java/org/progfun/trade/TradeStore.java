@@ -0,0 +1,374 @@
+package org.progfun.trade;
+
+import java.util.AbstractCollection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Trades of one market, stored in a circular buffer. The store is bounded:
+ * when the maximum count is reached, the oldest trade is overwritten. An
+ * optional maximum age removes trades older than that, compared to the time
+ * of the newest trade. Adding a trade is O(1), the buffer grows on demand up
+ * to the maximum count.
+ *
+ * Trades are expected to be added in time order. The views returned by
+ * getLast() and getSince() do not copy anything, they iterate over the
+ * buffer directly - don't add trades while iterating. Every trade returned
+ * by get() or an iterator is a separate object, the store can be used as
+ * any other collection.
+ *
+ * Subclasses can store the trades in a different way by overriding the
+ * slot methods, see ColumnarTradeStore.
+ *
+ * The class is NOT thread safe, same as Market.
+ */
+public class TradeStore extends AbstractCollection<Trade> {
+
+    public static final int DEFAULT_MAX_COUNT = 100000;
+    private static final int INITIAL_CAPACITY = 16;
+    // Slot time of a trade without timestamp
+    protected static final long NO_TIME = Long.MIN_VALUE;
+
+    private Trade[] buffer;
+    // Position of the oldest trade in the buffer
+    private int head = 0;
+    private int size = 0;
+
+    private int maxCount;
+    // Maximum age of a trade in milliseconds, 0 when not limited
+    private long maxAge;
+
+    /**
+     * Create a store for at most DEFAULT_MAX_COUNT trades
+     */
+    public TradeStore() {
+        this(DEFAULT_MAX_COUNT, 0);
+    }
+
+    /**
+     * Create a store with given limits
+     *
+     * @param maxCount maximum number of trades kept
+     * @param maxAge maximum age of trades, in milliseconds. 0 for no limit.
+     */
+    public TradeStore(int maxCount, long maxAge) {
+        checkLimits(maxCount, maxAge);
+        this.buffer = new Trade[0];
+        this.maxCount = maxCount;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Change the limits. Trades exceeding the new limits are removed
+     * immediately.
+     *
+     * @param maxCount maximum number of trades kept
+     * @param maxAge maximum age of trades, in milliseconds. 0 for no limit.
+     */
+    public void setLimits(int maxCount, long maxAge) {
+        checkLimits(maxCount, maxAge);
+        this.maxCount = maxCount;
+        this.maxAge = maxAge;
+        while (size > maxCount) {
+            removeOldest();
+        }
+        if (size > 0) {
+            evictOld(getSlotTime(position(size - 1)));
+        }
+        if (getCapacity() > maxCount) {
+            resize(maxCount);
+        }
+    }
+
+    private static void checkLimits(int maxCount, long maxAge) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Max trade count must be positive: " + maxCount);
+        }
+        if (maxAge < 0) {
+            throw new IllegalArgumentException(
+                    "Max trade age can't be negative: " + maxAge);
+        }
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Add a new trade, remove the oldest ones if the limits are exceeded
+     *
+     * @param trade
+     * @return always true
+     */
+    @Override
+    public boolean add(Trade trade) {
+        if (trade == null) {
+            throw new NullPointerException("Trade missing");
+        }
+        Date time = trade.getTime();
+        evictOld(time != null ? time.getTime() : NO_TIME);
+        if (size == maxCount) {
+            // Overwrite the oldest trade
+            setSlot(head, trade);
+            head = position(1);
+            return true;
+        }
+        int capacity = getCapacity();
+        if (size == capacity) {
+            resize(Math.min(maxCount, Math.max(INITIAL_CAPACITY,
+                    capacity * 2)));
+        }
+        setSlot(position(size), trade);
+        size++;
+        return true;
+    }
+
+    /**
+     * Get a trade
+     *
+     * @param i position, 0 is the oldest trade
+     * @return
+     */
+    public Trade get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Trade " + i + ", size "
+                    + size);
+        }
+        return getSlot(position(i));
+    }
+
+    /**
+     * Get the most recent trade
+     *
+     * @return the trade or null if there are none
+     */
+    public Trade getNewest() {
+        return size > 0 ? get(size - 1) : null;
+    }
+
+    /**
+     * Get a view of the last n trades, oldest first
+     *
+     * @param n
+     * @return
+     */
+    public Iterable<Trade> getLast(int n) {
+        return new View(Math.max(0, size - n));
+    }
+
+    /**
+     * Get a view of the trades made at or after a given time, oldest first
+     *
+     * @param time timestamp in milliseconds
+     * @return
+     */
+    public Iterable<Trade> getSince(long time) {
+        return new View(indexSince(time));
+    }
+
+    /**
+     * Find the first trade made at or after a given time
+     *
+     * @param time timestamp in milliseconds
+     * @return position of the trade (0 is the oldest one), size() if there
+     * is no such trade
+     */
+    public int indexSince(long time) {
+        int from = size;
+        // Usually only a few recent trades are wanted, scan from the end
+        while (from > 0) {
+            long t = getSlotTime(position(from - 1));
+            if (t == NO_TIME || t < time) {
+                break;
+            }
+            from--;
+        }
+        return from;
+    }
+
+    /**
+     * Create an empty store of the same type, with the same limits
+     *
+     * @return
+     */
+    public TradeStore newEmptyStore() {
+        return new TradeStore(maxCount, maxAge);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            clearSlot(position(i));
+        }
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Trade> iterator() {
+        return new TradeIterator(0);
+    }
+
+    /**
+     * Remove trades older than maxAge, compared to the given time
+     *
+     * @param newest time of the newest trade, milliseconds
+     */
+    private void evictOld(long newest) {
+        if (maxAge == 0 || newest == NO_TIME) {
+            return;
+        }
+        long limit = newest - maxAge;
+        while (size > 0) {
+            long t = getSlotTime(head);
+            if (t != NO_TIME && t >= limit) {
+                break;
+            }
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        clearSlot(head);
+        head = position(1);
+        size--;
+    }
+
+    /**
+     * Position in the storage (slot) of the i-th trade
+     *
+     * @param i 0 for the oldest trade
+     * @return
+     */
+    protected final int position(int i) {
+        int pos = head + i;
+        int capacity = getCapacity();
+        return pos < capacity ? pos : pos - capacity;
+    }
+
+    /**
+     * Move the trades to a new storage, starting at slot 0
+     */
+    private void resize(int capacity) {
+        if (capacity == getCapacity()) {
+            return;
+        }
+        reallocate(capacity, size);
+        head = 0;
+    }
+
+    /**
+     * @return number of slots in the storage
+     */
+    protected int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Replace the storage with a new one. The existing trades must be moved
+     * to slots 0..count-1, in the order given by position().
+     *
+     * @param capacity number of slots in the new storage
+     * @param count number of trades to move
+     */
+    protected void reallocate(int capacity, int count) {
+        Trade[] b = new Trade[capacity];
+        for (int i = 0; i < count; ++i) {
+            b[i] = buffer[position(i)];
+        }
+        buffer = b;
+    }
+
+    /**
+     * Store a trade in a slot
+     *
+     * @param pos
+     * @param trade
+     */
+    protected void setSlot(int pos, Trade trade) {
+        // Views are reused by their store, keep a copy
+        buffer[pos] = trade instanceof TradeView
+                ? ((TradeView) trade).copy() : trade;
+    }
+
+    /**
+     * Get the trade stored in a slot. Stores that don't keep Trade objects
+     * must create a new one on every call.
+     *
+     * @param pos
+     * @return
+     */
+    protected Trade getSlot(int pos) {
+        return buffer[pos];
+    }
+
+    /**
+     * Get time of the trade stored in a slot
+     *
+     * @param pos
+     * @return time in milliseconds or NO_TIME if not known
+     */
+    protected long getSlotTime(int pos) {
+        Date time = buffer[pos].getTime();
+        return time != null ? time.getTime() : NO_TIME;
+    }
+
+    /**
+     * Release the trade stored in a slot
+     *
+     * @param pos
+     */
+    protected void clearSlot(int pos) {
+        buffer[pos] = null;
+    }
+
+    /**
+     * Trades from a given position up to the newest one
+     */
+    private class View implements Iterable<Trade> {
+
+        private final int from;
+
+        View(int from) {
+            this.from = from;
+        }
+
+        @Override
+        public Iterator<Trade> iterator() {
+            return new TradeIterator(from);
+        }
+    }
+
+    private class TradeIterator implements Iterator<Trade> {
+
+        private int next;
+
+        TradeIterator(int from) {
+            next = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Trade next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return getSlot(position(next++));
+        }
+    }
+}
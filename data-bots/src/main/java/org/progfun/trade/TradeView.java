@@ -0,0 +1,158 @@
+package org.progfun.trade;
+
+import java.util.Date;
+import org.progfun.Decimal;
+
+/**
+ * A trade read from a ColumnarTradeStore. A view passed to
+ * ColumnarTradeStore.get(int, TradeView) is reloaded with another trade on
+ * every call, copy the values if they are needed later. The primitive
+ * getters don't allocate anything, while getPrice() and getAmount() create a
+ * new Decimal on every call.
+ *
+ * Views are read-only.
+ */
+public class TradeView extends Trade {
+
+    private long id;
+    private long timeMillis;
+    // Reused, null is returned when the trade has no timestamp
+    private final Date time = new Date(0);
+    private boolean hasTime;
+    private long priceUnits;
+    private long amountUnits;
+    private boolean sellSide;
+    // The original trade, when price or amount does not fit in the columns
+    private Trade exact;
+
+    TradeView() {
+        super(null, null, null, false);
+    }
+
+    /**
+     * Point the view to another trade
+     */
+    void load(long id, long timeMillis, boolean hasTime, long priceUnits,
+            long amountUnits, boolean sellSide, Trade exact) {
+        this.id = id;
+        this.timeMillis = timeMillis;
+        this.hasTime = hasTime;
+        this.priceUnits = priceUnits;
+        this.amountUnits = amountUnits;
+        this.sellSide = sellSide;
+        this.exact = exact;
+    }
+
+    /**
+     * Create a standalone Trade with the values of this view
+     *
+     * @return
+     */
+    public Trade copy() {
+        Date t = getTime();
+        Trade trade = new Trade(t != null ? new Date(timeMillis) : null,
+                getPrice(), getAmount(), sellSide);
+        trade.setId(id);
+        return trade;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Not supported, the view can't change the stored trade
+     *
+     * @param id
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setId(long id) {
+        throw new UnsupportedOperationException("Trade view is read-only");
+    }
+
+    /**
+     * The Date object is reused for all trades loaded into this view
+     *
+     * @return
+     */
+    @Override
+    public Date getTime() {
+        if (!hasTime) {
+            return null;
+        }
+        time.setTime(timeMillis);
+        return time;
+    }
+
+    /**
+     * @return time of the trade in milliseconds, 0 when not known
+     */
+    public long getTimeMillis() {
+        return hasTime ? timeMillis : 0;
+    }
+
+    @Override
+    public Decimal getPrice() {
+        return exact != null ? exact.getPrice() : Decimal.fromUnits(priceUnits);
+    }
+
+    /**
+     * @return price in fixed-point units of 1e-8, see Decimal.getUnits()
+     * @throws ArithmeticException when the price does not fit in fixed-point
+     * units
+     */
+    public long getPriceUnits() {
+        return exact != null ? exact.getPrice().getUnits() : priceUnits;
+    }
+
+    @Override
+    public Decimal getAmount() {
+        return exact != null ? exact.getAmount()
+                : Decimal.fromUnits(amountUnits);
+    }
+
+    /**
+     * @return amount in fixed-point units of 1e-8, see Decimal.getUnits()
+     * @throws ArithmeticException when the amount does not fit in fixed-point
+     * units
+     */
+    public long getAmountUnits() {
+        return exact != null ? exact.getAmount().getUnits() : amountUnits;
+    }
+
+    @Override
+    public boolean isSellSide() {
+        return sellSide;
+    }
+
+    /**
+     * Views are equal when they hold the same trade, therefore views created
+     * for the same stored trade can be found in collections. Trade compares
+     * by identity, so a view is never equal to the Trade it was stored from.
+     *
+     * @param obj
+     * @return
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TradeView)) {
+            return false;
+        }
+        TradeView v = (TradeView) obj;
+        return id == v.id && hasTime == v.hasTime
+                && (!hasTime || timeMillis == v.timeMillis)
+                && sellSide == v.sellSide
+                && getPrice().equals(v.getPrice())
+                && getAmount().equals(v.getAmount());
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Long.hashCode(id);
+        h = 31 * h + (hasTime ? Long.hashCode(timeMillis) : 0);
+        h = 31 * h + getPrice().hashCode();
+        return 31 * h + (sellSide ? 1 : 0);
+    }
+}
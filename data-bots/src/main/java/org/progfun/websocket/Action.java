@@ -5,6 +5,7 @@ public enum Action {
     CONNECT, // Connect to the remote API (WebSocket)
     START, // Initialize communication with remote API, must be done after CONNECT!
     SUBSCRIBE, // Perform all subscriptions to necessary channels
+    RESUBSCRIBE, // Unsubscribe from one channel and subscribe again, data = Subscription
     DISCONNECT, // Disconnect from the remote API (WebSocket), keep the handler still running
     RECONNECT, // Disconnect from the remote API (WebSocket), then connect again
     SHUTDOWN, // Close the connection and shut down the Handler
@@ -1,5 +1,6 @@
 package org.progfun.websocket;
 
+import java.nio.ByteBuffer;
 import org.java_websocket.handshake.ServerHandshake;
 
 /**
@@ -16,6 +17,15 @@ public interface ApiListener {
      */
     public void onMessage(String message);
 
+    /**
+     * This method is called by a connector when a text message arrives as
+     * raw UTF-8 bytes, without decoding it to a String. It may be called on
+     * another thread. The buffer is not reused by the connector.
+     *
+     * @param message
+     */
+    public void onMessage(ByteBuffer message);
+
     /**
      * An error has occurred in the connector
      *
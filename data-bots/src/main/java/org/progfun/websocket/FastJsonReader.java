@@ -0,0 +1,647 @@
+package org.progfun.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
+import org.progfun.orderbook.Book;
+
+/**
+ * Streaming JSON reader working over a reusable character buffer. Values are
+ * read straight from the message text, no DOM tree is built. Numbers are
+ * parsed from the raw token into Decimals, no intermediate strings are
+ * created. Strings are allocated only when the parser asks for them.
+ *
+ * The reader is lenient with number syntax: a number token is checked only
+ * when its value is requested.
+ *
+ * NOT Thread safe!
+ */
+public class FastJsonReader implements JsonReader {
+
+    // What the reader expects next in the current scope
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    // Message text, reused (and grown when needed) for all messages
+    private char[] buf = new char[1024];
+    // The same buffer as a CharSequence, for parsing numbers
+    private CharBuffer bufChars = CharBuffer.wrap(buf);
+    private int pos;
+    private int end;
+
+    // Stack of scopes, the top one is stack[depth - 1]
+    private int[] stack = new int[32];
+    private int depth;
+
+    // Next token, null when not known yet. When set, pos points to the first
+    // character of the token
+    private JsonToken peeked;
+
+    // Used only for strings with escape sequences
+    private final StringBuilder sb = new StringBuilder();
+
+    @Override
+    public void reset(CharSequence message) {
+        int n = message.length();
+        ensureCapacity(n);
+        if (message instanceof String) {
+            ((String) message).getChars(0, n, buf, 0);
+        } else {
+            for (int i = 0; i < n; ++i) {
+                buf[i] = message.charAt(i);
+            }
+        }
+        start(n);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * ASCII messages are copied to the character buffer as they are, no
+     * String is created. Only messages with other characters are decoded.
+     */
+    @Override
+    public void reset(ByteBuffer message) {
+        int n = message.remaining();
+        ensureCapacity(n);
+        int offset = message.position();
+        if (message.hasArray()) {
+            byte[] bytes = message.array();
+            offset += message.arrayOffset();
+            for (int i = 0; i < n; ++i) {
+                byte b = bytes[offset + i];
+                if (b < 0) {
+                    reset(StandardCharsets.UTF_8.decode(message.duplicate()));
+                    return;
+                }
+                buf[i] = (char) b;
+            }
+        } else {
+            for (int i = 0; i < n; ++i) {
+                byte b = message.get(offset + i);
+                if (b < 0) {
+                    reset(StandardCharsets.UTF_8.decode(message.duplicate()));
+                    return;
+                }
+                buf[i] = (char) b;
+            }
+        }
+        start(n);
+    }
+
+    /**
+     * Make sure the buffer can hold a message of given length
+     *
+     * @param n
+     */
+    private void ensureCapacity(int n) {
+        if (buf.length < n) {
+            buf = new char[Math.max(n, buf.length * 2)];
+            bufChars = CharBuffer.wrap(buf);
+        }
+    }
+
+    /**
+     * Prepare to read a message of n characters stored in the buffer
+     *
+     * @param n
+     */
+    private void start(int n) {
+        pos = 0;
+        end = n;
+        depth = 1;
+        stack[0] = EMPTY_DOCUMENT;
+        peeked = null;
+    }
+
+    @Override
+    public JsonToken peek() {
+        if (peeked != null) {
+            return peeked;
+        }
+        char c;
+        int scope = stack[depth - 1];
+        switch (scope) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                if (nextNonWhitespace() == ']') {
+                    return peeked = JsonToken.END_ARRAY;
+                }
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = JsonToken.END_ARRAY;
+                } else if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+                ++pos;
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = JsonToken.END_OBJECT;
+                }
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw error("Expected ',' or '}'");
+                    }
+                    ++pos;
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw error("Expected a name");
+                }
+                return peeked = JsonToken.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw error("Expected ':'");
+                }
+                ++pos;
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (nextNonWhitespace() == 0) {
+                    return peeked = JsonToken.END_DOCUMENT;
+                }
+                throw error("Unexpected data after the end");
+        }
+
+        c = nextNonWhitespace();
+        switch (c) {
+            case '[':
+                return peeked = JsonToken.BEGIN_ARRAY;
+            case '{':
+                return peeked = JsonToken.BEGIN_OBJECT;
+            case '"':
+                return peeked = JsonToken.STRING;
+            case 't':
+            case 'f':
+                return peeked = JsonToken.BOOLEAN;
+            case 'n':
+                return peeked = JsonToken.NULL;
+            case 0:
+                throw error("Unexpected end of message");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return peeked = JsonToken.NUMBER;
+                }
+                throw error("Unexpected character");
+        }
+    }
+
+    @Override
+    public void beginArray() {
+        expect(JsonToken.BEGIN_ARRAY);
+        ++pos;
+        push(EMPTY_ARRAY);
+    }
+
+    @Override
+    public void endArray() {
+        expect(JsonToken.END_ARRAY);
+        ++pos;
+        --depth;
+    }
+
+    @Override
+    public void beginObject() {
+        expect(JsonToken.BEGIN_OBJECT);
+        ++pos;
+        push(EMPTY_OBJECT);
+    }
+
+    @Override
+    public void endObject() {
+        expect(JsonToken.END_OBJECT);
+        ++pos;
+        --depth;
+    }
+
+    @Override
+    public boolean hasNext() {
+        JsonToken t = peek();
+        return t != JsonToken.END_ARRAY && t != JsonToken.END_OBJECT
+                && t != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public String nextName() {
+        expect(JsonToken.NAME);
+        String name = readString();
+        stack[depth - 1] = DANGLING_NAME;
+        return name;
+    }
+
+    @Override
+    public String nextString() {
+        JsonToken t = peek();
+        peeked = null;
+        switch (t) {
+            case STRING:
+                return readString();
+            case NUMBER:
+                int start = skipNumber();
+                return new String(buf, start, pos - start);
+            case BOOLEAN:
+                return readBoolean() ? "true" : "false";
+            default:
+                peeked = t;
+                throw error("Expected a string");
+        }
+    }
+
+    @Override
+    public Decimal nextDecimal() {
+        int start = numberStart();
+        int numEnd = numberEnd(start);
+        try {
+            return Decimal.parse(bufChars, start, numEnd);
+        } catch (NumberFormatException ex) {
+            pos = start;
+            throw error("Expected a number");
+        }
+    }
+
+    @Override
+    public Decimal nextPrice(Book book) {
+        int start = numberStart();
+        int numEnd = numberEnd(start);
+        long units = Decimal.parseFixed(bufChars, start, numEnd);
+        if (units != Long.MIN_VALUE) {
+            return book.getPrice(units);
+        }
+        try {
+            return Decimal.parse(bufChars, start, numEnd);
+        } catch (NumberFormatException ex) {
+            pos = start;
+            throw error("Expected a number");
+        }
+    }
+
+    @Override
+    public long nextLong() {
+        int start = numberStart();
+        int numEnd = numberEnd(start);
+        int i = start;
+        boolean negative = i < numEnd && buf[i] == '-';
+        if (negative) {
+            ++i;
+        }
+        if (i == numEnd) {
+            pos = start;
+            throw error("Expected an integer");
+        }
+        long v = 0;
+        for (; i < numEnd; ++i) {
+            char c = buf[i];
+            if (c < '0' || c > '9' || v > (Long.MAX_VALUE - (c - '0')) / 10) {
+                pos = start;
+                throw error("Expected an integer");
+            }
+            v = v * 10 + (c - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    @Override
+    public int nextInt() {
+        long v = nextLong();
+        if ((int) v != v) {
+            throw error("Integer out of range");
+        }
+        return (int) v;
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        expect(JsonToken.BOOLEAN);
+        return readBoolean();
+    }
+
+    @Override
+    public void nextNull() {
+        expect(JsonToken.NULL);
+        if (!matches("null")) {
+            throw error("Expected null");
+        }
+        pos += 4;
+    }
+
+    @Override
+    public void skipValue() {
+        if (peek() == JsonToken.NAME) {
+            skipName();
+        }
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    ++count;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    ++count;
+                    break;
+                case END_ARRAY:
+                    if (count == 0) {
+                        throw error("Expected a value");
+                    }
+                    endArray();
+                    --count;
+                    break;
+                case END_OBJECT:
+                    if (count == 0) {
+                        throw error("Expected a value");
+                    }
+                    endObject();
+                    --count;
+                    break;
+                case NAME:
+                    skipName();
+                    break;
+                case STRING:
+                    peeked = null;
+                    skipString();
+                    break;
+                case NUMBER:
+                    peeked = null;
+                    skipNumber();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                default:
+                    throw error("Unexpected end of message");
+            }
+        } while (count > 0);
+    }
+
+    /**
+     * Check that the next token is of the expected kind and mark it as
+     * consumed
+     *
+     * @param expected
+     */
+    private void expect(JsonToken expected) {
+        JsonToken t = peek();
+        if (t != expected) {
+            throw error("Expected " + expected + " but found " + t);
+        }
+        peeked = null;
+    }
+
+    /**
+     * Enter a new array or object
+     *
+     * @param scope
+     */
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] bigger = new int[depth * 2];
+            System.arraycopy(stack, 0, bigger, 0, depth);
+            stack = bigger;
+        }
+        stack[depth++] = scope;
+    }
+
+    /**
+     * Skip whitespace and return the next character without consuming it
+     *
+     * @return the character or 0 at the end of message
+     */
+    private char nextNonWhitespace() {
+        while (pos < end) {
+            char c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            ++pos;
+        }
+        return 0;
+    }
+
+    /**
+     * Consume a NUMBER or STRING token holding a number and find where the
+     * number starts. Quotes are skipped.
+     *
+     * @return index of the first character of the number
+     */
+    private int numberStart() {
+        JsonToken t = peek();
+        if (t == JsonToken.NUMBER) {
+            peeked = null;
+            return pos;
+        } else if (t == JsonToken.STRING) {
+            peeked = null;
+            return pos + 1;
+        }
+        throw error("Expected a number");
+    }
+
+    /**
+     * Find the end of a number starting at the given position, consume it
+     * (with the closing quote, if the number is quoted)
+     *
+     * @param start
+     * @return index after the last character of the number
+     */
+    private int numberEnd(int start) {
+        if (start > pos) {
+            // Quoted number
+            int i = start;
+            while (i < end && buf[i] != '"') {
+                ++i;
+            }
+            if (i >= end) {
+                throw error("Unterminated string");
+            }
+            pos = i + 1;
+            return i;
+        }
+        skipNumber();
+        return pos;
+    }
+
+    /**
+     * Move the position after a number token
+     *
+     * @return index of the first character of the number
+     */
+    private int skipNumber() {
+        int start = pos;
+        while (pos < end) {
+            char c = buf[pos];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.'
+                    && c != 'e' && c != 'E') {
+                break;
+            }
+            ++pos;
+        }
+        return start;
+    }
+
+    /**
+     * Consume a field name without allocating a string
+     */
+    private void skipName() {
+        expect(JsonToken.NAME);
+        skipString();
+        stack[depth - 1] = DANGLING_NAME;
+    }
+
+    /**
+     * Read a quoted string starting at the current position
+     *
+     * @return
+     */
+    private String readString() {
+        int start = ++pos;
+        while (pos < end) {
+            char c = buf[pos];
+            if (c == '"') {
+                return new String(buf, start, pos++ - start);
+            } else if (c == '\\') {
+                sb.setLength(0);
+                sb.append(buf, start, pos - start);
+                return readEscapedString();
+            }
+            ++pos;
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Continue reading a string which contains escape sequences. The part
+     * before the first escape is already in sb, pos points to the backslash.
+     *
+     * @return
+     */
+    private String readEscapedString() {
+        while (pos < end) {
+            char c = buf[pos++];
+            if (c == '"') {
+                return sb.toString();
+            } else if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= end) {
+                break;
+            }
+            c = buf[pos++];
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("Invalid escape sequence");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; ++i) {
+                        int digit = Character.digit(buf[pos++], 16);
+                        if (digit < 0) {
+                            throw error("Invalid escape sequence");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    sb.append((char) code);
+                    break;
+                default:
+                    // \" \\ \/
+                    sb.append(c);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Move the position after a quoted string
+     */
+    private void skipString() {
+        ++pos;
+        while (pos < end) {
+            char c = buf[pos++];
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                ++pos;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Read a true/false literal at the current position
+     *
+     * @return
+     */
+    private boolean readBoolean() {
+        if (matches("true")) {
+            pos += 4;
+            return true;
+        } else if (matches("false")) {
+            pos += 5;
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    /**
+     * Check if the text at the current position starts with the given literal
+     *
+     * @param literal
+     * @return
+     */
+    private boolean matches(String literal) {
+        int n = literal.length();
+        if (pos + n > end) {
+            return false;
+        }
+        for (int i = 0; i < n; ++i) {
+            if (buf[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an exception describing a format error at the current position
+     *
+     * @param reason
+     * @return
+     */
+    private InvalidFormatException error(String reason) {
+        return new InvalidFormatException(reason + " at position " + pos
+                + ": " + new String(buf, 0, end));
+    }
+}
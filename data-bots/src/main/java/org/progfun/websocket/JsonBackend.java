@@ -0,0 +1,25 @@
+package org.progfun.websocket;
+
+/**
+ * Available JsonReader implementations
+ */
+public enum JsonBackend {
+    // Built-in streaming reader, no DOM tree
+    FAST,
+    // Adapter over org.json DOM, for compatibility and comparison
+    ORG_JSON;
+
+    /**
+     * Create a new reader of this type
+     *
+     * @return
+     */
+    public JsonReader createReader() {
+        switch (this) {
+            case ORG_JSON:
+                return new OrgJsonReader();
+            default:
+                return new FastJsonReader();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.progfun.websocket;
+
+import java.nio.ByteBuffer;
+import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
+import org.progfun.orderbook.Book;
+
+/**
+ * Pull-style JSON reader used by the exchange parsers. The parser asks for
+ * the values one by one, in the order they appear in the message, and builds
+ * its own objects (orders, trades) straight away, without an intermediate
+ * DOM tree.
+ *
+ * Exchanges often send numbers as strings ("123.45"), therefore the number
+ * methods accept both NUMBER and STRING values.
+ *
+ * One reader is reused for many messages. Implementations are NOT Thread
+ * safe!
+ */
+public interface JsonReader {
+
+    /**
+     * Start reading a new message
+     *
+     * @param message
+     * @throws InvalidFormatException when the message can't be read
+     */
+    void reset(CharSequence message);
+
+    /**
+     * Start reading a new message given as UTF-8 bytes: from the position to
+     * the limit of the buffer. The position of the buffer is not changed.
+     *
+     * @param message
+     * @throws InvalidFormatException when the message can't be read
+     */
+    void reset(ByteBuffer message);
+
+    /**
+     * Return the kind of the next value without consuming it
+     *
+     * @return
+     * @throws InvalidFormatException when the message is not valid JSON
+     */
+    JsonToken peek();
+
+    /**
+     * Consume the opening bracket of an array
+     *
+     * @throws InvalidFormatException when the next value is not an array
+     */
+    void beginArray();
+
+    /**
+     * Consume the closing bracket of the current array
+     *
+     * @throws InvalidFormatException when the array has more elements
+     */
+    void endArray();
+
+    /**
+     * Consume the opening brace of an object
+     *
+     * @throws InvalidFormatException when the next value is not an object
+     */
+    void beginObject();
+
+    /**
+     * Consume the closing brace of the current object
+     *
+     * @throws InvalidFormatException when the object has more fields
+     */
+    void endObject();
+
+    /**
+     * Check if the current array or object has more elements
+     *
+     * @return
+     */
+    boolean hasNext();
+
+    /**
+     * Read the name of the next object field
+     *
+     * @return
+     * @throws InvalidFormatException when the next token is not a name
+     */
+    String nextName();
+
+    /**
+     * Read a string value. Numbers and booleans are returned as text.
+     *
+     * @return
+     * @throws InvalidFormatException when the next value is not a primitive
+     */
+    String nextString();
+
+    /**
+     * Read a number (or a string containing a number) as a Decimal, without
+     * converting it to double
+     *
+     * @return
+     * @throws InvalidFormatException when the next value is not a number
+     */
+    Decimal nextDecimal();
+
+    /**
+     * Read a price, the same way as nextDecimal(). Prices which the book
+     * has seen recently are taken from its price cache, no new Decimal is
+     * created for them.
+     *
+     * @param book
+     * @return
+     * @throws InvalidFormatException when the next value is not a number
+     */
+    Decimal nextPrice(Book book);
+
+    /**
+     * Read an integer number (or a string containing one)
+     *
+     * @return
+     * @throws InvalidFormatException when the next value is not an integer
+     */
+    long nextLong();
+
+    /**
+     * Read an integer number (or a string containing one)
+     *
+     * @return
+     * @throws InvalidFormatException when the next value is not an integer
+     */
+    int nextInt();
+
+    /**
+     * Read a boolean value
+     *
+     * @return
+     * @throws InvalidFormatException when the next value is not a boolean
+     */
+    boolean nextBoolean();
+
+    /**
+     * Consume a null value
+     *
+     * @throws InvalidFormatException when the next value is not null
+     */
+    void nextNull();
+
+    /**
+     * Skip the next value, including all nested arrays and objects
+     *
+     * @throws InvalidFormatException when the message ends before the value
+     */
+    void skipValue();
+}
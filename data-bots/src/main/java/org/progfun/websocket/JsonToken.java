@@ -0,0 +1,19 @@
+package org.progfun.websocket;
+
+/**
+ * Kind of the next value returned by JsonReader.peek()
+ */
+public enum JsonToken {
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    // Field name inside an object
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    // The whole message has been read
+    END_DOCUMENT
+}
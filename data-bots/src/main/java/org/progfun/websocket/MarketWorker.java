@@ -0,0 +1,130 @@
+package org.progfun.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import org.progfun.Logger;
+import org.progfun.ThreadLauncher;
+
+/**
+ * A thread which parses data messages for a group of markets. The Handler
+ * thread routes every data message to the worker of its market, therefore
+ * each market is updated by one worker only, and different markets are
+ * updated in parallel.
+ *
+ * The worker has its own parser. Responses of the parser (reconnect,
+ * resubscribe, ...) are passed back to the Handler thread.
+ */
+class MarketWorker implements Runnable {
+
+    private final WebSocketHandler handler;
+    private final String name;
+    // Messages routed to this worker. The Handler thread is the only producer
+    private final MessageRing messageRing;
+
+    // Parser for the current connection. Replaced by the Handler thread
+    // only while the worker is idle
+    private volatile Parser parser;
+    private volatile boolean running = true;
+    private volatile Thread thread;
+    private volatile boolean sleeping = false;
+
+    /**
+     * @param handler handler which receives parser responses
+     * @param name name of the worker thread
+     * @param ringSize number of slots for waiting messages, power of two
+     */
+    MarketWorker(WebSocketHandler handler, String name, int ringSize) {
+        this.handler = handler;
+        this.name = name;
+        this.messageRing = new MessageRing(ringSize);
+    }
+
+    /**
+     * Start the worker thread
+     */
+    void start() {
+        ThreadLauncher.start(this, name, true);
+    }
+
+    /**
+     * Set parser for the messages of a new connection. Call only when the
+     * worker is idle.
+     *
+     * @param parser
+     */
+    void setParser(Parser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Pass a message to the worker, wait while its queue is full. Handler
+     * thread only.
+     *
+     * @param message String or ByteBuffer
+     */
+    void put(Object message) {
+        messageRing.put(message);
+        wakeUp();
+    }
+
+    /**
+     * Check if all the messages passed to the worker are parsed
+     *
+     * @return
+     */
+    boolean isIdle() {
+        return messageRing.isEmpty();
+    }
+
+    /**
+     * Stop the thread after the current message
+     */
+    void stop() {
+        running = false;
+        wakeUp();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            Event e = messageRing.peek();
+            if (e == null) {
+                sleeping = true;
+                if (running && messageRing.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            Object message = e.getData();
+            Parser p = parser;
+            if (p != null) {
+                Event resp;
+                if (message instanceof ByteBuffer) {
+                    resp = p.parseMessage((ByteBuffer) message);
+                } else {
+                    resp = p.parseMessage((String) message);
+                }
+                if (resp != null) {
+                    handler.onWorkerResponse(resp, message);
+                }
+            }
+            // Released only after parsing, so that isIdle() means done
+            messageRing.release();
+        }
+        Logger.log(name + " finished work, exiting...");
+    }
+
+    /**
+     * Wake up the worker thread if it is sleeping
+     */
+    private void wakeUp() {
+        if (sleeping) {
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+}
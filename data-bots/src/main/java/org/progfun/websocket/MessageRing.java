@@ -0,0 +1,132 @@
+package org.progfun.websocket;
+
+/**
+ * Lock-free single-producer/single-consumer ring of reusable PARSE_MSG
+ * events. The producer (the WebSocket reader thread) fills a free slot and
+ * publishes it, the consumer (the Handler thread) processes the slot in place
+ * and then releases it. No objects are created per message.
+ *
+ * Only one thread may call offer()/put() and only one thread may call
+ * peek()/release()!
+ */
+class MessageRing {
+
+    private final Event[] slots;
+    private final int mask;
+
+    // Sequence of the next slot to be written. Written only by the producer
+    private volatile long tail;
+    // Sequence of the next slot to be read. Written only by the consumer
+    private volatile long head;
+
+    // Last seen values of the other side's sequence, saves volatile reads
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity number of slots, must be a power of two
+     */
+    MessageRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of two: " + capacity);
+        }
+        slots = new Event[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new Event(Action.PARSE_MSG, null, null);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Publish a message, producer side
+     *
+     * @param message
+     * @return true when published, false when the ring is full
+     */
+    boolean offer(Object message) {
+        long t = tail;
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head;
+            if (t - cachedHead >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int) t & mask].setData(message);
+        // Volatile write makes the slot content visible to the consumer
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Publish a message, wait while the ring is full. Producer side.
+     *
+     * @param message
+     */
+    void put(Object message) {
+        while (!offer(message)) {
+            // The consumer is behind, slow the producer (and the socket) down
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Get the oldest published message, consumer side. The slot stays
+     * occupied until release() is called.
+     *
+     * @return the event or null if the ring is empty
+     */
+    Event peek() {
+        long h = head;
+        if (h == cachedTail) {
+            cachedTail = tail;
+            if (h == cachedTail) {
+                return null;
+            }
+        }
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Free the slot returned by the last peek(), consumer side
+     */
+    void release() {
+        long h = head;
+        slots[(int) h & mask].setData(null);
+        head = h + 1;
+    }
+
+    /**
+     * Drop all published messages at once, consumer side. The slot returned
+     * by the last peek() is dropped as well, do not release() it.
+     *
+     * @return number of dropped messages
+     */
+    int discard() {
+        long h = head;
+        long t = tail;
+        for (long i = h; i < t; ++i) {
+            slots[(int) i & mask].setData(null);
+        }
+        cachedTail = t;
+        head = t;
+        return (int) (t - h);
+    }
+
+    /**
+     * Check if there are no published messages. Can be called from any
+     * thread.
+     *
+     * @return
+     */
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * @return number of slots
+     */
+    int capacity() {
+        return slots.length;
+    }
+}
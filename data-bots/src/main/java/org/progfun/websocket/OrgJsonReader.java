@@ -0,0 +1,276 @@
+package org.progfun.websocket;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.progfun.Decimal;
+import org.progfun.InvalidFormatException;
+import org.progfun.orderbook.Book;
+
+/**
+ * JsonReader adapter over org.json: the message is parsed into a DOM tree
+ * first, then the tree is walked. Slower than FastJsonReader, but handy for
+ * comparison. Object fields are returned in no particular order.
+ *
+ * NOT Thread safe!
+ */
+public class OrgJsonReader implements JsonReader {
+
+    /**
+     * One array or object being read
+     */
+    private static class Frame {
+
+        JSONArray array;
+        int index;
+        JSONObject object;
+        Iterator<String> keys;
+        // Name of the current field, null when not fetched yet
+        String name;
+        boolean nameRead;
+    }
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Object root;
+    private boolean rootRead;
+
+    @Override
+    public void reset(CharSequence message) {
+        stack.clear();
+        rootRead = false;
+        try {
+            root = new JSONTokener(message.toString()).nextValue();
+        } catch (JSONException ex) {
+            root = null;
+            rootRead = true;
+            throw new InvalidFormatException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public void reset(ByteBuffer message) {
+        reset(Parser.decodeMessage(message));
+    }
+
+    @Override
+    public JsonToken peek() {
+        Frame f = stack.peek();
+        if (f == null) {
+            return rootRead ? JsonToken.END_DOCUMENT : tokenOf(root);
+        }
+        if (f.array != null) {
+            return f.index < f.array.length()
+                    ? tokenOf(f.array.opt(f.index)) : JsonToken.END_ARRAY;
+        }
+        if (f.name == null) {
+            if (!f.keys.hasNext()) {
+                return JsonToken.END_OBJECT;
+            }
+            f.name = f.keys.next();
+            f.nameRead = false;
+        }
+        return f.nameRead ? tokenOf(f.object.opt(f.name)) : JsonToken.NAME;
+    }
+
+    @Override
+    public void beginArray() {
+        expect(JsonToken.BEGIN_ARRAY);
+        Frame f = new Frame();
+        f.array = (JSONArray) consume();
+        stack.push(f);
+    }
+
+    @Override
+    public void endArray() {
+        expect(JsonToken.END_ARRAY);
+        stack.pop();
+    }
+
+    @Override
+    public void beginObject() {
+        expect(JsonToken.BEGIN_OBJECT);
+        Frame f = new Frame();
+        f.object = (JSONObject) consume();
+        f.keys = f.object.keys();
+        stack.push(f);
+    }
+
+    @Override
+    public void endObject() {
+        expect(JsonToken.END_OBJECT);
+        stack.pop();
+    }
+
+    @Override
+    public boolean hasNext() {
+        JsonToken t = peek();
+        return t != JsonToken.END_ARRAY && t != JsonToken.END_OBJECT
+                && t != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public String nextName() {
+        expect(JsonToken.NAME);
+        Frame f = stack.peek();
+        f.nameRead = true;
+        return f.name;
+    }
+
+    @Override
+    public String nextString() {
+        JsonToken t = peek();
+        if (t != JsonToken.STRING && t != JsonToken.NUMBER
+                && t != JsonToken.BOOLEAN) {
+            throw new InvalidFormatException("Expected a string but found " + t);
+        }
+        return toText(consume());
+    }
+
+    @Override
+    public Decimal nextDecimal() {
+        String s = nextNumberText();
+        try {
+            return Decimal.parse(s);
+        } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("Expected a number: " + s);
+        }
+    }
+
+    @Override
+    public Decimal nextPrice(Book book) {
+        Decimal price = nextDecimal();
+        return price.isFixedPoint() ? book.getPrice(price.getUnits()) : price;
+    }
+
+    @Override
+    public long nextLong() {
+        String s = nextNumberText();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("Expected an integer: " + s);
+        }
+    }
+
+    @Override
+    public int nextInt() {
+        long v = nextLong();
+        if ((int) v != v) {
+            throw new InvalidFormatException("Integer out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        expect(JsonToken.BOOLEAN);
+        return (Boolean) consume();
+    }
+
+    @Override
+    public void nextNull() {
+        expect(JsonToken.NULL);
+        consume();
+    }
+
+    @Override
+    public void skipValue() {
+        if (peek() == JsonToken.NAME) {
+            nextName();
+        }
+        JsonToken t = peek();
+        if (t == JsonToken.END_ARRAY || t == JsonToken.END_OBJECT
+                || t == JsonToken.END_DOCUMENT) {
+            throw new InvalidFormatException("Expected a value but found " + t);
+        }
+        // Nested values are inside the consumed DOM node
+        consume();
+    }
+
+    /**
+     * Check that the next token is of the expected kind
+     *
+     * @param expected
+     */
+    private void expect(JsonToken expected) {
+        JsonToken t = peek();
+        if (t != expected) {
+            throw new InvalidFormatException("Expected " + expected
+                    + " but found " + t);
+        }
+    }
+
+    /**
+     * Return the next value and move past it
+     *
+     * @return
+     */
+    private Object consume() {
+        Frame f = stack.peek();
+        if (f == null) {
+            rootRead = true;
+            return root;
+        } else if (f.array != null) {
+            return f.array.opt(f.index++);
+        } else {
+            Object v = f.object.opt(f.name);
+            f.name = null;
+            return v;
+        }
+    }
+
+    /**
+     * Consume a NUMBER or STRING value and return it as text
+     *
+     * @return
+     */
+    private String nextNumberText() {
+        JsonToken t = peek();
+        if (t != JsonToken.NUMBER && t != JsonToken.STRING) {
+            throw new InvalidFormatException("Expected a number but found " + t);
+        }
+        return toText(consume());
+    }
+
+    /**
+     * Convert a primitive DOM value to text, numbers without exponent
+     *
+     * @param v
+     * @return
+     */
+    private static String toText(Object v) {
+        if (v instanceof BigDecimal) {
+            return ((BigDecimal) v).toPlainString();
+        } else if (v instanceof Double || v instanceof Float) {
+            return new BigDecimal(v.toString()).toPlainString();
+        }
+        return v.toString();
+    }
+
+    /**
+     * Find the token kind of a DOM value
+     *
+     * @param v
+     * @return
+     */
+    private static JsonToken tokenOf(Object v) {
+        if (v instanceof JSONArray) {
+            return JsonToken.BEGIN_ARRAY;
+        } else if (v instanceof JSONObject) {
+            return JsonToken.BEGIN_OBJECT;
+        } else if (v instanceof String) {
+            return JsonToken.STRING;
+        } else if (v instanceof Number) {
+            return JsonToken.NUMBER;
+        } else if (v instanceof Boolean) {
+            return JsonToken.BOOLEAN;
+        }
+        return JsonToken.NULL;
+    }
+}
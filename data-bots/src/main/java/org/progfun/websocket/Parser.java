@@ -1,8 +1,12 @@
 package org.progfun.websocket;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import org.progfun.Channel;
 import org.progfun.Exchange;
 import org.progfun.Logger;
+import org.progfun.Market;
+import org.progfun.Subscription;
 import org.progfun.Subscriptions;
 
 /**
@@ -10,9 +14,18 @@ import org.progfun.Subscriptions;
  */
 public abstract class Parser {
 
+    // Backend used by newly created parsers
+    private static JsonBackend defaultJsonBackend = JsonBackend.FAST;
+
     protected Exchange exchange;
     protected Subscriptions subscriptions;
 
+    private JsonBackend jsonBackend = defaultJsonBackend;
+    private JsonReader jsonReader;
+    // The message being read: text or bytes
+    private String messageText;
+    private ByteBuffer messageBytes;
+
     public void setExchange(Exchange exchange) {
         this.exchange = exchange;
     }
@@ -27,6 +40,96 @@ public abstract class Parser {
         this.subscriptions = subscriptions;
     }
 
+    /**
+     * Select the JSON reader implementation for this parser
+     *
+     * @param backend
+     */
+    public void setJsonBackend(JsonBackend backend) {
+        this.jsonBackend = backend;
+        this.jsonReader = null;
+    }
+
+    public JsonBackend getJsonBackend() {
+        return jsonBackend;
+    }
+
+    /**
+     * Select the JSON reader implementation for all parsers created from now
+     * on
+     *
+     * @param backend
+     */
+    public static void setDefaultJsonBackend(JsonBackend backend) {
+        defaultJsonBackend = backend;
+    }
+
+    public static JsonBackend getDefaultJsonBackend() {
+        return defaultJsonBackend;
+    }
+
+    /**
+     * Get the JSON reader of this parser, positioned at the start of a
+     * message. The same reader is returned on every call.
+     *
+     * @param message
+     * @return
+     * @throws org.progfun.InvalidFormatException when the message can't be
+     * read
+     */
+    protected JsonReader startReading(String message) {
+        messageText = message;
+        messageBytes = null;
+        if (jsonReader == null) {
+            jsonReader = jsonBackend.createReader();
+        }
+        jsonReader.reset(message);
+        return jsonReader;
+    }
+
+    /**
+     * Get the JSON reader of this parser, positioned at the start of a
+     * message given as UTF-8 bytes
+     *
+     * @param message
+     * @return
+     * @throws org.progfun.InvalidFormatException when the message can't be
+     * read
+     */
+    protected JsonReader startReading(ByteBuffer message) {
+        messageText = null;
+        messageBytes = message;
+        if (jsonReader == null) {
+            jsonReader = jsonBackend.createReader();
+        }
+        jsonReader.reset(message);
+        return jsonReader;
+    }
+
+    /**
+     * Get the text of the message passed to the last startReading() call.
+     * Bytes are decoded only when this is called, use it for logging and
+     * error messages.
+     *
+     * @return
+     */
+    protected String getMessageText() {
+        if (messageText == null && messageBytes != null) {
+            messageText = decodeMessage(messageBytes);
+        }
+        return messageText;
+    }
+
+    /**
+     * Decode a UTF-8 message, the position of the buffer is not changed
+     *
+     * @param message
+     * @return
+     */
+    public static String decodeMessage(ByteBuffer message) {
+        return StandardCharsets.UTF_8.decode(message.duplicate()).toString();
+    }
+
     /**
      * Generate a temporary ID for inactive subscription. Used to identify
      * subscription from exchange response message
@@ -60,4 +163,53 @@ public abstract class Parser {
      * is needed, etc. When no action is needed, return null.
      */
     public abstract Event parseMessage(String message);
+
+    /**
+     * This method is called when a text message arrives as UTF-8 bytes,
+     * straight from the WebSocket frame. Parsers which can read bytes
+     * directly should override it, by default the message is decoded and
+     * passed to parseMessage(String).
+     *
+     * @param message the buffer is not reused by the caller, the position is
+     * not changed
+     * @return see parseMessage(String)
+     */
+    public Event parseMessage(ByteBuffer message) {
+        return parseMessage(decodeMessage(message));
+    }
+
+    /**
+     * Called on the Handler thread when the handler unsubscribes from a
+     * channel in order to subscribe to it again. The API may still send some
+     * data for the channel, the parser should ignore it.
+     *
+     * @param s the subscription, still active
+     */
+    public void onUnsubscribing(Subscription s) {
+    }
+
+    /**
+     * Find the market which a data message updates, without parsing the data.
+     * Used when the handler parses data messages on market worker threads.
+     * Called on the Handler thread.
+     *
+     * @param message
+     * @return the market, or null when the message must be parsed on the
+     * Handler thread: events, subscription responses, unknown messages. By
+     * default all messages are parsed on the Handler thread.
+     */
+    public Market routeMessage(String message) {
+        return null;
+    }
+
+    /**
+     * Find the market which a data message given as UTF-8 bytes updates, see
+     * routeMessage(String)
+     *
+     * @param message the position of the buffer is not changed
+     * @return
+     */
+    public Market routeMessage(ByteBuffer message) {
+        return null;
+    }
 }
@@ -0,0 +1,284 @@
+package org.progfun.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.progfun.CurrencyPair;
+import org.progfun.Exchange;
+import org.progfun.Logger;
+import org.progfun.Market;
+import org.progfun.Subscription;
+import org.progfun.Subscriptions;
+import org.progfun.ThreadLauncher;
+
+/**
+ * Spreads subscriptions of one exchange over several WebSocket connections.
+ * Every connection (shard) is a separate WebSocketHandler with its own
+ * connector, parser and Handler thread, therefore messages of different
+ * shards are parsed in parallel.
+ *
+ * All channels of one market are pinned to the same shard, so every market is
+ * updated by a single thread only. All shards share one Exchange object, all
+ * markets are added to it before the shards are started.
+ *
+ * Usage: create the object, call subscribe() and then start().
+ */
+public class ShardedHandler {
+
+    /**
+     * Creates a new handler for every shard
+     */
+    public interface HandlerFactory {
+
+        /**
+         * Create a new, not started handler
+         *
+         * @return
+         */
+        WebSocketHandler createHandler();
+    }
+
+    private final HandlerFactory factory;
+    // Maximum number of channels on one connection
+    private final int maxChannels;
+    // Number of connections to open even if the channels fit on fewer
+    private int minConnections = 1;
+
+    private final List<Shard> shards = new ArrayList<>();
+    // Which handler is responsible for each market
+    private final Map<CurrencyPair, WebSocketHandler> marketShards
+            = new HashMap<>();
+    private Exchange exchange;
+    private boolean started = false;
+
+    /**
+     * Subscriptions and handler of one connection
+     */
+    private static class Shard {
+
+        final WebSocketHandler handler;
+        final Subscriptions subscriptions = new Subscriptions();
+        int channels = 0;
+        int markets = 0;
+
+        Shard(WebSocketHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Check if a market with given number of channels fits in this shard
+         */
+        boolean fits(int marketChannels, int maxChannels) {
+            if (markets > 0 && !handler.supportsMultipleMarkets()) {
+                return false;
+            }
+            return channels + marketChannels <= maxChannels;
+        }
+    }
+
+    /**
+     * Create a sharded handler
+     *
+     * @param factory creates the handler for each connection
+     * @param maxChannels maximum number of channels (subscriptions) on one
+     * connection. A market with more channels than that still gets a single
+     * connection, markets are never split.
+     */
+    public ShardedHandler(HandlerFactory factory, int maxChannels) {
+        if (factory == null) {
+            throw new IllegalArgumentException("Handler factory missing");
+        }
+        if (maxChannels <= 0) {
+            throw new IllegalArgumentException(
+                    "Max channels must be positive: " + maxChannels);
+        }
+        this.factory = factory;
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Open at least this many connections (if there are enough markets), for
+     * example one per CPU core. Must be called before subscribe().
+     *
+     * @param minConnections
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = Math.max(1, minConnections);
+    }
+
+    /**
+     * Split the subscriptions between shards: every market goes to the
+     * least loaded connection that has room for all of its channels. New
+     * connections are created when necessary. Can be called only once.
+     *
+     * @param subscriptions inactive subscriptions
+     * @return true when subscriptions distributed, false otherwise
+     */
+    public boolean subscribe(Subscriptions subscriptions) {
+        if (!shards.isEmpty()) {
+            Logger.log("Sharded handler already subscribed, ignoring");
+            return false;
+        }
+        if (subscriptions == null) {
+            Logger.log("No subscriptions defined");
+            return false;
+        }
+
+        // Group the channels by market, keep the original order
+        Map<CurrencyPair, List<Subscription>> byMarket = new LinkedHashMap<>();
+        for (Subscription s : subscriptions.getAllInactive()) {
+            CurrencyPair cp = s.getMarket().getCurrencyPair();
+            List<Subscription> channels = byMarket.get(cp);
+            if (channels == null) {
+                channels = new ArrayList<>();
+                byMarket.put(cp, channels);
+            }
+            channels.add(s);
+        }
+
+        for (int i = 0; i < minConnections && i < byMarket.size(); ++i) {
+            addShard();
+        }
+
+        for (Map.Entry<CurrencyPair, List<Subscription>> entry
+                : byMarket.entrySet()) {
+            List<Subscription> channels = entry.getValue();
+            if (channels.size() > maxChannels) {
+                Logger.log("Market " + entry.getKey() + " has "
+                        + channels.size() + " channels, more than "
+                        + maxChannels + " allowed per connection");
+            }
+            Shard shard = findShard(channels.size());
+            if (shard == null) {
+                shard = addShard();
+            }
+            for (Subscription s : channels) {
+                shard.subscriptions.addInactive(s);
+            }
+            shard.channels += channels.size();
+            shard.markets++;
+            marketShards.put(entry.getKey(), shard.handler);
+            // Markets are added here, on a single thread. The shards then
+            // only read the market list of the exchange
+            exchange.addMarket(channels.get(0).getMarket());
+        }
+
+        for (Shard shard : shards) {
+            shard.handler.subscribe(shard.subscriptions);
+        }
+        Logger.log(byMarket.size() + " markets distributed over "
+                + shards.size() + " connections");
+        return true;
+    }
+
+    /**
+     * Find the least loaded shard where a market fits
+     *
+     * @param marketChannels number of channels for the market
+     * @return the shard or null if none has enough room
+     */
+    private Shard findShard(int marketChannels) {
+        Shard best = null;
+        for (Shard shard : shards) {
+            if (shard.markets == 0) {
+                // An empty connection takes any market
+                return shard;
+            }
+            if (shard.fits(marketChannels, maxChannels)
+                    && (best == null || shard.channels < best.channels)) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Create handler for a new connection
+     *
+     * @return
+     */
+    private Shard addShard() {
+        WebSocketHandler handler = factory.createHandler();
+        if (exchange == null) {
+            exchange = handler.getExchange();
+        }
+        handler.setExchange(exchange);
+        handler.setThreadName("Handler Thread " + (shards.size() + 1));
+        Shard shard = new Shard(handler);
+        shards.add(shard);
+        return shard;
+    }
+
+    /**
+     * Start the Handler thread of every shard and connect them
+     *
+     * @return true when started, false otherwise
+     */
+    public boolean start() {
+        if (started) {
+            Logger.log("Sharded handler already started");
+            return false;
+        }
+        if (shards.isEmpty()) {
+            Logger.log("Nothing to start, call subscribe() first");
+            return false;
+        }
+        started = true;
+        for (Shard shard : shards) {
+            ThreadLauncher.start(shard.handler, "Handler Thread", false);
+            shard.handler.scheduleConnect(0);
+        }
+        return true;
+    }
+
+    /**
+     * Close all the connections and shut down all Handler threads
+     *
+     * @param reason explanation for the shutdown reason
+     */
+    public void scheduleShutdown(String reason) {
+        for (Shard shard : shards) {
+            shard.handler.scheduleShutdown(reason);
+        }
+    }
+
+    /**
+     * Get the exchange shared by all shards
+     *
+     * @return the exchange or null if subscribe() was not called yet
+     */
+    public Exchange getExchange() {
+        return exchange;
+    }
+
+    /**
+     * Get handlers of all connections
+     *
+     * @return
+     */
+    public List<WebSocketHandler> getHandlers() {
+        List<WebSocketHandler> handlers = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            handlers.add(shard.handler);
+        }
+        return Collections.unmodifiableList(handlers);
+    }
+
+    /**
+     * Get the handler that updates a specific market. Data of the market
+     * should be read on that handler's thread, see
+     * WebSocketHandler.scheduleExecution()
+     *
+     * @param market
+     * @return the handler or null if the market is not subscribed
+     */
+    public WebSocketHandler getHandler(Market market) {
+        if (market == null) {
+            return null;
+        }
+        return marketShards.get(market.getCurrencyPair());
+    }
+}
@@ -2,7 +2,15 @@ package org.progfun.websocket;
 
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.progfun.Logger;
 
@@ -11,8 +19,37 @@ import org.progfun.Logger;
  */
 abstract class WSClient extends WebSocketClient {
 
+    /**
+     * WebSocket protocol which hands complete text frames to the client as
+     * raw UTF-8 bytes, instead of decoding them to a String. Fragmented
+     * messages are still assembled and decoded by the library.
+     */
+    private static class TextBytesDraft extends Draft_6455 {
+
+        @Override
+        public void processFrame(WebSocketImpl conn, Framedata frame)
+                throws InvalidDataException {
+            WebSocketListener listener = conn.getWebSocketListener();
+            if (frame.getOpcode() == Opcode.TEXT && frame.isFin()
+                    && listener instanceof WSClient) {
+                try {
+                    ((WSClient) listener).onTextMessage(frame.getPayloadData());
+                } catch (RuntimeException ex) {
+                    listener.onWebsocketError(conn, ex);
+                }
+                return;
+            }
+            super.processFrame(conn, frame);
+        }
+
+        @Override
+        public Draft copyInstance() {
+            return new TextBytesDraft();
+        }
+    }
+
     WSClient(URI uri) {
-        super(uri);
+        super(uri, new TextBytesDraft());
     }
 
     @Override
@@ -22,6 +59,17 @@ abstract class WSClient extends WebSocketClient {
 
     // onMessage must be implemented in child class
 
+    /**
+     * A complete text message received, as UTF-8 bytes. The library
+     * allocates a new buffer for every frame, the receiver may keep it. By
+     * default the message is decoded and passed to onMessage(String).
+     *
+     * @param message
+     */
+    public void onTextMessage(ByteBuffer message) {
+        onMessage(Parser.decodeMessage(message));
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         Logger.log("WebSocket closed");
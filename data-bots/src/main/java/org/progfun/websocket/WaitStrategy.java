@@ -0,0 +1,14 @@
+package org.progfun.websocket;
+
+/**
+ * How the Handler thread waits for the next event when there is nothing to
+ * process
+ */
+public enum WaitStrategy {
+    // Keep checking in a tight loop: lowest latency, occupies one CPU core
+    BUSY_SPIN,
+    // Keep checking, but let other threads run between the checks
+    YIELD,
+    // Sleep until a new event wakes the thread up: no CPU used while idle
+    PARK
+}
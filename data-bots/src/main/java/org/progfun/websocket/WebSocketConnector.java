@@ -5,8 +5,10 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import org.java_websocket.handshake.ServerHandshake;
 import org.progfun.Logger;
+import org.progfun.ThreadLauncher;
 
 /**
  * Generic WebSocket client that can send commands to the API and generate event
@@ -57,6 +59,16 @@ public class WebSocketConnector {
                     }
                 }
 
+                @Override
+                public void onTextMessage(ByteBuffer message) {
+                    if (logWriter != null) {
+                        logMessage(Parser.decodeMessage(message));
+                    }
+                    if (listener != null) {
+                        listener.onMessage(message);
+                    }
+                }
+
                 @Override
                 public void onError(Exception excptn) {
                     // On error we stop the party and notify the listener
@@ -82,10 +94,10 @@ public class WebSocketConnector {
 
             };
 
-            // Start connection. Block in this line until connection is 
-            // established
+            // Start connection. The client connects and then reads the
+            // socket in its own thread, this method does not block
             Logger.log("Connecting to Websocket...");
-            client.connect();
+            ThreadLauncher.start(client, "WebSocket Reader", false);
 
         } catch (URISyntaxException ex) {
             Logger.log("Invalid WSS URL format: " + ex.getMessage());
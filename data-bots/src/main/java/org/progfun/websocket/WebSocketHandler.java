@@ -1,8 +1,12 @@
 package org.progfun.websocket;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 import org.java_websocket.handshake.ServerHandshake;
 import org.progfun.Channel;
 import org.progfun.Exchange;
@@ -28,9 +32,39 @@ public abstract class WebSocketHandler implements Runnable {
     // Current state of the Handler
     private State currentState = State.DISCONNECTED;
 
+    // Number of slots for API messages waiting to be parsed
+    private static final int MESSAGE_RING_SIZE = 4096;
+
     // A queue that contains events that are scheduled for execution on the main thread
     private final ConcurrentLinkedQueue<Event> eventQueue
             = new ConcurrentLinkedQueue<>();
+    // Number of events of each Action type in eventQueue, indexed by ordinal
+    private final AtomicIntegerArray pendingEvents
+            = new AtomicIntegerArray(Action.values().length);
+    // API messages received from the socket thread, waiting to be parsed
+    // on the main thread. Control events in eventQueue go first
+    private final MessageRing messageRing = new MessageRing(MESSAGE_RING_SIZE);
+
+    // How the main thread waits for events
+    private volatile WaitStrategy waitStrategy = WaitStrategy.PARK;
+    // The main Handler thread and whether it is parked right now
+    private volatile Thread handlerThread;
+    private volatile boolean sleeping = false;
+    // Name of the main Handler thread, used for debugging
+    private String threadName = "Handler Thread";
+
+    // Number of slots for messages waiting in each market worker
+    private static final int WORKER_RING_SIZE = 1024;
+    // Number of market worker threads, zero when messages are parsed on
+    // the Handler thread
+    private int numWorkers = 0;
+    private MarketWorker[] workers;
+
+    // Minimum time between top-of-book notifications of the subscribed
+    // markets, 0 when not limited
+    private long topOfBookInterval = 0;
+    // When the Handler thread checks for postponed top-of-book quotes next
+    private long nextTopOfBookFlush = 0;
 
     private boolean verbose = false; // When true, print more output
 
@@ -58,6 +92,64 @@ public abstract class WebSocketHandler implements Runnable {
         this.stateListener = stateListener;
     }
 
+    /**
+     * Limit top-of-book notifications of the subscribed markets to one per
+     * interval, see Market.setTopOfBookInterval(). A quote postponed by the
+     * limit is delivered by the Handler thread soon after the interval ends,
+     * even when no more changes of that market come. Must be called before
+     * connecting.
+     *
+     * @param millis 0 to notify on every change (default)
+     */
+    public void setTopOfBookInterval(long millis) {
+        this.topOfBookInterval = Math.max(0, millis);
+    }
+
+    /**
+     * Select how the Handler thread waits for incoming messages. PARK uses no
+     * CPU while idle, BUSY_SPIN and YIELD give lower latency at the cost of
+     * one busy core.
+     *
+     * @param waitStrategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        wakeUp();
+    }
+
+    /**
+     * Set name for the main Handler thread, handy when several handlers run
+     * at once. Must be called before the thread is started.
+     *
+     * @param threadName
+     */
+    void setThreadName(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * Parse data messages on separate worker threads: the Handler thread only
+     * finds the market of each message (see Parser.routeMessage()) and passes
+     * it to the worker of that market. Every market is updated by one worker,
+     * different markets are updated in parallel. Events and subscription
+     * responses are still parsed on the Handler thread. Must be called before
+     * connecting.
+     *
+     * Methods run with scheduleExecution() are executed on the Handler
+     * thread, after the workers have parsed all the messages passed to them.
+     * Workers get no new messages while the method runs.
+     *
+     * @param numWorkers number of worker threads, zero to parse everything on
+     * the Handler thread (default)
+     */
+    public void setMarketWorkers(int numWorkers) {
+        if (workers != null) {
+            Logger.log("Market workers already started, ignoring");
+            return;
+        }
+        this.numWorkers = Math.max(0, numWorkers);
+    }
+
     /**
      * When set to true, print more output
      *
@@ -147,7 +239,8 @@ public abstract class WebSocketHandler implements Runnable {
         boolean mustRun = true;
 
         // Set name for this thread, used for debugging
-        Thread.currentThread().setName("Handler Thread");
+        Thread.currentThread().setName(threadName);
+        handlerThread = Thread.currentThread();
 
         while (mustRun) {
 
@@ -174,13 +267,16 @@ public abstract class WebSocketHandler implements Runnable {
                 case DISCONNECT:
                     // Disconnect but wait for other commands
                     disconnectNow();
+                    discardMessages();
                     break;
                 case RECONNECT:
                     disconnectNow();
+                    discardMessages();
                     break;
                 case SHUTDOWN:
                     // Disconnect and exit this loop
                     disconnectNow();
+                    discardMessages();
                     mustRun = false;
                     break;
                 case TERMINATE:
@@ -188,10 +284,19 @@ public abstract class WebSocketHandler implements Runnable {
                     mustRun = false;
                     break;
                 case PARSE_MSG:
-                    String msg = (String) e.getData();
-                    parseApiMsg(msg);
+                    if (isConnectionChanging()) {
+                        // The connection is going away, drop its data at
+                        // once, including this message
+                        discardMessages();
+                        break;
+                    }
+                    parseApiMsg(e.getData());
+                    // The event is a slot of the ring, free it for reuse
+                    messageRing.release();
                     break;
                 case EXECUTE_METHOD:
+                    // The method may read or modify market data
+                    awaitWorkers();
                     Runnable executor = (Runnable) e.getData();
                     executor.run();
                     break;
@@ -199,6 +304,7 @@ public abstract class WebSocketHandler implements Runnable {
 
         }
 
+        stopWorkers();
         Logger.log("Handler thread finished work, exiting...");
     }
 
@@ -265,22 +371,23 @@ public abstract class WebSocketHandler implements Runnable {
      * Schedule an event to be parsed in the main Handler thread. The main
      * thread is expected to be sleeping, therefore we wake it up
      *
-     * @param signle when true, check the event queue for event of the same
+     * @param single when true, check the event queue for event of the same
      * type. If it already exists, do not add a duplicate. This can be useful
      * for scheduling timer events.
      * @param action
      */
-    private synchronized void scheduleEvent(Event event, boolean single) {
+    private void scheduleEvent(Event event, boolean single) {
+        int type = event.getType().ordinal();
         if (single) {
             // If event of this type is already in the queue, ignore this one
-            for (Event e : eventQueue) {
-                if (e.getType() == event.getType()) {
-                    return;
-                }
+            if (!pendingEvents.compareAndSet(type, 0, 1)) {
+                return;
             }
+        } else {
+            pendingEvents.incrementAndGet(type);
         }
         eventQueue.offer(event);
-        notifyAll();
+        wakeUp();
     }
 
     /**
@@ -289,7 +396,7 @@ public abstract class WebSocketHandler implements Runnable {
      *
      * @param action
      */
-    private synchronized void scheduleAction(Action action) {
+    private void scheduleAction(Action action) {
         scheduleEvent(new Event(action, null, null), false);
     }
 
@@ -356,6 +463,11 @@ public abstract class WebSocketHandler implements Runnable {
                     onSocketMsg(message);
                 }
 
+                @Override
+                public void onMessage(ByteBuffer message) {
+                    onSocketMsg(message);
+                }
+
                 @Override
                 public void onError(Exception ex) {
                     onSocketErr(ex);
@@ -364,6 +476,8 @@ public abstract class WebSocketHandler implements Runnable {
         }
 
         setState(State.CONNECTING);
+        // Anything still queued came from the previous connection
+        discardMessages();
         // Mark all subscriptions as inactive and clear market data
         if (subscriptions != null) {
             subscriptions.inactivateAll();
@@ -401,6 +515,12 @@ public abstract class WebSocketHandler implements Runnable {
         }
         parser.setExchange(e);
         parser.setSubscriptions(subscriptions);
+        if (numWorkers > 0) {
+            startWorkers();
+        }
+        if (topOfBookInterval > 0 && subscriptions != null) {
+            subscriptions.setTopOfBookInterval(topOfBookInterval);
+        }
 
         Logger.log("Starting Handler process...");
 
@@ -582,18 +702,31 @@ public abstract class WebSocketHandler implements Runnable {
      */
     private void onSocketMsg(String message) {
         // The message must be parsed on the main thread, schedule it
-        scheduleEvent(new Event(Action.PARSE_MSG, message, null), false);
+        messageRing.put(message);
+        wakeUp();
+    }
+
+    /**
+     * A message received from the socket as UTF-8 bytes. This is called on a
+     * child thread!
+     *
+     * @param message
+     */
+    private void onSocketMsg(ByteBuffer message) {
+        // The buffer is not reused by the connector, no need to copy it
+        messageRing.put(message);
+        wakeUp();
     }
 
     /**
      * Message received from the socket, parse it. This function should run on
      * the main Handler thread!
      *
-     * @param message
+     * @param message String or ByteBuffer containing UTF-8 text
      */
-    private void parseApiMsg(String message) {
+    private void parseApiMsg(Object message) {
         if (verbose) {
-            Logger.log("API: " + message);
+            Logger.log("API: " + messageText(message));
         }
 
         if (reconnectAfterMsg > 0) {
@@ -624,34 +757,154 @@ public abstract class WebSocketHandler implements Runnable {
         }
 
         if (parser != null) {
-            Event resp = parser.parseMessage(message);
+            if (workers != null && routeToWorker(message)) {
+                return;
+            }
+            Event resp;
+            if (message instanceof ByteBuffer) {
+                resp = parser.parseMessage((ByteBuffer) message);
+            } else {
+                resp = parser.parseMessage((String) message);
+            }
             if (resp != null) {
-                Logger.log("Parser response: " + resp);
-                switch (resp.getType()) {
-                    case RECONNECT:
-                        scheduleReconnect();
-                        break;
-                    case DISCONNECT:
-                        scheduleDisconnect();
-                        break;
-                    case SHUTDOWN:
-                        scheduleShutdown("Critical error from remote API, reason: "
-                                + resp.getMessage() + ", API msg: "
-                                + message);
-                        break;
-                    case SUBSCRIBE:
-                        Subscription s = (Subscription) resp.getData();
-                        onSubscribed(s);
-                        break;
-                    default:
-                        scheduleShutdown("TODO: implement support for action "
-                                + resp.getType());
-                        break;
-                }
+                handleParserResponse(resp, message);
             }
         }
     }
 
+    /**
+     * Pass a data message to the worker of its market
+     *
+     * @param message String or ByteBuffer
+     * @return true when the message was passed to a worker, false when it must
+     * be parsed on the Handler thread
+     */
+    private boolean routeToWorker(Object message) {
+        Market market;
+        if (message instanceof ByteBuffer) {
+            market = parser.routeMessage((ByteBuffer) message);
+        } else {
+            market = parser.routeMessage((String) message);
+        }
+        if (market == null) {
+            return false;
+        }
+        int hash = market.getCurrencyPair().hashCode();
+        workers[Math.floorMod(hash, workers.length)].put(message);
+        return true;
+    }
+
+    /**
+     * Create the market workers on first start, give them parsers for the new
+     * connection. Workers are idle at this point.
+     */
+    private void startWorkers() {
+        if (workers == null) {
+            workers = new MarketWorker[numWorkers];
+            for (int i = 0; i < numWorkers; ++i) {
+                workers[i] = new MarketWorker(this,
+                        threadName + " worker " + (i + 1), WORKER_RING_SIZE);
+                workers[i].start();
+            }
+        }
+        for (MarketWorker w : workers) {
+            Parser p = createParser();
+            p.setExchange(getExchange());
+            p.setSubscriptions(subscriptions);
+            w.setParser(p);
+        }
+    }
+
+    /**
+     * Wait until the market workers have parsed all the messages passed to
+     * them. After that the Handler thread can modify market data.
+     */
+    private void awaitWorkers() {
+        if (workers == null) {
+            return;
+        }
+        for (MarketWorker w : workers) {
+            while (!w.isIdle()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Stop the market worker threads
+     */
+    private void stopWorkers() {
+        if (workers != null) {
+            for (MarketWorker w : workers) {
+                w.stop();
+            }
+            workers = null;
+        }
+    }
+
+    /**
+     * A market worker parser requested an action. This is called on the
+     * worker thread, the action is executed on the Handler thread.
+     *
+     * @param resp response of the parser
+     * @param message the parsed message
+     */
+    void onWorkerResponse(final Event resp, final Object message) {
+        scheduleEvent(new Event(Action.EXECUTE_METHOD, (Runnable) () -> {
+            // Messages of an old connection have no meaning anymore
+            if (!isConnectionChanging()) {
+                handleParserResponse(resp, message);
+            }
+        }, null), false);
+    }
+
+    /**
+     * Perform the action requested by the parser
+     *
+     * @param resp response of the parser
+     * @param message the message which caused the response
+     */
+    private void handleParserResponse(Event resp, Object message) {
+        Logger.log("Parser response: " + resp);
+        switch (resp.getType()) {
+            case RECONNECT:
+                scheduleReconnect();
+                break;
+            case DISCONNECT:
+                scheduleDisconnect();
+                break;
+            case SHUTDOWN:
+                scheduleShutdown("Critical error from remote API, reason: "
+                        + resp.getMessage() + ", API msg: "
+                        + messageText(message));
+                break;
+            case SUBSCRIBE:
+                Subscription s = (Subscription) resp.getData();
+                onSubscribed(s);
+                break;
+            case RESUBSCRIBE:
+                resubscribe((Subscription) resp.getData());
+                break;
+            default:
+                scheduleShutdown("TODO: implement support for action "
+                        + resp.getType());
+                break;
+        }
+    }
+
+    /**
+     * Get the text of an API message
+     *
+     * @param message String or ByteBuffer
+     * @return
+     */
+    private static String messageText(Object message) {
+        if (message instanceof ByteBuffer) {
+            return Parser.decodeMessage((ByteBuffer) message);
+        }
+        return (String) message;
+    }
+
     /**
      * Error received from the WebSocket
      *
@@ -677,24 +930,100 @@ public abstract class WebSocketHandler implements Runnable {
 
     /**
      * Get an action that is scheduled to be executed in the main Handler
-     * thread.
-     * Method blocks (using wait()) until an event is available.
+     * thread. Control events go before API messages. A PARSE_MSG event is a
+     * slot of the message ring, it must be released after processing.
+     * Method blocks (according to the wait strategy) until an event is
+     * available.
      *
      * @return scheduled event (could be null if thread sleep/wait is
      * interrupted)
      */
-    private synchronized Event getNextEvent() {
-        Event e = eventQueue.poll();
-        while (e == null) {
-            try {
-                wait();
-            } catch (InterruptedException ex) {
+    private Event getNextEvent() {
+        while (true) {
+            if (topOfBookInterval > 0) {
+                flushTopOfBook();
+            }
+            Event e = eventQueue.poll();
+            if (e != null) {
+                pendingEvents.decrementAndGet(e.getType().ordinal());
+            } else {
+                e = messageRing.peek();
+            }
+            if (e != null) {
+                return e;
+            }
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    // Producers check the flag after publishing an event,
+                    // therefore check the queues again after setting it
+                    sleeping = true;
+                    if (eventQueue.isEmpty() && messageRing.isEmpty()) {
+                        if (topOfBookInterval > 0) {
+                            // Wake up for the next top-of-book check
+                            long wait = nextTopOfBookFlush
+                                    - System.currentTimeMillis();
+                            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS
+                                    .toNanos(Math.max(1, wait)));
+                        } else {
+                            LockSupport.park(this);
+                        }
+                    }
+                    sleeping = false;
+            }
+            if (Thread.interrupted()) {
                 Logger.log("getNextEvent interrupted");
                 return null;
             }
-            e = eventQueue.poll();
         }
-        return e;
+    }
+
+    /**
+     * Deliver top-of-book quotes postponed by the interval. Checks the
+     * markets twice per interval, therefore a quote is held back at most one
+     * and a half intervals after the previous one. Handler thread only.
+     */
+    private void flushTopOfBook() {
+        long now = System.currentTimeMillis();
+        if (now < nextTopOfBookFlush || subscriptions == null) {
+            return;
+        }
+        nextTopOfBookFlush = now + Math.max(1, topOfBookInterval / 2);
+        // The markets may be updated by the workers
+        awaitWorkers();
+        subscriptions.flushTopOfBook();
+    }
+
+    /**
+     * Drop all API messages waiting to be parsed: they belong to a connection
+     * which is closing or already closed. Must be called on the main Handler
+     * thread.
+     */
+    private void discardMessages() {
+        int n = messageRing.discard();
+        if (n > 0) {
+            Logger.log("Discarded " + n + " API messages of the old connection");
+        }
+        // Messages already passed to the workers can't be taken back, let
+        // the workers finish them before market data is cleared
+        awaitWorkers();
+    }
+
+    /**
+     * Wake up the main Handler thread if it is sleeping, after an event has
+     * been scheduled
+     */
+    private void wakeUp() {
+        if (sleeping) {
+            Thread t = handlerThread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
     }
 
     /**
@@ -887,6 +1216,32 @@ public abstract class WebSocketHandler implements Runnable {
         return subscribeToChannel(s);
     }
 
+    /**
+     * Cancel one subscription and subscribe to it again, for example when its
+     * data has become inconsistent. If the handler can not unsubscribe from a
+     * single channel, reconnect instead.
+     *
+     * @param s
+     */
+    private void resubscribe(Subscription s) {
+        if (s == null || subscriptions == null || !unsubscribeFromChannel(s)) {
+            scheduleReconnect();
+            return;
+        }
+        Logger.log("Resubscribing to " + s.getChannel() + " for market "
+                + s.getMarket().getCurrencyPair());
+        if (parser != null) {
+            parser.onUnsubscribing(s);
+        }
+        subscriptions.deactivate(s);
+        if (s.getChannel() == Channel.ORDERBOOK) {
+            awaitWorkers();
+            // The new subscription starts with a fresh snapshot
+            s.getMarket().clearOrderBook();
+        }
+        scheduleAction(Action.SUBSCRIBE);
+    }
+
     /**
      * Subscription successful
      */
@@ -910,6 +1265,17 @@ public abstract class WebSocketHandler implements Runnable {
         return exchange;
     }
 
+    /**
+     * Use an existing exchange instead of creating a new one, for example
+     * when several handlers share the same exchange. Must be called before
+     * connecting.
+     *
+     * @param exchange
+     */
+    public void setExchange(Exchange exchange) {
+        this.exchange = exchange;
+    }
+
     /**
      * Return URL to WebSocket server
      *
@@ -950,6 +1316,18 @@ public abstract class WebSocketHandler implements Runnable {
      */
     protected abstract boolean subscribeToChannel(Subscription s);
 
+    /**
+     * Send request to Exchange: unsubscribe from a specific channel. Handlers
+     * that don't support it return false, then the whole connection is
+     * restarted instead.
+     *
+     * @param s an active subscription
+     * @return true if request was sent
+     */
+    protected boolean unsubscribeFromChannel(Subscription s) {
+        return false;
+    }
+
     /**
      * Create empty exchange object. Each handler should know which exchange it
      * is targeting.
@@ -989,7 +1367,9 @@ public abstract class WebSocketHandler implements Runnable {
     public abstract List<Channel> getCandleResolutions();
 
     /**
-     * Schedule execution of a specific method on the main Handler thread
+     * Schedule execution of a specific method on the main Handler thread.
+     * With market workers, the method runs only when they are idle, so it
+     * can safely read and modify data of all the markets.
      *
      * @param executor
      */
@@ -1,10 +1,18 @@
 package org.progfun;
 
+import java.util.Iterator;
+import java.util.Random;
 import org.junit.Test;
 import org.progfun.orderbook.Book;
 
 import static org.junit.Assert.*;
+import org.progfun.orderbook.ArrayLevels;
+import org.progfun.orderbook.BookType;
+import org.progfun.orderbook.DepthCursor;
+import org.progfun.orderbook.LadderLevels;
+import org.progfun.orderbook.LevelChange;
 import org.progfun.orderbook.Order;
+import org.progfun.orderbook.PriceCache;
 
 public class BookTest {
 
@@ -79,4 +87,261 @@ public class BookTest {
         assertEquals(o2, b.getFirstOrder(true));
         assertEquals(o1, b.getFirstOrder(false));
     }
+
+    @Test
+    public void testPriceCache() {
+        Book b = new Book();
+        Decimal p1 = new Decimal("700.5");
+        b.add(new Order(p1, Decimal.ONE, 1));
+        // The same level is removed and added again with a new object,
+        // the first key object is reused
+        b.remove(new Decimal("700.5"));
+        Order o = new Order(new Decimal("700.5"), Decimal.TEN, 1);
+        b.add(o);
+        assertSame(p1, o.getPrice());
+        assertSame(p1, b.getPrice(70050000000L));
+        assertEquals(Decimal.TEN, b.getOrderForPrice(p1).getAmount());
+
+        // Cache is bounded: many different prices can be added
+        PriceCache cache = new PriceCache(8);
+        assertEquals(8, cache.getCapacity());
+        Decimal first = cache.get(1);
+        for (int i = 2; i < 1000; ++i) {
+            assertEquals(Decimal.fromUnits(i), cache.get(i));
+        }
+        assertEquals(first, cache.get(1));
+        // Prices that are not fixed-point are not cached
+        Decimal tiny = new Decimal("0.0000000001");
+        assertSame(tiny, cache.intern(tiny));
+    }
+
+    @Test
+    public void testArrayBook() {
+        Book tree = new Book(BookType.TREE);
+        // Small capacity, to test growing of the arrays
+        Book array = new Book(new ArrayLevels(2));
+        assertTrue(tree.equals(array));
+        assertNull(array.getFirstOrder(true));
+
+        double[][] updates = {
+            // price, amount, count, increment (1 = true)
+            {7000, 1.5, 2, 1},
+            {7010, 2, 1, 1},
+            {6990, 0.25, 0, 1},
+            {7000, 0.5, 1, 1},
+            {7005, 3, -1, 0},
+            {7010, -2, 1, 1},
+            {6980, 1, 3, 0},
+            {6990, 4, 0, 0},
+            {6995, 0.001, 1, 1},
+        };
+        for (double[] u : updates) {
+            Decimal price = new Decimal(u[0]);
+            Decimal amount = new Decimal(u[1]);
+            LevelChange c1 = tree.update(price, amount, (int) u[2], u[3] > 0);
+            LevelChange c2 = array.update(price, amount, (int) u[2], u[3] > 0);
+            assertEquals(c1, c2);
+            assertTrue(tree.equals(array));
+            assertTrue(array.equals(tree));
+        }
+        assertEquals(5, array.size());
+        assertEquals(tree.getFirstOrder(true), array.getFirstOrder(true));
+        assertEquals(tree.getFirstOrder(false), array.getFirstOrder(false));
+
+        // The cached first order is kept while other levels change, and
+        // fetched again after the first level changes
+        Order first = array.getFirstOrder(true);
+        array.update(new Decimal(6995), Decimal.ONE, 1, true);
+        assertSame(first, array.getFirstOrder(true));
+        array.update(new Decimal(6980), Decimal.ONE, 1, true);
+        assertEquals(new Decimal(2), array.getFirstOrder(true).getAmount());
+        array.update(new Decimal(6980), new Decimal(-1), -1, true);
+        assertEquals(first, array.getFirstOrder(true));
+        tree.update(new Decimal(6995), Decimal.ONE, 1, true);
+
+        assertNull(array.getOrderForPrice("7010"));
+        assertEquals(new Decimal(2), array.getOrderForPrice("7000").getAmount());
+        assertEquals(3, (int) array.getOrderForPrice("7000").getCount());
+
+        // The legacy add() interface
+        Order o = array.add(new Order(new Decimal(7000), new Decimal(-1), -5));
+        assertEquals(new Decimal(1), o.getAmount());
+        assertNull(o.getCount());
+        o = array.add(new Order(new Decimal(7000), new Decimal(-1), 0));
+        assertEquals(Decimal.ZERO, o.getAmount());
+        assertNull(array.getOrderForPrice("7000"));
+
+        array.remove(new Decimal(6980));
+        assertEquals(3, array.size());
+        Decimal[] prices = array.getOrderedPrices(false);
+        assertEquals(new Decimal(6995), prices[1]);
+        array.clear();
+        assertEquals(0, array.size());
+    }
+
+    @Test
+    public void testLadderBook() {
+        Book tree = new Book(BookType.TREE);
+        // Small window, to test spilling and recentring
+        Book ladder = new Book(new LadderLevels(new Decimal("0.5"), 8));
+        assertNull(ladder.getFirstOrder(false));
+
+        Random r = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            // Mostly prices close to each other, some far away and some
+            // not on the tick grid
+            long units = 700000000000L + (r.nextInt(40) - 20) * 50000000L;
+            if (i % 50 == 0) {
+                units += 1000000000000L;
+            } else if (i % 7 == 0) {
+                units += 10000000L;
+            }
+            Decimal price = Decimal.fromUnits(units);
+            Decimal amount = new Decimal(r.nextInt(5) - 2);
+            int count = r.nextInt(3);
+            boolean increment = r.nextBoolean();
+            if (i % 13 == 0) {
+                tree.remove(price);
+                ladder.remove(price);
+            } else {
+                LevelChange c1 = tree.update(price, amount, count, increment);
+                LevelChange c2 = ladder.update(price, amount, count, increment);
+                assertEquals(c1, c2);
+            }
+            assertEquals(tree.size(), ladder.size());
+            assertEquals(tree.getFirstOrder(true), ladder.getFirstOrder(true));
+            assertEquals(tree.getFirstOrder(false),
+                    ladder.getFirstOrder(false));
+        }
+        assertTrue(tree.size() > 8);
+        assertTrue(tree.equals(ladder));
+        assertTrue(ladder.equals(tree));
+        Iterator<Order> t = tree.iterator(false);
+        Iterator<Order> l = ladder.iterator(false);
+        while (t.hasNext()) {
+            assertEquals(t.next(), l.next());
+        }
+        assertFalse(l.hasNext());
+
+        ladder.clear();
+        assertEquals(0, ladder.size());
+        assertNull(ladder.getFirstOrder(true));
+    }
+
+    @Test
+    public void testAmountOverflow() {
+        Book[] books = {new Book(new ArrayLevels()),
+            new Book(new LadderLevels(Decimal.ONE, 8))};
+        Decimal max = Decimal.fromUnits(Long.MAX_VALUE);
+        for (Book b : books) {
+            b.update(new Decimal(100), max, 1, true);
+            try {
+                b.update(new Decimal(100), Decimal.ONE, 1, true);
+                fail("Overflow not detected");
+            } catch (ArithmeticException ex) {
+                // The level is not changed
+                assertEquals(max, b.getOrderForPrice("100").getAmount());
+                assertEquals(1, (int) b.getOrderForPrice("100").getCount());
+            }
+            b.update(new Decimal(100), Decimal.ONE.negate(), 0, true);
+            assertEquals(Decimal.fromUnits(Long.MAX_VALUE - 100000000L),
+                    b.getOrderForPrice("100").getAmount());
+        }
+    }
+
+    @Test
+    public void testLadderOffGrid() {
+        LadderLevels levels = new LadderLevels(Decimal.ONE, 8);
+        for (int i = 0; i < 4; ++i) {
+            levels.update(new Decimal(100 + i), Decimal.ONE, 1, false);
+        }
+        // Far away and off the grid: spilled, the window must not follow
+        for (int i = 0; i < 20; ++i) {
+            levels.update(new Decimal(1000 * (i + 1) + 0.5), Decimal.ONE, 1,
+                    false);
+        }
+        assertEquals(24, levels.size());
+        // Levels inside the window are returned as copies, spilled ones as
+        // the stored objects
+        Decimal price = new Decimal(101);
+        assertNotSame(levels.get(price), levels.get(price));
+        assertEquals(new Decimal(100), levels.getFirst(true).getPrice());
+        assertEquals(new Decimal("20000.5"), levels.getFirst(false).getPrice());
+        assertTrue(levels.remove(new Decimal("1000.5")));
+        assertEquals(23, levels.size());
+    }
+
+    @Test
+    public void testFirstOrderCache() {
+        Book[] books = {new Book(), new Book(BookType.ARRAY),
+            new Book(new LadderLevels(Decimal.ONE, 16))};
+        Random r = new Random(7);
+        for (Book b : books) {
+            for (int i = 0; i < 1000; ++i) {
+                Decimal price = new Decimal(100 + r.nextInt(30));
+                Decimal amount = new Decimal(r.nextInt(4) - 1);
+                switch (r.nextInt(10)) {
+                    case 0:
+                        b.remove(price);
+                        break;
+                    case 1:
+                        b.add(new Order(price, amount, 1), r.nextBoolean());
+                        break;
+                    case 2:
+                        if (i % 100 == 2) {
+                            b.clear();
+                        }
+                        break;
+                    default:
+                        b.update(price, amount, 1, r.nextBoolean());
+                        break;
+                }
+                assertEquals(b.getLevels().getFirst(true), b.getFirstOrder(true));
+                assertEquals(b.getLevels().getFirst(false),
+                        b.getFirstOrder(false));
+            }
+        }
+    }
+
+    @Test
+    public void testDepth() {
+        Book[] books = {new Book(), new Book(BookType.ARRAY),
+            new Book(new LadderLevels(Decimal.ONE, 4))};
+        for (Book b : books) {
+            DepthCursor c = b.depth(true);
+            assertFalse(c.next());
+
+            b.add(new Order(new Decimal(100), new Decimal("1.5"), 2));
+            b.add(new Order(new Decimal(101), new Decimal(2), null));
+            b.add(new Order(new Decimal(103), new Decimal(3), 1));
+            b.add(new Order(new Decimal(110), new Decimal(4), 1));
+            b.add(new Order(new Decimal("95.5"), new Decimal(5), 1));
+
+            c = b.depth(true).limit(3);
+            assertTrue(c.next());
+            assertEquals(new Decimal("95.5"), c.getPrice());
+            assertTrue(c.next());
+            assertEquals(10000000000L, c.getPriceUnits());
+            assertEquals(150000000L, c.getAmountUnits());
+            assertEquals(2, c.getCount());
+            assertTrue(c.next());
+            assertEquals(new Decimal(2), c.getAmount());
+            assertEquals(0, c.getCount());
+            assertFalse(c.next());
+
+            c = b.depth(false).until(new Decimal(101));
+            int n = 0;
+            while (c.next()) {
+                ++n;
+            }
+            assertEquals(3, n);
+
+            long[] prices = new long[10];
+            long[] amounts = new long[3];
+            assertEquals(3, b.fillTopN(prices, amounts, 10, false));
+            assertEquals(11000000000L, prices[0]);
+            assertEquals(300000000L, amounts[1]);
+            assertEquals(10100000000L, prices[2]);
+        }
+    }
 }
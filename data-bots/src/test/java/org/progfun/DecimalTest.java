@@ -1,5 +1,9 @@
 package org.progfun;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -159,4 +163,122 @@ public class DecimalTest {
         d = new Decimal("500");
         assertEquals("500", d.getNiceString());
     }
+
+    @Test
+    public void testFixedPoint() {
+        Decimal d = new Decimal("7000.12345678");
+        assertTrue(d.isFixedPoint());
+        assertEquals(700012345678L, d.getUnits());
+        assertEquals(d, Decimal.fromUnits(700012345678L));
+        assertEquals(-1L, new Decimal("-0.00000001").getUnits());
+        assertEquals("7000.12345678", d.toString());
+        assertEquals("-0.5", new Decimal("-0.5").toString());
+        assertEquals("600", new Decimal("600.000").toString());
+        assertEquals("0.00000001", new Decimal("0.00000001").toString());
+        assertEquals("-12.0005", new Decimal("-12.00050").toString());
+        // Too many digits to be represented as fixed point
+        assertFalse(new Decimal("0.00000000001").isFixedPoint());
+        assertTrue(new Decimal("0.000000010").isFixedPoint());
+    }
+
+    @Test
+    public void testOverflow() {
+        Decimal big = new Decimal("100000000000");
+        assertFalse(big.isFixedPoint());
+        Decimal d = Decimal.fromUnits(Long.MAX_VALUE);
+        assertTrue(d.isFixedPoint());
+        // Result does not fit in long anymore, BigDecimal must be used
+        Decimal sum = d.add(Decimal.ONE);
+        assertFalse(sum.isFixedPoint());
+        assertTrue(sum.isGreaterThan(d));
+        assertEquals(d, sum.subtract(Decimal.ONE));
+        assertTrue(sum.subtract(Decimal.ONE).isFixedPoint());
+        Decimal diff = d.negate().subtract(Decimal.ONE);
+        assertFalse(diff.isFixedPoint());
+        assertTrue(diff.isSmallerThan(d.negate()));
+        Decimal product = d.multiply(Decimal.TEN);
+        assertFalse(product.isFixedPoint());
+        assertTrue(product.isGreaterThan(d));
+    }
+
+    @Test
+    public void testMultiplyRounding() {
+        Decimal price = new Decimal("7000.12345678");
+        Decimal amount = new Decimal("12.5");
+        assertEquals(new Decimal("87501.54320975"), price.multiply(amount));
+        assertEquals(new Decimal("-87501.54320975"),
+                price.negate().multiply(amount));
+        // 0.00000005 * 0.5 = 0.000000025 -> rounded HALF_UP
+        assertEquals(new Decimal("0.00000003"),
+                new Decimal("0.00000005").multiply(new Decimal("0.5")));
+        assertEquals(new Decimal("-0.00000003"),
+                new Decimal("-0.00000005").multiply(new Decimal("0.5")));
+        assertEquals(new Decimal("0.00000002"),
+                new Decimal("0.00000005").multiply(new Decimal("0.49")));
+    }
+
+    @Test
+    public void testParse() {
+        String msg = "[\"7000.25\",\"-0.001\",\"12\",\"0.000000010\"]";
+        assertEquals(new Decimal("7000.25"), Decimal.parse(msg, 2, 9));
+        assertEquals(new Decimal("-0.001"), Decimal.parse(msg, 12, 18));
+        assertEquals(new Decimal(12), Decimal.parse(msg, 21, 23));
+        assertEquals(1L, Decimal.parse(msg, 26, 37).getUnits());
+        assertEquals(new Decimal("0.5"), Decimal.parse("+.5"));
+        assertEquals(Decimal.ZERO, Decimal.parse("-0"));
+
+        byte[] bytes = msg.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(new Decimal("7000.25"), Decimal.parse(bytes, 2, 9));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        assertEquals(new Decimal("-0.001"), Decimal.parse(buffer, 12, 18));
+        // A heap buffer sharing the array, with an offset
+        ByteBuffer slice = ByteBuffer.wrap(bytes, 10, 20).slice();
+        assertEquals(new Decimal(12), Decimal.parse(slice, 11, 13));
+        char[] chars = msg.toCharArray();
+        assertEquals(1L, Decimal.parse(chars, 26, 37).getUnits());
+
+        // Exponential form, as JavaScript prints small numbers
+        assertEquals(15L, Decimal.parse("1.5e-7").getUnits());
+        assertEquals(-2L, Decimal.parse("-2E-8").getUnits());
+        assertEquals(new Decimal("12300"), Decimal.parse("1.23e+4"));
+        assertEquals(new Decimal("0.123"), Decimal.parse("123e-3"));
+        assertEquals(Decimal.ZERO, Decimal.parse("0e-20"));
+        assertTrue(Decimal.parse("1e-8").isFixedPoint());
+        assertFalse(Decimal.parse("1e-9").isFixedPoint());
+        assertEquals(new Decimal("0.000000001"), Decimal.parse("1e-9"));
+
+        // Fallback for numbers not fitting in fixed-point representation
+        assertEquals(new Decimal("0.000000001"), Decimal.parse("0.000000001"));
+        assertEquals(new Decimal("1.5E-3"), Decimal.parse("0.0015"));
+        assertEquals(new Decimal("1E+20"), Decimal.parse("100000000000000000000"));
+        assertEquals(Decimal.fromUnits(Long.MAX_VALUE),
+                Decimal.parse("92233720368.54775807"));
+        assertEquals(new Decimal("92233720368.54775808"),
+                Decimal.parse("92233720368.54775808"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalid() {
+        Decimal.parse("12.3.4");
+    }
+
+    @Test
+    public void testHashCode() {
+        assertEquals(new Decimal("5").hashCode(), new Decimal(5.0).hashCode());
+        assertEquals(new Decimal("5.10").hashCode(),
+                new Decimal("5.1000000000").hashCode());
+        assertEquals(new Decimal("1E-11").hashCode(),
+                new Decimal("0.0000000000100").hashCode());
+        assertEquals(Decimal.ZERO.hashCode(), new Decimal("-0.0").hashCode());
+        Decimal big = new Decimal("100000000000");
+        assertEquals(big.hashCode(), new Decimal("1E+11").hashCode());
+        assertEquals(big.hashCode(), big.add(Decimal.ONE).subtract(1).hashCode());
+
+        Set<Decimal> set = new HashSet<>();
+        set.add(new Decimal("7000.1"));
+        assertTrue(set.contains(new Decimal(7000.1)));
+        assertTrue(set.contains(Decimal.parse("7000.100")));
+        assertFalse(set.contains(new Decimal("7000.10000001")));
+    }
 }
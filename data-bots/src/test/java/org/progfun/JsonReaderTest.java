@@ -0,0 +1,184 @@
+package org.progfun;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.progfun.orderbook.Book;
+import org.progfun.websocket.JsonBackend;
+import org.progfun.websocket.JsonReader;
+import org.progfun.websocket.JsonToken;
+
+public class JsonReaderTest {
+
+    @Test
+    public void testBackendsAgree() {
+        String msg = " {\"event\":\"info\", \"data\":[1, \"2.5\", -0.00000003,"
+                + " true, false, null, {\"s\":\"a\\\"b\\\\c\\u0041\\n\"}, [],"
+                + " {}], \"n\": 1234567890 } ";
+        String expected = "{data:[1,2.5,-0.00000003,true,false,null,"
+                + "{s:a\"b\\cA\n},[],{}],event:info,n:1234567890}";
+        for (JsonBackend backend : JsonBackend.values()) {
+            JsonReader reader = backend.createReader();
+            reader.reset(msg);
+            assertEquals(backend.toString(), expected, dump(reader));
+            assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        for (JsonBackend backend : JsonBackend.values()) {
+            JsonReader reader = backend.createReader();
+            reader.reset("[7000.12345678, \"0.1\", -12, \"34\", 1e-8]");
+            reader.beginArray();
+            assertEquals(Decimal.fromUnits(700012345678L), reader.nextDecimal());
+            assertEquals(new Decimal("0.1"), reader.nextDecimal());
+            assertEquals(-12, reader.nextInt());
+            assertEquals(34L, reader.nextLong());
+            assertEquals(new Decimal("0.00000001"), reader.nextDecimal());
+            assertFalse(reader.hasNext());
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void testBytes() {
+        byte[] ascii = "[\"hb\", 1.5e-7]".getBytes(StandardCharsets.UTF_8);
+        byte[] utf8 = "{\"msg\":\"\u00e6\u00f8\u00e5\"}".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(ascii.length + 2);
+        direct.put((byte) ' ').put(ascii).flip();
+        for (JsonBackend backend : JsonBackend.values()) {
+            JsonReader reader = backend.createReader();
+            reader.reset(direct);
+            assertEquals(0, direct.position());
+            assertEquals("[hb,0.00000015]", dump(reader));
+            reader.reset(ByteBuffer.wrap(utf8));
+            assertEquals("{msg:\u00e6\u00f8\u00e5}", dump(reader));
+        }
+    }
+
+    @Test
+    public void testPrices() {
+        for (JsonBackend backend : JsonBackend.values()) {
+            Book book = new Book();
+            Decimal cached = book.getPrice(700050000000L);
+            JsonReader reader = backend.createReader();
+            reader.reset("[7000.5, \"7000.50\", 0.1, 1e-9]");
+            reader.beginArray();
+            // Known prices come from the cache of the book
+            assertSame(cached, reader.nextPrice(book));
+            assertSame(cached, reader.nextPrice(book));
+            assertEquals(new Decimal("0.1"), reader.nextPrice(book));
+            // Not a fixed-point number, never cached
+            Decimal tiny = reader.nextPrice(book);
+            assertFalse(tiny.isFixedPoint());
+            assertEquals(new Decimal("0.000000001"), tiny);
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void testSkipAndReuse() {
+        for (JsonBackend backend : JsonBackend.values()) {
+            JsonReader reader = backend.createReader();
+            reader.reset("[1, {\"a\":[2, [3]], \"b\":{}}, [4, \"x\"], 5]");
+            reader.beginArray();
+            assertEquals(1, reader.nextInt());
+            reader.skipValue();
+            reader.skipValue();
+            assertEquals(5, reader.nextInt());
+            reader.endArray();
+
+            // The same reader handles the next message
+            reader.reset("{\"b\":2}");
+            reader.beginObject();
+            assertEquals("b", reader.nextName());
+            assertEquals(2, reader.nextInt());
+            reader.endObject();
+        }
+    }
+
+    @Test
+    public void testErrors() {
+        String[] broken = {"[1,2", "{\"a\" 1}", "[\"abc]", "[1,,2]", "[1]x"};
+        for (JsonBackend backend : JsonBackend.values()) {
+            JsonReader reader = backend.createReader();
+            for (String msg : broken) {
+                if (backend == JsonBackend.ORG_JSON
+                        && (msg.equals("[1,,2]") || msg.equals("[1]x"))) {
+                    // org.json is lenient here
+                    continue;
+                }
+                try {
+                    reader.reset(msg);
+                    dump(reader);
+                    reader.peek();
+                    fail(backend + " accepted " + msg);
+                } catch (InvalidFormatException ex) {
+                    // Expected
+                }
+            }
+
+            reader.reset("[\"abc\", 1.5]");
+            reader.beginArray();
+            try {
+                reader.nextDecimal();
+                fail(backend + " parsed a number from text");
+            } catch (InvalidFormatException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Read the next value and convert it to a canonical string: object
+     * fields sorted by name, numbers as Decimals
+     *
+     * @param reader
+     * @return
+     */
+    private static String dump(JsonReader reader) {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                StringBuilder sb = new StringBuilder("[");
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (sb.length() > 1) {
+                        sb.append(',');
+                    }
+                    sb.append(dump(reader));
+                }
+                reader.endArray();
+                return sb.append(']').toString();
+            case BEGIN_OBJECT:
+                Map<String, String> fields = new TreeMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    fields.put(name, dump(reader));
+                }
+                reader.endObject();
+                StringBuilder ob = new StringBuilder("{");
+                for (Map.Entry<String, String> e : fields.entrySet()) {
+                    if (ob.length() > 1) {
+                        ob.append(',');
+                    }
+                    ob.append(e.getKey()).append(':').append(e.getValue());
+                }
+                return ob.append('}').toString();
+            case NUMBER:
+                return reader.nextDecimal().toBigDecimal().stripTrailingZeros()
+                        .toPlainString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -1,8 +1,18 @@
 package org.progfun;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import org.junit.Test;
 import org.progfun.orderbook.Book;
+import org.progfun.orderbook.BookDelta;
+import org.progfun.orderbook.BookDeltaListener;
+import org.progfun.orderbook.BookType;
+import org.progfun.orderbook.LadderLevels;
 import org.progfun.orderbook.Order;
+import org.progfun.orderbook.TopOfBookListener;
+import org.progfun.trade.Trade;
+import org.progfun.trade.TradeListener;
 
 import static org.junit.Assert.*;
 import org.progfun.orderbook.OrderbookListener;
@@ -444,6 +454,300 @@ public class MarketTest {
         assertNull(m.getBestBid());
     }
 
+    @Test
+    public void testArrayBookNotifications() {
+        Market m = new Market(new CurrencyPair("BTC", "USD"), BookType.ARRAY);
+        DummyListener l = new DummyListener();
+        m.addBookListener(l);
+        m.addAsk("700", "3", 5);
+        m.addAsk("700", "-1", 1);
+        m.addAsk("700", "-2", 1);
+        m.addBid("600", "1", 1, false);
+        m.removeBid(new Decimal(600));
+        assertEquals(1, l.numNewAsks);
+        assertEquals(1, l.numUpdatedAsks);
+        assertEquals(1, l.numDeletedAsks);
+        assertEquals(1, l.numNewBids);
+        assertEquals(1, l.numDeletedBids);
+        assertEquals(0, m.getAsks().size());
+        assertEquals(0, m.getBids().size());
+    }
+
+    @Test
+    public void testTickSize() {
+        Market m = new Market("BTC", "USD");
+        m.setInferTickSize(true);
+        m.loadSnapshot(new Order[]{
+            new Order(new Decimal("7000"), Decimal.ONE, 1),
+            new Order(new Decimal("6999.5"), Decimal.ONE, 1),
+            new Order(new Decimal("6998"), Decimal.ONE, 1)
+        }, new Order[]{
+            new Order(new Decimal("7001.5"), new Decimal(2), 1),
+            new Order(new Decimal("7003"), new Decimal(2), 1)
+        });
+        assertEquals(new Decimal("0.5"), m.getTickSize());
+        assertTrue(m.getBids().getLevels() instanceof LadderLevels);
+        assertEquals(3, m.getBids().size());
+        assertEquals(new Decimal("7001.5"), m.getBestAsk().getPrice());
+
+        // Updates after the switch
+        m.addBid("7000.5", "1", 1);
+        m.addBid("7000", "-1", 1);
+        assertEquals(new Decimal("7000.5"), m.getBestBid().getPrice());
+        assertEquals(3, m.getBids().size());
+
+        // A later snapshot can only make the tick finer
+        m.loadSnapshot(new Order[0], new Order[]{
+            new Order(new Decimal("7001.25"), new Decimal(2), 1),
+            new Order(new Decimal("7001.5"), new Decimal(2), 1)
+        });
+        assertEquals(new Decimal("0.25"), m.getTickSize());
+        assertEquals(new Decimal("7001.25"), m.getBestAsk().getPrice());
+        assertNull(m.getBestBid());
+        m.loadSnapshot(new Order[0], new Order[]{
+            new Order(new Decimal("7001"), new Decimal(2), 1),
+            new Order(new Decimal("7003"), new Decimal(2), 1)
+        });
+        assertEquals(new Decimal("0.25"), m.getTickSize());
+
+        // An explicit tick size is never changed
+        m.setTickSize(new Decimal("0.5"));
+        m.loadSnapshot(new Order[0], new Order[]{
+            new Order(new Decimal("7001.25"), new Decimal(2), 1),
+            new Order(new Decimal("7001.5"), new Decimal(2), 1)
+        });
+        assertEquals(new Decimal("0.5"), m.getTickSize());
+        assertEquals(new Decimal("7001.25"), m.getBestAsk().getPrice());
+
+        m.setTickSize(null);
+        assertNull(m.getTickSize());
+        assertFalse(m.getAsks().getLevels() instanceof LadderLevels);
+        assertEquals(2, m.getAsks().size());
+    }
+
+    @Test
+    public void testLoadSnapshot() {
+        Market m = new Market(new CurrencyPair("BTC", "USD"), BookType.ARRAY);
+        DummyListener l = new DummyListener();
+        m.addBookListener(l);
+        m.addBid("500", "1", 1);
+        m.loadSnapshot(new Order[]{
+            new Order(new Decimal(603), Decimal.ONE, 1),
+            new Order(new Decimal(602), Decimal.ONE, 2),
+            new Order(new Decimal(601), Decimal.ONE, null)
+        }, new Order[]{
+            new Order(new Decimal(610), Decimal.ONE, 1),
+            new Order(new Decimal(605), Decimal.ONE, 1)
+        });
+        // The new book is reported level by level
+        assertEquals(4, l.numNewBids);
+        assertEquals(2, l.numNewAsks);
+        assertEquals(0, l.numDeletedBids);
+        assertEquals(3, m.getBids().size());
+        assertNull(m.getBids().getOrderForPrice("500"));
+        assertEquals(new Decimal(603), m.getBestBid().getPrice());
+        assertEquals(new Decimal(605), m.getBestAsk().getPrice());
+        assertEquals(2, (int) m.getBids().getOrderForPrice("602").getCount());
+        assertTrue(m.isOrderBookConsistent());
+
+        // Updates after the snapshot
+        m.addAsk("605", "-1", 1);
+        assertEquals(new Decimal(610), m.getBestAsk().getPrice());
+        m.addBid("604", "1", 1);
+        assertEquals(new Decimal(604), m.getBestBid().getPrice());
+        assertEquals(4, m.getBids().size());
+    }
+
+    @Test
+    public void testDeltaBatches() {
+        Market m = new Market("BTC", "USD");
+        final List<String> batches = new ArrayList<>();
+        final int[] replaced = {0};
+        m.addDeltaListener(new BookDeltaListener() {
+            @Override
+            public void onBookDelta(Market market, BookDelta[] deltas,
+                    int count) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < count; ++i) {
+                    if (i > 0) {
+                        sb.append("; ");
+                    }
+                    sb.append(deltas[i]);
+                }
+                batches.add(sb.toString());
+            }
+
+            @Override
+            public void bookReplaced(Market market) {
+                replaced[0]++;
+            }
+        });
+
+        // Without a batch every change is reported at once
+        m.addBid("600", "1", 1);
+        assertEquals(1, batches.size());
+        assertEquals("Bid ADDED 600 [1]", batches.get(0));
+
+        m.beginBatch();
+        m.addBid("600", "2", 1);
+        m.addAsk("700", "1", 1);
+        m.removeBid(new Decimal(600));
+        assertEquals(1, batches.size());
+        m.flushBatch();
+        assertEquals(2, batches.size());
+        assertEquals("Bid UPDATED 600 [3]; "
+                + "Ask ADDED 700 [1]; "
+                + "Bid REMOVED 600 [0]", batches.get(1));
+        // Nothing left to flush
+        m.beginBatch();
+        m.flushBatch();
+        assertEquals(2, batches.size());
+
+        // Nested batches are flushed by the outer one
+        m.beginBatch();
+        m.beginBatch();
+        m.addAsk("701", "1", 1);
+        m.flushBatch();
+        assertEquals(2, batches.size());
+        m.flushBatch();
+        assertEquals(3, batches.size());
+
+        // A snapshot drops the collected changes
+        m.beginBatch();
+        m.addAsk("702", "1", 1);
+        m.loadSnapshot(new Order[0], new Order[0]);
+        m.flushBatch();
+        assertEquals(3, batches.size());
+        assertEquals(1, replaced[0]);
+    }
+
+    @Test
+    public void testListenerChanges() {
+        final Market m = new Market("BTC", "USD");
+        final DummyListener added = new DummyListener();
+        // A listener which registers another one during a notification
+        DummyListener l = new DummyListener() {
+            @Override
+            public void bidAdded(Market market, Order bid) {
+                super.bidAdded(market, bid);
+                market.addBookListener(added);
+            }
+        };
+        assertTrue(m.addBookListener(l));
+        assertFalse(m.addBookListener(l));
+        m.addBid("600", "1", 1);
+        assertEquals(1, l.numNewBids);
+        assertEquals(0, added.numNewBids);
+        m.addBid("601", "1", 1);
+        assertEquals(1, added.numNewBids);
+
+        assertTrue(m.removeListener(l));
+        assertFalse(m.removeListener(l));
+        m.addBid("602", "1", 1);
+        assertEquals(2, l.numNewBids);
+        assertEquals(2, added.numNewBids);
+
+        final int[] trades = {0};
+        TradeListener tl = (Market market, Trade t) -> {
+            trades[0]++;
+        };
+        assertTrue(m.addTradeListener(tl));
+        m.addTrade(new Trade(new Date(), Decimal.ONE, Decimal.ONE, false));
+        assertTrue(m.removeTradeListener(tl));
+        m.addTrade(new Trade(new Date(), Decimal.ONE, Decimal.ONE, true));
+        assertEquals(1, trades[0]);
+    }
+
+    /**
+     * Records the quotes received by a top-of-book listener
+     */
+    private static List<String> listenTopOfBook(Market m) {
+        final List<String> quotes = new ArrayList<>();
+        m.addTopOfBookListener((Market market, Order bid, Order ask) -> {
+            quotes.add((bid != null ? bid.toString() : "-") + " / "
+                    + (ask != null ? ask.toString() : "-"));
+        });
+        return quotes;
+    }
+
+    @Test
+    public void testTopOfBook() {
+        Market m = new Market("BTC", "USD");
+        List<String> quotes = listenTopOfBook(m);
+        m.addBid("600", "1", 1);
+        assertEquals(1, quotes.size());
+        // Changes deeper in the book are not interesting
+        m.addBid("590", "1", 1);
+        m.addBid("590", "2", 1);
+        m.removeBid(new Decimal(590));
+        assertEquals(1, quotes.size());
+        // Amount of the best bid changes
+        m.addBid("600", "1", 1);
+        assertEquals(2, quotes.size());
+        m.addAsk("610", "1", 1);
+        m.addAsk("620", "1", 1);
+        assertEquals(3, quotes.size());
+        m.removeAsk(new Decimal(610));
+        assertEquals(4, quotes.size());
+        assertEquals(m.getBestBid() + " / " + m.getBestAsk(), quotes.get(3));
+        m.clearOrderBook();
+        assertEquals(5, quotes.size());
+        assertEquals("- / -", quotes.get(4));
+        m.clearOrderBook();
+        assertEquals(5, quotes.size());
+    }
+
+    @Test
+    public void testTopOfBookConflation() {
+        Market m = new Market("BTC", "USD");
+        List<String> quotes = listenTopOfBook(m);
+
+        // One notification per batch, with the final state
+        m.beginBatch();
+        m.addBid("600", "1", 1);
+        m.addBid("601", "1", 1);
+        m.addAsk("610", "1", 1);
+        assertEquals(0, quotes.size());
+        m.flushBatch();
+        assertEquals(1, quotes.size());
+
+        // A batch that returns to the same quote does not notify
+        m.beginBatch();
+        m.addBid("602", "1", 1);
+        m.removeBid(new Decimal(602));
+        m.flushBatch();
+        assertEquals(1, quotes.size());
+
+        // With an interval, changes are postponed and only the latest quote
+        // is delivered
+        m.setTopOfBookInterval(3600000);
+        m.addBid("603", "1", 1);
+        m.addBid("604", "1", 1);
+        assertEquals(1, quotes.size());
+        m.flushTopOfBook();
+        assertEquals(2, quotes.size());
+        assertEquals(m.getBestBid() + " / " + m.getBestAsk(), quotes.get(1));
+        m.flushTopOfBook();
+        assertEquals(2, quotes.size());
+
+        // The trailing edge: a due quote is delivered without a new change
+        m.setTopOfBookInterval(200);
+        m.addBid("604", "2", 1);
+        m.flushDueTopOfBook();
+        assertEquals(2, quotes.size());
+        try {
+            Thread.sleep(250);
+        } catch (InterruptedException ex) {
+            fail("Interrupted");
+        }
+        m.flushDueTopOfBook();
+        assertEquals(3, quotes.size());
+
+        m.setTopOfBookInterval(0);
+        m.addAsk("605", "1", 1);
+        assertEquals(4, quotes.size());
+    }
+
     @Test
     public void testOrderConsistency() {
         Market m = new Market("BTC", "USD");
@@ -0,0 +1,63 @@
+package org.progfun;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ThreadLauncherTest {
+
+    @After
+    public void tearDown() {
+        ThreadLauncher.setVirtualThreads(false);
+    }
+
+    /**
+     * Start a thread, return the name it had while running
+     */
+    private static String runAndGetName(boolean daemon)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> name = new AtomicReference<>();
+        Thread t = ThreadLauncher.start(() -> {
+            name.set(Thread.currentThread().getName());
+            done.countDown();
+        }, "Test Thread", daemon);
+        assertNotNull(t);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        t.join();
+        return name.get();
+    }
+
+    @Test
+    public void testPlatformThreads() throws InterruptedException {
+        assertFalse(ThreadLauncher.isVirtualEnabled());
+        assertEquals("Test Thread", runAndGetName(false));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread t = ThreadLauncher.start(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                // Finish
+            }
+        }, "Daemon", true);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(t.isDaemon());
+        release.countDown();
+        t.join();
+    }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException {
+        ThreadLauncher.setVirtualThreads(true);
+        // Falls back to platform threads on older JVMs
+        assertEquals(ThreadLauncher.isVirtualAvailable(),
+                ThreadLauncher.isVirtualEnabled());
+        assertEquals("Test Thread", runAndGetName(false));
+    }
+}
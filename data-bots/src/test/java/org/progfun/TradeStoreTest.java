@@ -0,0 +1,232 @@
+package org.progfun;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.progfun.trade.ColumnarTradeStore;
+import org.progfun.trade.Trade;
+import org.progfun.trade.TradeStore;
+import org.progfun.trade.TradeView;
+
+import static org.junit.Assert.*;
+
+public class TradeStoreTest {
+
+    /**
+     * Create a trade with amount equal to its time
+     */
+    private static Trade trade(long time) {
+        Trade t = new Trade(new Date(time), Decimal.ONE, new Decimal(time),
+                false);
+        t.setId(time);
+        return t;
+    }
+
+    /**
+     * Get IDs of the trades as a string
+     */
+    private static String ids(Iterable<Trade> trades) {
+        StringBuilder sb = new StringBuilder();
+        for (Trade t : trades) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(t.getId());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testCountLimit() {
+        TradeStore store = new TradeStore(3, 0);
+        assertNull(store.getNewest());
+        store.add(trade(1));
+        store.add(trade(2));
+        assertEquals(2, store.size());
+        assertEquals("1,2", ids(store));
+        store.add(trade(3));
+        store.add(trade(4));
+        store.add(trade(5));
+        assertEquals(3, store.size());
+        assertEquals("3,4,5", ids(store));
+        assertEquals(3, store.get(0).getId());
+        assertEquals(5, store.getNewest().getId());
+        assertEquals("4,5", ids(store.getLast(2)));
+        assertEquals("3,4,5", ids(store.getLast(10)));
+        assertEquals("", ids(store.getLast(0)));
+
+        // Shrink and grow
+        store.setLimits(2, 0);
+        assertEquals("4,5", ids(store));
+        store.setLimits(100, 0);
+        for (int i = 6; i <= 50; ++i) {
+            store.add(trade(i));
+        }
+        assertEquals(47, store.size());
+        assertEquals(4, store.get(0).getId());
+        assertEquals(50, store.getNewest().getId());
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals("", ids(store));
+        store.add(trade(7));
+        assertEquals("7", ids(store));
+    }
+
+    @Test
+    public void testAgeLimit() {
+        TradeStore store = new TradeStore(100, 10);
+        for (int i = 1; i <= 20; ++i) {
+            store.add(trade(i));
+        }
+        // Trades within 10 ms of the newest one are kept
+        assertEquals(11, store.size());
+        assertEquals(10, store.get(0).getId());
+        assertEquals("18,19,20", ids(store.getSince(18)));
+        assertEquals("", ids(store.getSince(21)));
+        assertEquals("10,11,12,13,14,15,16,17,18,19,20",
+                ids(store.getSince(0)));
+
+        store.setLimits(100, 2);
+        assertEquals("18,19,20", ids(store));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new TradeStore(0, 0);
+    }
+
+    @Test
+    public void testMarketTrades() {
+        Market m = new Market("BTC", "USD");
+        m.setTradeLimits(2, 0);
+        m.addTrade(trade(1));
+        m.addTrade(trade(2));
+        m.addTrade(trade(3));
+        assertEquals(2, m.getTradeCount());
+        assertEquals("2,3", ids(m.getTrades()));
+        m.clearTrades();
+        assertEquals(0, m.getTradeCount());
+    }
+
+    @Test
+    public void testColumnarStore() {
+        ColumnarTradeStore store = new ColumnarTradeStore(100, 0);
+        for (int i = 1; i <= 150; ++i) {
+            Trade t = new Trade(new Date(i), new Decimal("600.5"),
+                    new Decimal(i), i % 3 == 0);
+            t.setId(i);
+            store.add(t);
+        }
+        assertEquals(100, store.size());
+        assertEquals(51, store.get(0).getId());
+        assertEquals("148,149,150", ids(store.getLast(3)));
+        assertEquals("148,149,150", ids(store.getSince(148)));
+
+        // Every trade is a separate object, the store works as a collection
+        Trade previous = null;
+        long expectedId = 51;
+        for (Trade t : store) {
+            assertNotSame(previous, t);
+            previous = t;
+            assertEquals(expectedId, t.getId());
+            assertEquals(expectedId, t.getTime().getTime());
+            assertEquals(new Decimal("600.5"), t.getPrice());
+            assertEquals(new Decimal(expectedId), t.getAmount());
+            assertEquals(expectedId % 3 == 0, t.isSellSide());
+            expectedId++;
+        }
+        assertEquals(151, expectedId);
+        List<Trade> copy = new ArrayList<>(store);
+        assertEquals(51, copy.get(0).getId());
+        assertEquals(150, copy.get(99).getId());
+        assertTrue(store.containsAll(copy));
+        assertEquals(100, store.toArray().length);
+
+        // Reading without allocation: one view, reloaded
+        TradeView view = store.newView();
+        expectedId = 148;
+        for (int i = store.indexSince(148); i < store.size(); ++i) {
+            assertSame(view, store.get(i, view));
+            assertEquals(expectedId++, view.getId());
+        }
+        assertEquals(151, expectedId);
+
+        store.get(99, view);
+        assertEquals(150, view.getId());
+        assertEquals(150, view.getTimeMillis());
+        assertEquals(new Decimal("600.5").getUnits(), view.getPriceUnits());
+        assertEquals(new Decimal(150).getUnits(), view.getAmountUnits());
+        assertTrue(view.isSellSide());
+    }
+
+    @Test
+    public void testColumnarSpecialValues() {
+        ColumnarTradeStore store = new ColumnarTradeStore(4, 0);
+        // Does not fit in fixed-point units
+        Decimal huge = new Decimal("123456789012345678901234567890");
+        assertFalse(huge.isFixedPoint());
+        store.add(new Trade(null, huge, Decimal.ONE, true));
+        store.add(new Trade(new Date(5), Decimal.TEN, Decimal.ONE, false));
+        Trade t = store.get(0);
+        assertNull(t.getTime());
+        assertEquals(huge, t.getPrice());
+        assertTrue(t.isSellSide());
+        t = store.get(1);
+        assertEquals(Decimal.TEN, t.getPrice());
+        assertFalse(t.isSellSide());
+        // Overwrite the big trade
+        for (int i = 0; i < 4; ++i) {
+            store.add(new Trade(new Date(i), Decimal.ONE, Decimal.ONE, false));
+        }
+        assertEquals(Decimal.ONE, store.get(3).getPrice());
+    }
+
+    @Test
+    public void testReadOnlyViews() {
+        ColumnarTradeStore store = new ColumnarTradeStore(4, 0);
+        Trade original = new Trade(new Date(5), Decimal.TEN, Decimal.ONE, true);
+        original.setId(7);
+        store.add(original);
+        Trade view = store.get(0);
+        try {
+            view.setId(8);
+            fail("View must be read-only");
+        } catch (UnsupportedOperationException ex) {
+            assertEquals(7, view.getId());
+        }
+        // Views equal each other, never the stored trade
+        assertEquals(view, store.get(0));
+        assertNotEquals(original, view);
+        assertNotEquals(view, original);
+        Trade copy = ((TradeView) view).copy();
+        assertFalse(copy instanceof TradeView);
+        copy.setId(8);
+        assertEquals(8, copy.getId());
+        assertEquals(Decimal.TEN, copy.getPrice());
+    }
+
+    @Test
+    public void testMarketTradeStore() {
+        Market m = new Market("BTC", "USD");
+        m.addTrade(trade(1));
+        m.addTrade(trade(2));
+        m.setTradeStore(new ColumnarTradeStore());
+        m.addTrade(trade(3));
+        assertTrue(m.getTrades() instanceof ColumnarTradeStore);
+        assertEquals("1,2,3", ids(m.getTrades()));
+        // And back, the views must be copied
+        m.setTradeStore(new TradeStore());
+        assertEquals("1,2,3", ids(m.getTrades()));
+
+        // Same type and limits
+        TradeStore store = new ColumnarTradeStore(10, 5);
+        TradeStore empty = store.newEmptyStore();
+        assertTrue(empty instanceof ColumnarTradeStore);
+        assertEquals(10, empty.getMaxCount());
+        assertEquals(5, empty.getMaxAge());
+        assertFalse(new TradeStore().newEmptyStore()
+                instanceof ColumnarTradeStore);
+    }
+}
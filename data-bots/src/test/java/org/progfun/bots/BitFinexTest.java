@@ -1,9 +1,25 @@
 package org.progfun.bots;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
 import org.junit.Test;
+import org.progfun.Channel;
+import org.progfun.Decimal;
+import org.progfun.Exchange;
 import org.progfun.InvalidFormatException;
+import org.progfun.Market;
+import org.progfun.Subscription;
+import org.progfun.Subscriptions;
 import static org.junit.Assert.*;
 import org.progfun.bots.bitfinex.BitFinexHandler;
+import org.progfun.bots.bitfinex.BookChecksum;
+import org.progfun.orderbook.Order;
+import org.progfun.trade.Trade;
+import org.progfun.websocket.Action;
+import org.progfun.websocket.Event;
+import org.progfun.websocket.JsonBackend;
+import org.progfun.websocket.Parser;
 
 public class BitFinexTest {
 
@@ -16,4 +32,195 @@ public class BitFinexTest {
         assertNotNull(scenario);
         scenario.runTest(new BitFinexHandler());
     }
+
+    // The same scenario, parsed with org.json backend
+    @Test
+    public void testScenarioOrgJson() throws InvalidFormatException {
+        TestScenario scenario = TestScenario.loadFromFile(
+                "/bitfinex/bitfinex-test-messages.test");
+        assertNotNull(scenario);
+        JsonBackend backend = Parser.getDefaultJsonBackend();
+        Parser.setDefaultJsonBackend(JsonBackend.ORG_JSON);
+        try {
+            scenario.runTest(new BitFinexHandler());
+        } finally {
+            Parser.setDefaultJsonBackend(backend);
+        }
+    }
+
+    @Test
+    public void testChecksum() {
+        Market m = new Market("BTC", "USD");
+        m.addBid("701", "20", 1);
+        m.addBid("703", "45", 1);
+        m.addAsk("741", "0.8", 1);
+        m.addAsk("751", "1.5", 2);
+        BookChecksum checksum = new BookChecksum();
+        assertEquals(crc("703:45:741:-0.8:701:20:751:-1.5"),
+                checksum.calculate(m));
+
+        // Small numbers are printed in exponential form
+        m.clearOrderBook();
+        m.addBid("0.5", "0.00000015", 1);
+        m.addAsk("0.75", "0.00000002", 1);
+        assertEquals(crc("0.5:1.5e-7:0.75:-2e-8"), checksum.calculate(m));
+    }
+
+    @Test
+    public void testChecksumMismatch() {
+        Exchange exchange = new Exchange();
+        Market m = new Market("BTC", "USD");
+        exchange.addMarket(m);
+        Subscriptions subs = new Subscriptions();
+        Subscription s = subs.addInactive(m, Channel.ORDERBOOK);
+        subs.activate("476", s);
+        Parser parser = new BitFinexHandler().createParser();
+        parser.setExchange(exchange);
+        parser.setSubscriptions(subs);
+
+        assertNull(parser.parseMessage("[476,[[701,1,20],[741,1,-0.8]]]"));
+        int cs = crc("701:20:741:-0.8");
+        assertNull(parser.parseMessage("[476,\"cs\"," + cs + "]"));
+
+        // Our book diverges
+        m.addBid(new Decimal(702), Decimal.ONE, 1);
+        Event e = parser.parseMessage("[476,\"cs\"," + cs + "]");
+        assertNotNull(e);
+        assertEquals(Action.RESUBSCRIBE, e.getType());
+        assertSame(s, e.getData());
+
+        // Data for the closing channel is ignored, not an error
+        subs.deactivate(s);
+        assertNull(parser.parseMessage("[476,[701,1,30]]"));
+        assertNull(parser.parseMessage(
+                "{\"event\":\"unsubscribed\",\"status\":\"OK\",\"chanId\":476}"));
+        assertNull(parser.parseMessage(
+                "{\"event\":\"conf\",\"status\":\"OK\",\"flags\":131072}"));
+    }
+
+    @Test
+    public void testRouting() {
+        Exchange exchange = new Exchange();
+        Market btc = new Market("BTC", "USD");
+        Market eth = new Market("ETH", "USD");
+        exchange.addMarket(btc);
+        exchange.addMarket(eth);
+        Subscriptions subs = new Subscriptions();
+        subs.activate("10", subs.addInactive(btc, Channel.ORDERBOOK));
+        subs.activate("11", subs.addInactive(btc, Channel.TRADES));
+        Subscription ethBook = subs.addInactive(eth, Channel.ORDERBOOK);
+        subs.activate("20", ethBook);
+        Parser parser = new BitFinexHandler().createParser();
+        parser.setExchange(exchange);
+        parser.setSubscriptions(subs);
+
+        assertSame(btc, parser.routeMessage("[10,[701,1,20]]"));
+        assertSame(btc, parser.routeMessage("[11,\"te\",[1,2,3,4]]"));
+        assertSame(eth, parser.routeMessage("[20,\"hb\"]"));
+        ByteBuffer bytes = ByteBuffer.wrap(
+                "[20,[[701,1,20]]]".getBytes(StandardCharsets.US_ASCII));
+        assertSame(eth, parser.routeMessage(bytes));
+        assertEquals(0, bytes.position());
+        // Events, unknown channels and broken messages stay on the Handler
+        // thread
+        assertNull(parser.routeMessage(
+                "{\"event\":\"info\",\"version\":2}"));
+        assertNull(parser.routeMessage("[30,[701,1,20]]"));
+        assertNull(parser.routeMessage("[\"x\""));
+
+        // After unsubscribing, late data is parsed on the Handler thread
+        // and ignored there
+        parser.onUnsubscribing(ethBook);
+        subs.deactivate(ethBook);
+        assertNull(parser.routeMessage("[20,[701,1,20]]"));
+        assertNull(parser.parseMessage("[20,[701,1,20]]"));
+    }
+
+    @Test
+    public void testTradesAndCandles() {
+        Exchange exchange = new Exchange();
+        Market m = new Market("BTC", "USD");
+        exchange.addMarket(m);
+        Subscriptions subs = new Subscriptions();
+        subs.activate("10", subs.addInactive(m, Channel.TRADES));
+        subs.activate("11", subs.addInactive(m, Channel.PRICES_1MIN));
+        Parser parser = new BitFinexHandler().createParser();
+        parser.setExchange(exchange);
+        parser.setSubscriptions(subs);
+
+        assertNull(parser.parseMessage("[10,[[5,1514764800000,-0.5,7000.1],"
+                + " [4,1514764799000,1,7000]]]"));
+        assertNull(parser.parseMessage("[10,\"hb\"]"));
+        assertNull(parser.parseMessage(
+                "[10,\"te\",[6,1514764801000,0.25,7001.5]]"));
+        assertNull(parser.parseMessage(
+                "[10,\"tu\",[6,1514764801000,0.25,7001.5]]"));
+        assertEquals(3, m.getTradeCount());
+        Trade t = m.getTrades().iterator().next();
+        assertEquals(5, t.getId());
+        assertTrue(t.isSellSide());
+        assertEquals(new Decimal("0.5"), t.getAmount());
+        assertEquals(new Decimal("7000.1"), t.getPrice());
+
+        assertNull(parser.parseMessage("[11,[[1514764800000,7000,7010,7020,"
+                + "6990,12.5],[1514764740000,6990,7000,7001,6980,3]]]"));
+        assertNull(parser.parseMessage(
+                "[11,[1514764860000,7010,7015,7016,7009,1.25]]"));
+        assertEquals(3, m.getPrices(Channel.PRICES_1MIN).size());
+
+        // Broken messages
+        assertEquals(Action.SHUTDOWN,
+                parser.parseMessage("[10,[5,1514764800000").getType());
+        assertEquals(Action.SHUTDOWN, parser.parseMessage("[99,[]]").getType());
+        assertEquals(Action.SHUTDOWN, parser.parseMessage("hello").getType());
+    }
+
+    @Test
+    public void testExactNumbers() {
+        Exchange exchange = new Exchange();
+        Market m = new Market("BTC", "USD");
+        exchange.addMarket(m);
+        Subscriptions subs = new Subscriptions();
+        subs.activate("476", subs.addInactive(m, Channel.ORDERBOOK));
+        Parser parser = new BitFinexHandler().createParser();
+        parser.setExchange(exchange);
+        parser.setSubscriptions(subs);
+
+        // Values which are not exact in binary floating point
+        assertNull(parser.parseMessage("[476,[[0.1,1,0.3],[0.7,2,-1.5e-7]]]"));
+        assertNull(parser.parseMessage("[476,[6543.21,3,0.29]]"));
+        Order bid = m.getBids().getOrderForPrice("0.1");
+        assertEquals(30000000L, bid.getAmount().getUnits());
+        Order ask = m.getAsks().getOrderForPrice("0.7");
+        assertTrue(ask.getAmount().isFixedPoint());
+        assertEquals(15L, ask.getAmount().getUnits());
+        Order best = m.getBids().getFirstOrder(false);
+        assertEquals(654321000000L, best.getPrice().getUnits());
+        assertEquals(29000000L, best.getAmount().getUnits());
+        // Updates of a known level don't create a new price object
+        assertNull(parser.parseMessage("[476,[6543.21,2,0.5]]"));
+        assertSame(best.getPrice(), m.getBids().getPrice(654321000000L));
+        assertEquals(50000000L, m.getBids().getFirstOrder(false).getAmount()
+                .getUnits());
+
+        // Raw frame bytes are parsed the same way
+        byte[] frame = "[476,[0.7,1,-2e-8]]".getBytes(StandardCharsets.US_ASCII);
+        assertNull(parser.parseMessage(ByteBuffer.wrap(frame)));
+        assertEquals(2L, m.getAsks().getOrderForPrice("0.7").getAmount()
+                .getUnits());
+        Event e = parser.parseMessage(ByteBuffer.wrap(frame, 0, 10));
+        assertEquals(Action.SHUTDOWN, e.getType());
+    }
+
+    /**
+     * Calculate CRC32 of a string, as a signed value
+     *
+     * @param s
+     * @return
+     */
+    private static int crc(String s) {
+        CRC32 crc = new CRC32();
+        crc.update(s.getBytes(StandardCharsets.US_ASCII));
+        return (int) crc.getValue();
+    }
 }
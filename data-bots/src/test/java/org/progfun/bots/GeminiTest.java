@@ -4,6 +4,8 @@ import org.junit.Test;
 import org.progfun.InvalidFormatException;
 import static org.junit.Assert.*;
 import org.progfun.bots.gemini.GeminiHandler;
+import org.progfun.websocket.JsonBackend;
+import org.progfun.websocket.Parser;
 
 public class GeminiTest {
 
@@ -16,4 +18,19 @@ public class GeminiTest {
         assertNotNull(scenario);
         scenario.runTest(new GeminiHandler());
     }
+
+    // The same scenario, parsed with org.json backend
+    @Test
+    public void testScenarioOrgJson() throws InvalidFormatException {
+        TestScenario scenario = TestScenario.loadFromFile(
+                "/gemini/gemini-test-messages.test");
+        assertNotNull(scenario);
+        JsonBackend backend = Parser.getDefaultJsonBackend();
+        Parser.setDefaultJsonBackend(JsonBackend.ORG_JSON);
+        try {
+            scenario.runTest(new GeminiHandler());
+        } finally {
+            Parser.setDefaultJsonBackend(backend);
+        }
+    }
 }
@@ -0,0 +1,324 @@
+package org.progfun.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.progfun.CurrencyPair;
+import org.progfun.Decimal;
+import org.progfun.Exchange;
+import org.progfun.Market;
+import org.progfun.SnapshotListener;
+import org.progfun.orderbook.ArrayLevels;
+import org.progfun.orderbook.BookType;
+import org.progfun.orderbook.Order;
+import org.progfun.orderbook.OrderbookListener;
+import org.progfun.trade.ColumnarTradeStore;
+import org.progfun.trade.Trade;
+import org.progfun.trade.TradeListener;
+
+import static org.junit.Assert.*;
+
+public class AsyncListenerTest {
+
+    /**
+     * Records all events as strings. The first event blocks until the test
+     * releases it, so that the following events pile up in the queue.
+     */
+    private static class SlowListener implements TradeListener,
+            OrderbookListener, SnapshotListener {
+
+        final List<String> events
+                = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        private static String str(Decimal d) {
+            return String.valueOf((int) d.getDoubleVal());
+        }
+
+        private void record(String event) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void tradeAdded(Market market, Trade trade) {
+            record("T " + str(trade.getAmount()));
+        }
+
+        @Override
+        public void bidAdded(Market market, Order bid) {
+            record("BA " + str(bid.getPrice()) + " "
+                    + str(bid.getAmount()));
+        }
+
+        @Override
+        public void askAdded(Market market, Order ask) {
+            record("AA " + str(ask.getPrice()) + " "
+                    + str(ask.getAmount()));
+        }
+
+        @Override
+        public void bidUpdated(Market market, Order bid) {
+            record("BU " + str(bid.getPrice()) + " "
+                    + str(bid.getAmount()));
+        }
+
+        @Override
+        public void askUpdated(Market market, Order ask) {
+            record("AU " + str(ask.getPrice()) + " "
+                    + str(ask.getAmount()));
+        }
+
+        @Override
+        public void bidRemoved(Market market, Decimal price) {
+            record("BR " + str(price));
+        }
+
+        @Override
+        public void askRemoved(Market market, Decimal price) {
+            record("AR " + str(price));
+        }
+
+        @Override
+        public void bookReplaced(Market market) {
+            record("S " + market.getBids().size() + " "
+                    + market.getAsks().size());
+        }
+
+        @Override
+        public void onSnapshot(Exchange exchange) {
+            record("X " + exchange.getMarkets()[0].getTradeCount());
+        }
+    }
+
+    /**
+     * Wait until the dispatcher has delivered given number of events
+     */
+    private static void awaitDelivered(AsyncDispatcher d, long n)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (d.getDelivered() < n) {
+            assertTrue("Events not delivered in time",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static Trade trade(int amount) {
+        return new Trade(new Date(), Decimal.ONE, new Decimal(amount), false);
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        Market m = new Market("BTC", "USD");
+        SlowListener l = new SlowListener();
+        l.release.countDown();
+        AsyncTradeListener async = new AsyncTradeListener(l, 4,
+                OverflowPolicy.BLOCK);
+        m.addTradeListener(async);
+        for (int i = 0; i < 100; ++i) {
+            m.addTrade(trade(i));
+        }
+        awaitDelivered(async, 100);
+        async.stop();
+        assertEquals(100, l.events.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("T " + i, l.events.get(i));
+        }
+        assertEquals(0, async.getDropped());
+        assertTrue(async.getMaxLagNanos() >= async.getLastLagNanos());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Market m = new Market("BTC", "USD");
+        SlowListener l = new SlowListener();
+        AsyncTradeListener async = new AsyncTradeListener(l, 4,
+                OverflowPolicy.DROP_OLDEST);
+        m.addTradeListener(async);
+        m.addTrade(trade(0));
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+        // The listener is stuck at the first trade, only the last 4 are kept
+        for (int i = 1; i < 10; ++i) {
+            m.addTrade(trade(i));
+        }
+        assertEquals(4, async.getPending());
+        assertEquals(5, async.getDropped());
+        l.release.countDown();
+        awaitDelivered(async, 5);
+        async.stop();
+        assertEquals("[T 0, T 6, T 7, T 8, T 9]", l.events.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConflateTrades() {
+        new AsyncTradeListener(new SlowListener(), 4, OverflowPolicy.CONFLATE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDropOldestBook() {
+        new AsyncBookListener(new SlowListener(), 4, OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        Market m = new Market("BTC", "USD");
+        final SlowListener l = new SlowListener();
+        final AsyncTradeListener async = new AsyncTradeListener(l, 2,
+                OverflowPolicy.BLOCK);
+        m.addTradeListener(async);
+        m.addTrade(trade(0));
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+        m.addTrade(trade(1));
+        m.addTrade(trade(2));
+        // The queue is full, the producer must be released by stop()
+        Thread stopper = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            async.stop();
+        });
+        stopper.start();
+        m.addTrade(trade(3));
+        stopper.join();
+        // Dropped at once after stop
+        m.addTrade(trade(4));
+        l.release.countDown();
+        assertEquals(4, async.getDropped());
+        assertEquals(0, async.getPending());
+    }
+
+    @Test
+    public void testBookCopy() throws Exception {
+        Market m = new Market("BTC", "USD");
+        SlowListener l = new SlowListener();
+        AsyncBookListener async = new AsyncBookListener(l, 16,
+                OverflowPolicy.BLOCK);
+        m.addBookListener(async);
+        m.addBid("100", "1", 0, false);
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+        // The queued copies must not change with the book
+        m.addBid("100", "2", 0, false);
+        m.addBid("100", "3", 0, false);
+        m.loadSnapshot(new Order[]{new Order(new Decimal(99), Decimal.ONE, 0)},
+                new Order[0]);
+        m.addBid("99", "5", 0, false);
+        l.release.countDown();
+        awaitDelivered(async, 5);
+        async.stop();
+        assertEquals("[BA 100 1, BU 100 2, BU 100 3, S 1 0, BU 99 5]",
+                l.events.toString());
+        assertEquals(0, async.getDropped());
+    }
+
+    @Test
+    public void testConflateBook() throws Exception {
+        Market m = new Market("BTC", "USD");
+        SlowListener l = new SlowListener();
+        AsyncBookListener async = new AsyncBookListener(l, 4,
+                OverflowPolicy.CONFLATE);
+        m.addBookListener(async);
+        m.addBid("100", "1", 0, false);
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+
+        m.addBid("101", "1", 0, false);
+        m.addBid("101", "2", 0, false); // Merged into the add
+        m.addBid("102", "1", 0, false);
+        m.removeBid(new Decimal(102)); // Never seen by the listener
+        m.removeBid(new Decimal(100));
+        m.addBid("100", "4", 0, false); // Removed and added again: update
+        m.addAsk("200", "1", 0, false);
+        m.addAsk("200", "3", 0, false);
+        assertEquals(1, async.getPending());
+        assertEquals(4, async.getDropped());
+
+        l.release.countDown();
+        awaitDelivered(async, 2);
+        async.stop();
+        assertEquals("[BA 100 1, BA 101 2, BU 100 4, AA 200 3]",
+                l.events.toString());
+    }
+
+    @Test
+    public void testConflateSnapshot() throws Exception {
+        Market m = new Market("BTC", "USD");
+        SlowListener l = new SlowListener();
+        AsyncBookListener async = new AsyncBookListener(l, 4,
+                OverflowPolicy.CONFLATE);
+        m.addBookListener(async);
+        m.addBid("100", "1", 0, false);
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+
+        m.addBid("101", "1", 0, false);
+        m.addAsk("200", "1", 0, false);
+        // The snapshot makes the pending changes useless
+        m.loadSnapshot(new Order[]{new Order(new Decimal(99), Decimal.ONE, 0)},
+                new Order[0]);
+        m.addAsk("201", "1", 0, false);
+        assertEquals(2, async.getDropped());
+
+        l.release.countDown();
+        awaitDelivered(async, 2);
+        async.stop();
+        assertEquals("[BA 100 1, S 1 0, AA 201 1]", l.events.toString());
+    }
+
+    @Test
+    public void testCopyTradeStore() {
+        Exchange e = new Exchange();
+        Market m = new Market("BTC", "USD");
+        m.setTradeStore(new ColumnarTradeStore(50, 0));
+        m.addTrade(trade(1));
+        m.addTrade(trade(2));
+        e.addMarket(m);
+        Market copy = MarketCopy.copyData(e).getMarkets()[0];
+        assertTrue(copy.getTrades() instanceof ColumnarTradeStore);
+        assertEquals(50, copy.getTrades().getMaxCount());
+        assertEquals(2, copy.getTradeCount());
+        assertEquals(new Decimal(2), copy.getTrades().getNewest().getAmount());
+    }
+
+    @Test
+    public void testCopyBookType() {
+        Market m = new Market(new CurrencyPair("BTC", "USD"), BookType.ARRAY);
+        m.addBid(new Decimal(100), Decimal.ONE, 1);
+        Market copy = MarketCopy.copyBook(m);
+        assertEquals(BookType.ARRAY, copy.getBookType());
+        assertTrue(copy.getBids().getLevels() instanceof ArrayLevels);
+        assertEquals(1, copy.getBids().size());
+    }
+
+    @Test
+    public void testConflateExchangeSnapshots() throws Exception {
+        Exchange e = new Exchange();
+        Market m = new Market("BTC", "USD");
+        e.addMarket(m);
+        SlowListener l = new SlowListener();
+        AsyncSnapshotListener async = new AsyncSnapshotListener(l, 4,
+                OverflowPolicy.CONFLATE);
+        async.onSnapshot(e);
+        assertTrue(l.entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 3; ++i) {
+            m.addTrade(trade(i));
+            async.onSnapshot(e);
+        }
+        assertEquals(2, async.getDropped());
+        l.release.countDown();
+        awaitDelivered(async, 2);
+        async.stop();
+        // The listener got copies, taken at the time of each snapshot
+        assertEquals("[X 0, X 3]", l.events.toString());
+    }
+}
@@ -0,0 +1,86 @@
+package org.progfun.websocket;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageRingTest {
+
+    @Test
+    public void testOfferAndRelease() {
+        MessageRing ring = new MessageRing(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer("m" + i));
+        }
+        // Full
+        assertFalse(ring.offer("m4"));
+
+        Event e = ring.peek();
+        assertEquals(Action.PARSE_MSG, e.getType());
+        assertEquals("m0", e.getData());
+        // The slot is still occupied until released
+        assertSame(e, ring.peek());
+        assertFalse(ring.offer("m4"));
+        ring.release();
+        assertNull(e.getData());
+        assertTrue(ring.offer("m4"));
+
+        for (int i = 1; i <= 4; ++i) {
+            assertEquals("m" + i, ring.peek().getData());
+            ring.release();
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void testDiscard() {
+        MessageRing ring = new MessageRing(8);
+        assertEquals(0, ring.discard());
+        for (int i = 0; i < 5; ++i) {
+            ring.offer(i);
+        }
+        assertEquals(0, ring.peek().getData());
+        ring.release();
+        assertEquals(4, ring.discard());
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+        // All slots are free again
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertEquals(0, ring.peek().getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacity() {
+        new MessageRing(100);
+    }
+
+    @Test
+    public void testTwoThreads() throws InterruptedException {
+        final int n = 200000;
+        final MessageRing ring = new MessageRing(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; ++i) {
+                    ring.put(i);
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < n; ++i) {
+            Event e = ring.peek();
+            while (e == null) {
+                Thread.yield();
+                e = ring.peek();
+            }
+            assertEquals(i, e.getData());
+            ring.release();
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
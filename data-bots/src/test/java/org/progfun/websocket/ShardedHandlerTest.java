@@ -0,0 +1,142 @@
+package org.progfun.websocket;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.progfun.Channel;
+import org.progfun.Market;
+import org.progfun.Subscription;
+import org.progfun.Subscriptions;
+import org.progfun.bots.bitfinex.BitFinexHandler;
+import org.progfun.bots.gdax.GdaxHandler;
+import org.progfun.bots.gemini.GeminiHandler;
+
+public class ShardedHandlerTest {
+
+    private static Subscriptions createSubscriptions(int numMarkets) {
+        Subscriptions subs = new Subscriptions();
+        for (int i = 0; i < numMarkets; ++i) {
+            Market m = new Market("C" + i, "USD");
+            subs.addInactive(m, Channel.ORDERBOOK);
+            subs.addInactive(m, Channel.TRADES);
+        }
+        return subs;
+    }
+
+    @Test
+    public void testMaxChannels() {
+        ShardedHandler sh = new ShardedHandler(BitFinexHandler::new, 5);
+        Subscriptions subs = createSubscriptions(5);
+        assertTrue(sh.subscribe(subs));
+        // Two channels per market, max two markets per connection
+        List<WebSocketHandler> handlers = sh.getHandlers();
+        assertEquals(3, handlers.size());
+        assertFalse(sh.subscribe(subs));
+
+        // All markets share one exchange
+        assertEquals(5, sh.getExchange().getMarkets().length);
+        for (WebSocketHandler h : handlers) {
+            assertSame(sh.getExchange(), h.getExchange());
+        }
+        // Both channels of a market are on the same connection
+        for (Market m : sh.getExchange().getMarkets()) {
+            WebSocketHandler h = sh.getHandler(m);
+            assertNotNull(h);
+            int channels = 0;
+            for (Subscription s : h.subscriptions.getAllInactive()) {
+                if (s.getMarket() == m) {
+                    channels++;
+                }
+            }
+            assertEquals(2, channels);
+        }
+        assertNull(sh.getHandler(new Market("XXX", "USD")));
+    }
+
+    @Test
+    public void testMinConnections() {
+        ShardedHandler sh = new ShardedHandler(BitFinexHandler::new, 100);
+        sh.setMinConnections(4);
+        assertTrue(sh.subscribe(createSubscriptions(10)));
+        List<WebSocketHandler> handlers = sh.getHandlers();
+        assertEquals(4, handlers.size());
+        // Markets are spread evenly: 3 + 3 + 2 + 2
+        int total = 0;
+        for (WebSocketHandler h : handlers) {
+            int size = h.subscriptions.getAllInactive().size();
+            assertTrue(size == 4 || size == 6);
+            total += size;
+        }
+        assertEquals(20, total);
+
+        // Never more connections than markets
+        sh = new ShardedHandler(BitFinexHandler::new, 100);
+        sh.setMinConnections(4);
+        assertTrue(sh.subscribe(createSubscriptions(2)));
+        assertEquals(2, sh.getHandlers().size());
+    }
+
+    @Test
+    public void testSingleMarketHandler() {
+        ShardedHandler sh = new ShardedHandler(GeminiHandler::new, 100);
+        assertTrue(sh.subscribe(createSubscriptions(3)));
+        List<WebSocketHandler> handlers = sh.getHandlers();
+        // Gemini needs a connection per market
+        assertEquals(3, handlers.size());
+        for (Market m : sh.getExchange().getMarkets()) {
+            WebSocketHandler h = sh.getHandler(m);
+            assertTrue(h instanceof GeminiHandler);
+            assertTrue(h.getUrl().endsWith(m.getSymbol()));
+        }
+    }
+
+    @Test
+    public void testShardMarkets() {
+        // Gemini parsers are bound to the market of their connection
+        ShardedHandler sh = new ShardedHandler(GeminiHandler::new, 100);
+        assertTrue(sh.subscribe(createSubscriptions(3)));
+        assertOnlyShardMarketChanges(sh, "{\"type\":\"update\",\"events\":"
+                + "[{\"type\":\"change\",\"side\":\"bid\",\"price\":\"701\","
+                + "\"remaining\":\"2\",\"delta\":\"2\"}]}");
+
+        // GDAX parsers find the market of the product
+        sh = new ShardedHandler(GdaxHandler::new, 2);
+        assertTrue(sh.subscribe(createSubscriptions(3)));
+        assertEquals(3, sh.getHandlers().size());
+        Market m = null;
+        for (Market market : sh.getExchange().getMarkets()) {
+            if (sh.getHandler(market) == sh.getHandlers().get(1)) {
+                m = market;
+            }
+        }
+        assertNotNull(m);
+        assertOnlyShardMarketChanges(sh, "{\"type\":\"l2update\","
+                + "\"product_id\":\"" + m.getSymbol() + "\",\"changes\":"
+                + "[[\"buy\",\"701\",\"2\"]]}");
+    }
+
+    /**
+     * Parse a message with the parser of the second shard, check that only
+     * the market of that shard changes
+     *
+     * @param sh
+     * @param message orderbook update for the market of the second shard
+     */
+    private static void assertOnlyShardMarketChanges(ShardedHandler sh,
+            String message) {
+        WebSocketHandler h = sh.getHandlers().get(1);
+        Parser parser = h.createParser();
+        parser.setExchange(sh.getExchange());
+        parser.setSubscriptions(h.subscriptions);
+        assertNull(parser.parseMessage(message));
+        for (Market m : sh.getExchange().getMarkets()) {
+            int expected = sh.getHandler(m) == h ? 1 : 0;
+            assertEquals(m.toString(), expected, m.getBids().size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxChannels() {
+        new ShardedHandler(BitFinexHandler::new, 0);
+    }
+}